@@ -54,6 +54,27 @@ public class DescriptorParameters
 	 * How similar two descriptors at least have to be
 	 */
 	public static double minSimilarity = 100;
+
+	/**
+	 * 0 == compare every descriptor of one image to every descriptor of the other
+	 * &gt;0 == only compare each descriptor to this many descriptors of the other image whose features are closest
+	 * (kd-tree over the neighbor offsets or distances, see {@link process.DescriptorIndex}), more is slower but finds more matches;
+	 * at least 2 (the second best match is needed for the ratio test), 1 is treated as 2
+	 */
+	public static int descriptorCandidates = 0;
+
+	/**
+	 * 0 == the kd-tree search for descriptorCandidates is exact
+	 * &gt;0 == best-bin-first, at most this many leaves of the kd-tree are visited per descriptor (approximate, faster)
+	 */
+	public static int descriptorMaxChecks = 0;
+
+	/**
+	 * 0 == compare the translation-invariant descriptors with descriptorDistance
+	 * 1 == pack them into a flat matrix per image and compare the rows directly, stopping a comparison once it cannot beat
+	 * the second best match (see {@link process.DescriptorMatrix}), only used if descriptorCandidates == 0
+	 */
+	public static int descriptorMatrix = 0;
 	
 	/**
 	 * Writes out all corresponding points of all pairs if this is set to a directory
@@ -65,6 +86,20 @@ public class DescriptorParameters
 	 */
 	public static int brightestNPoints = 0;
 
+	/**
+	 * 0 == keep the globally brightest N points
+	 * &gt;0 == divide the field of view into this many cells per dimension and keep the brightest
+	 * N / numCells points of every cell, so the points cover the entire image (see process.PeakTable.keepBrightestUniform)
+	 */
+	public static int brightestNPointsCells = 0;
+
+	/**
+	 * 0 == keep all detections
+	 * &gt;0 == remove every detection that has a brighter one (minimum or maximum) within this radius (in pixels,
+	 * z is scaled by the calibration), see process.PeakTable.suppressNonMaxima
+	 */
+	public static double nmsRadius = 0;
+
 	/**
 	 * 0 == compute per image (per timepoint/channel individually)
 	 * 1 == compute global min/max
@@ -74,6 +109,105 @@ public class DescriptorParameters
 	public static double min = 0;
 	public static double max = 0;
 
+	/**
+	 * Which implementation computes the gaussian convolutions of the difference of gaussian
+	 * 0 == ImgLib1 GaussianConvolutionReal (runtime grows with the sigmas)
+	 * 1 == recursive gaussian (Young - van Vliet), constant runtime for any sigma, see {@link process.RecursiveGaussian} for the tolerance
+	 * 2 == recursive gaussian on 16-bit buffers with a half precision DoG (about 1/3 less memory), peak values and localization
+	 * are computed in float, see {@link process.ReducedPrecisionDoG} for the accuracy compared to 1
+	 */
+	public static int dogEngine = 0;
+
+	/**
+	 * How the minima and maxima of the difference of gaussian are found (engines 0 and 1, engine 2 always uses 0)
+	 * 0 == compare every pixel to its 3^n - 1 neighbors (ImgLib1 for engine 0, {@link process.RecursiveGaussian} for engine 1)
+	 * 1 == separable running max/min filters, the same criterion (&gt;= or &lt;= all neighbors) and peaks as 0, see {@link process.ExtremumFinder}
+	 */
+	public static int extremumFinder = 0;
+
+	/**
+	 * How the subpixel location is computed for localization == 1 (engines 0 and 1, engine 2 always uses 1)
+	 * 0 == ImgLib1 SubpixelLocalization
+	 * 1 == closed-form 2d/3d quadratic fit in parallel without allocations per peak, see {@link process.QuadraticLocalization}
+	 */
+	public static int subpixelEngine = 0;
+
+	/**
+	 * 0 == compute the difference of gaussian at full resolution
+	 * &gt;0 == compute it on an image downsampled by octaves (factor 2) as long as sigma1 is at least
+	 * this many pixels in the downsampled image, see {@link process.DoGPyramid}
+	 */
+	public static double pyramidMinSigma = 0;
+
+	/**
+	 * 0 == detect on the entire image at once
+	 * &gt;0 == detect in blocks of this size (in pixels, also in z) that overlap by the
+	 * kernel radius plus the localization support, the memory is bounded by the block size
+	 */
+	public static int detectionBlockSize = 0;
+
+	/**
+	 * How many timepoints of a series are detected at the same time
+	 * 0 == automatic (limited by the number of threads and the available memory)
+	 */
+	public static int maxConcurrentTimepoints = 0;
+
+	/**
+	 * 0 == use params.threshold as it is
+	 * &gt;0 == choose the threshold so that about this many peaks are detected in the first image/timepoint,
+	 * see {@link process.ThresholdEstimation}
+	 */
+	public static int autoThresholdNumPeaks = 0;
+
+	/**
+	 * 0 == use params.threshold as it is
+	 * &gt;0 == choose the threshold so that about this many peaks are detected per calibrated unit area (2d)
+	 * or volume (3d) in the first image/timepoint (only used if autoThresholdNumPeaks == 0)
+	 */
+	public static double autoThresholdDensity = 0;
+
+	/**
+	 * The threshold of the single difference of gaussian pass that is used to choose the threshold
+	 */
+	public static double autoThresholdMinimum = 0.001;
+
+	/**
+	 * Stores the detections of every channel/timepoint in this directory and reuses them as long
+	 * as the image content and the detection parameters are the same, null == no caching
+	 */
+	public static String peakCacheDirectory = null;
+
+	/**
+	 * 0 == every timepoint allocates new images for detection and fusion
+	 * &gt;0 == keep released images of up to this many megabytes and reuse them for images of the same size,
+	 * see {@link process.ImagePool}
+	 */
+	public static int imagePoolMegabytes = 0;
+
+	/**
+	 * false == detect in the entire image and keep the peaks inside the ROI
+	 * true == detect only in the bounding box of the ROI (plus the halo of the DoG), faster for small ROIs,
+	 * not used if brightestNPoints &gt; 0 (the brightest peaks are chosen from the entire image)
+	 */
+	public static boolean cropDetectionToROI = false;
+
+	/**
+	 * 0 == read the planes of virtual stacks when they are needed
+	 * &gt;0 == read the planes of this many following timepoints on background threads while the current
+	 * one is processed, see {@link process.PlanePrefetcher}
+	 */
+	public static int prefetchTimepoints = 0;
+
+	/**
+	 * The maximal size of the planes that are prefetched but not yet used
+	 */
+	public static int prefetchMegabytes = 512;
+
+	/**
+	 * How many background threads read planes
+	 */
+	public static int prefetchThreads = 2;
+
 	// for debug
 	public static boolean printAllSimilarities = false;
 
@@ -110,6 +244,12 @@ public class DescriptorParameters
 	public int fuse = 0;
 	
 	protected AbstractModel< ? > initialModel = null; 
+
+	/**
+	 * @return true if an initial model was set, otherwise getInitialModel() is the identity
+	 */
+	public boolean hasInitialModel() { return initialModel != null; }
+
 	public AbstractModel<?> getInitialModel()
 	{
 		if ( initialModel != null )
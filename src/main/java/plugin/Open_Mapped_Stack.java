@@ -0,0 +1,39 @@
+package plugin;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+
+import java.io.File;
+import java.io.IOException;
+
+import process.MappedStack;
+
+/**
+ * Opens an uncompressed TIFF as a memory-mapped virtual stack ({@link MappedStack}), so that series larger
+ * than the RAM can be registered
+ */
+public class Open_Mapped_Stack implements PlugIn
+{
+	@Override
+	public void run( String arg0 )
+	{
+		final OpenDialog od = new OpenDialog( "Open memory-mapped TIFF", null );
+
+		if ( od.getFileName() == null )
+			return;
+
+		final File file = new File( od.getDirectory(), od.getFileName() );
+
+		try
+		{
+			final ImagePlus imp = MappedStack.openTiff( file );
+			imp.show();
+		}
+		catch ( IOException e )
+		{
+			IJ.error( "Cannot memory-map '" + file + "': " + e.getMessage() );
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package process;
+
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import plugin.DescriptorParameters;
+
+/**
+ * Detects the DoG peaks of one timepoint block by block, so that only one block (plus its halo)
+ * and its DoG image have to be held in memory at the same time.
+ *
+ * Every block is extended by a halo (see {@link #computeHalo(DescriptorParameters, int, float)}) that covers the
+ * support of the gaussians, the 3^n neighborhood of the extremum detection and the pixels a peak may move to
+ * during the localization. A peak is only kept by the block whose core contains its pixel location. The cores
+ * partition the image, so no peak is found twice.
+ *
+ * How close the result is to processing the entire image depends on the DoG engine:
+ *
+ * - dogEngine 0: the gaussian kernels are truncated at 3 sigma, the DoG in the core of a block is the same as
+ *   for the entire image and so are the peaks
+ * - dogEngine 1 and 2: the recursive gaussians have an infinite support and start every line at the block edge
+ *   with the replicated edge pixel. The halo covers 6 sigma, where this start-up differs from the entire line by
+ *   less than ~1.5e-4 of the (normalized) intensity range per pass (measured for sigma 1 to 8). Peaks can only differ
+ *   if their DoG value is that close to the threshold or to the value of a neighbor.
+ *
+ * All blocks are normalized with the same min/max (the one of the entire timepoint if none is given).
+ */
+public class BlockwiseDetection
+{
+	public static ArrayList< DifferenceOfGaussianPeak< FloatType > > extractCandidates( final ImagePlus imp, final int channel, final int timepoint,
+			final DescriptorParameters params, float[] minmax, final int blockSize, final int numThreads )
+	{
+		return extractCandidates( imp, channel, timepoint, params, params.threshold, params.localization, minmax, blockSize, numThreads );
+	}
+
+	/**
+	 * @param threshold - the DoG threshold (instead of params.threshold)
+	 * @param localization - the localization (instead of params.localization)
+	 */
+	public static ArrayList< DifferenceOfGaussianPeak< FloatType > > extractCandidates( final ImagePlus imp, final int channel, final int timepoint,
+			final DescriptorParameters params, final double threshold, final int localization, float[] minmax, final int blockSize, final int numThreads )
+	{
+		final int[] dim = getDimensions( imp );
+		final int n = dim.length;
+
+		// all blocks need the same normalization
+		if ( minmax == null )
+			minmax = Matching.computeMinMax( imp, channel, timepoint );
+
+		final int[] halo = computeHalo( params, localization, n, (float)imp.getCalibration().pixelDepth );
+
+		final int[] numBlocks = new int[ n ];
+		int totalBlocks = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			numBlocks[ d ] = ( dim[ d ] + blockSize - 1 ) / blockSize;
+			totalBlocks *= numBlocks[ d ];
+		}
+
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks = new ArrayList< DifferenceOfGaussianPeak< FloatType > >();
+
+		final int[] coreMin = new int[ n ];
+		final int[] coreMax = new int[ n ];
+		final int[] offset = new int[ n ];
+		final int[] size = new int[ n ];
+
+		for ( int b = 0; b < totalBlocks; ++b )
+		{
+			// the core of the block and the extended region including the halo
+			for ( int d = 0, i = b; d < n; ++d )
+			{
+				final int blockIndex = i % numBlocks[ d ];
+				i /= numBlocks[ d ];
+
+				coreMin[ d ] = blockIndex * blockSize;
+				coreMax[ d ] = Math.min( dim[ d ], coreMin[ d ] + blockSize ) - 1;
+
+				offset[ d ] = Math.max( 0, coreMin[ d ] - halo[ d ] );
+				size[ d ] = Math.min( dim[ d ] - 1, coreMax[ d ] + halo[ d ] ) - offset[ d ] + 1;
+			}
+
+			peaks.addAll( extractCandidates( imp, channel, timepoint, params, threshold, localization, minmax, offset, size, coreMin, coreMax, numThreads ) );
+		}
+
+		return peaks;
+	}
+
+	/**
+	 * The block size for the detection of this image: DescriptorParameters.detectionBlockSize if it is set,
+	 * otherwise 0 (entire image) if the image fits into an array-backed image, otherwise the largest block
+	 * size for which every block including its halo fits into one (the image has more than 2^31 voxels).
+	 *
+	 * @return the block size or 0
+	 */
+	public static int getBlockSize( final ImagePlus imp, final DescriptorParameters params )
+	{
+		if ( DescriptorParameters.detectionBlockSize > 0 )
+			return DescriptorParameters.detectionBlockSize;
+
+		final int[] dim = getDimensions( imp );
+
+		if ( FloatImages.fitsInArray( dim ) )
+			return 0;
+
+		final int n = dim.length;
+		final int[] halo = computeHalo( params, n, (float)imp.getCalibration().pixelDepth );
+		final int[] size = new int[ n ];
+
+		int lo = 1, hi = 1;
+
+		for ( int d = 0; d < n; ++d )
+			hi = Math.max( hi, dim[ d ] );
+
+		// binary search, the size of the largest block grows with the block size
+		while ( lo < hi )
+		{
+			final int mid = ( lo + hi + 1 ) / 2;
+
+			for ( int d = 0; d < n; ++d )
+				size[ d ] = Math.min( dim[ d ], mid + 2 * halo[ d ] );
+
+			if ( FloatImages.fitsInArray( size ) )
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+
+		return lo;
+	}
+
+	/**
+	 * @return the size of one channel/timepoint (x, y, (z))
+	 */
+	public static int[] getDimensions( final ImagePlus imp )
+	{
+		if ( imp.getNSlices() > 1 )
+			return new int[]{ imp.getWidth(), imp.getHeight(), imp.getNSlices() };
+		else
+			return new int[]{ imp.getWidth(), imp.getHeight() };
+	}
+
+	/**
+	 * Detects the peaks in one region of the image and maps them back into image coordinates.
+	 *
+	 * @param offset - the first pixel of the region that is loaded
+	 * @param size - the size of the region that is loaded
+	 * @param keepMin - only peaks with a pixel location &gt;= keepMin are kept (image coordinates)
+	 * @param keepMax - only peaks with a pixel location &lt;= keepMax are kept (image coordinates)
+	 * @param numThreads - how many threads to use
+	 * @return the peaks in image coordinates
+	 */
+	public static ArrayList< DifferenceOfGaussianPeak< FloatType > > extractCandidates( final ImagePlus imp, final int channel, final int timepoint,
+			final DescriptorParameters params, final float[] minmax, final int[] offset, final int[] size, final int[] keepMin, final int[] keepMax, final int numThreads )
+	{
+		return extractCandidates( imp, channel, timepoint, params, params.threshold, params.localization, minmax, offset, size, keepMin, keepMax, numThreads );
+	}
+
+	/**
+	 * @param threshold - the DoG threshold (instead of params.threshold)
+	 * @param localization - the localization (instead of params.localization)
+	 */
+	public static ArrayList< DifferenceOfGaussianPeak< FloatType > > extractCandidates( final ImagePlus imp, final int channel, final int timepoint,
+			final DescriptorParameters params, final double threshold, final int localization, final float[] minmax, final int[] offset, final int[] size,
+			final int[] keepMin, final int[] keepMax, final int numThreads )
+	{
+		final int n = size.length;
+
+		final Image< FloatType > img = Matching.leaseFloat( imp, channel, timepoint, minmax, offset, size, numThreads );
+		Matching.setCalibration( img, imp, params.dimensionality );
+
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > regionPeaks = Matching.computeDoG( img, (float)params.sigma1, (float)params.sigma2, params.lookForMaxima, params.lookForMinima, (float)threshold,
+				localization, params.iterations, params.sigma, params.region, numThreads );
+
+		ImagePool.release( img );
+
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks = new ArrayList< DifferenceOfGaussianPeak< FloatType > >();
+
+		for ( final DifferenceOfGaussianPeak< FloatType > peak : regionPeaks )
+		{
+			final int[] position = peak.getPosition();
+			boolean inside = true;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				position[ d ] += offset[ d ];
+
+				if ( position[ d ] < keepMin[ d ] || position[ d ] > keepMax[ d ] )
+					inside = false;
+			}
+
+			if ( inside )
+			{
+				peak.setPixelLocation( position );
+				peaks.add( peak );
+			}
+		}
+
+		return peaks;
+	}
+
+	/**
+	 * The overlap around a block so that the DoG, the extremum detection and the localization within the core
+	 * are not affected by the border of the block (within the tolerance of the recursive gaussians, see above):
+	 * the support of the larger gaussian (3 sigma for dogEngine 0, 6 sigma for the recursive engines), the 3^n
+	 * neighborhood and the pixels that are used by the localization (DetectionSegmentation.maxNumMoves moves plus
+	 * the neighborhood of the quadratic fit, or half the region of the gaussian mask fit).
+	 *
+	 * @param calibrationZ - the calibration in z (as set on the image for detection)
+	 * @return the halo for each dimension
+	 */
+	public static int[] computeHalo( final DescriptorParameters params, final int numDimensions, final float calibrationZ )
+	{
+		return computeHalo( params, params.localization, numDimensions, calibrationZ );
+	}
+
+	/**
+	 * @param localization - the localization (instead of params.localization)
+	 */
+	public static int[] computeHalo( final DescriptorParameters params, final int localization, final int numDimensions, final float calibrationZ )
+	{
+		final double[][] sigmaDiff = DetectionSegmentation.computeSigmaDiff( (float)params.sigma1, (float)params.sigma2, 0.5f, numDimensions, calibrationZ );
+
+		final int[] halo = new int[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			// the radius of the larger gaussian kernel, the recursive gaussians need to settle
+			if ( DescriptorParameters.dogEngine == 0 )
+				halo[ d ] = (int)Math.ceil( 3 * sigmaDiff[ 1 ][ d ] ) + 1;
+			else
+				halo[ d ] = (int)Math.ceil( 6 * sigmaDiff[ 1 ][ d ] ) + 1;
+
+			// the 3^n neighborhood for the extremum detection
+			halo[ d ] += 1;
+
+			// the support of the localization, a peak may move by maxNumMoves pixels
+			if ( localization == 1 )
+				halo[ d ] += DetectionSegmentation.maxNumMoves + 1;
+			else if ( localization == 2 && params.region != null )
+				halo[ d ] += params.region[ d ] / 2;
+		}
+
+		return halo;
+	}
+}
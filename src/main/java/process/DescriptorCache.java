@@ -0,0 +1,140 @@
+package process;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The nearest neighbors of every peak of each timepoint, computed once and shared by all {@link ComparePair}s
+ * of a series instead of building a kd-tree and searching the neighbors of both images for every pair.
+ *
+ * The descriptors themselves are still created per pair from the cached neighbors, because descriptorDistance,
+ * the model applied before matching and the RANSAC change the coordinates of the descriptor points and particles,
+ * so they cannot be shared between pairs that are matched in parallel. The neighbors are only reused where the
+ * particles are not transformed (the rotation-invariant matching, and image B in general).
+ *
+ * Every timepoint is referenced by the number of pairs it is part of, its entry is dropped as soon as the last
+ * of these pairs is matched (see {@link #release(int)}). All methods are thread-safe.
+ */
+public class DescriptorCache
+{
+	final Entry[] entries;
+	final int[] pending;
+	final int numNeighbors;
+	final float zStretching;
+
+	/**
+	 * @param numImages - the number of timepoints
+	 * @param pairs - all pairs that will be matched
+	 * @param numNeighbors - the number of neighbors of a descriptor (matcher.getRequiredNumNeighbors())
+	 * @param zStretching - the zStretching of the particles
+	 */
+	public DescriptorCache( final int numImages, final List< ComparePair > pairs, final int numNeighbors, final float zStretching )
+	{
+		this.entries = new Entry[ numImages ];
+		this.pending = new int[ numImages ];
+		this.numNeighbors = numNeighbors;
+		this.zStretching = zStretching;
+
+		for ( final ComparePair pair : pairs )
+		{
+			++pending[ pair.indexA ];
+			++pending[ pair.indexB ];
+		}
+	}
+
+	/**
+	 * @param index - the timepoint
+	 * @param peaks - the peaks of this timepoint
+	 * @return the entry of this timepoint, its neighbors are computed on first use
+	 */
+	public synchronized Entry get( final int index, final PeakTable peaks )
+	{
+		if ( entries[ index ] == null || entries[ index ].peaks != peaks )
+			entries[ index ] = new Entry( peaks, numNeighbors, zStretching );
+
+		return entries[ index ];
+	}
+
+	/**
+	 * Called when a pair that contains this timepoint is matched
+	 */
+	public synchronized void release( final int index )
+	{
+		if ( --pending[ index ] <= 0 )
+			entries[ index ] = null;
+	}
+
+	/**
+	 * The neighbors of all peaks of one timepoint
+	 */
+	public static class Entry
+	{
+		final PeakTable peaks;
+		final int numNeighbors;
+		final float zStretching;
+
+		int[][] neighbors = null;
+
+		public Entry( final PeakTable peaks, final int numNeighbors, final float zStretching )
+		{
+			this.peaks = peaks;
+			this.numNeighbors = numNeighbors;
+			this.zStretching = zStretching;
+		}
+
+		/**
+		 * @param numThreads - how many threads to use for the neighbor search
+		 * @return for every peak the indices of its numNeighbors nearest neighbors (by increasing distance, without the peak itself)
+		 */
+		public synchronized int[][] getNeighbors( final int numThreads )
+		{
+			if ( neighbors == null )
+			{
+				final ArrayList< Particle > particles = new ArrayList< Particle >();
+
+				for ( int i = 0; i < peaks.size(); ++i )
+					particles.add( new Particle( i, peaks, i, zStretching ) );
+
+				final Particle[][] neighborLists = Matching.findNeighbors( particles, numNeighbors, numThreads );
+				final int[][] n = new int[ particles.size() ][];
+
+				for ( int i = 0; i < particles.size(); ++i )
+				{
+					final Particle neighborList[] = neighborLists[ i ];
+
+					// the first hit is always the point itself
+					n[ i ] = new int[ neighborList.length - 1 ];
+
+					for ( int j = 1; j < neighborList.length; ++j )
+						n[ i ][ j - 1 ] = neighborList[ j ].index;
+				}
+
+				neighbors = n;
+			}
+
+			return neighbors;
+		}
+
+		/**
+		 * @param particles - the particles of this timepoint, in the order of the peaks
+		 * @param numThreads - how many threads to use if the neighbors are not computed yet
+		 * @return for every particle the result of a nearest neighbor search (the particle itself, then its neighbors)
+		 */
+		public Particle[][] getNeighborLists( final ArrayList< Particle > particles, final int numThreads )
+		{
+			final int[][] n = getNeighbors( numThreads );
+			final Particle[][] neighborLists = new Particle[ n.length ][];
+
+			for ( int i = 0; i < n.length; ++i )
+			{
+				neighborLists[ i ] = new Particle[ n[ i ].length + 1 ];
+				neighborLists[ i ][ 0 ] = particles.get( i );
+
+				for ( int j = 0; j < n[ i ].length; ++j )
+					neighborLists[ i ][ j + 1 ] = particles.get( n[ i ][ j ] );
+			}
+
+			return neighborLists;
+		}
+	}
+}
@@ -0,0 +1,381 @@
+package process;
+
+import java.util.Arrays;
+
+/**
+ * A kd-tree over the feature vectors of the descriptors of one image that returns the descriptors whose features
+ * are closest to a query, used to preselect the candidates for the exact (and expensive) descriptorDistance.
+ *
+ * The features are the neighbor coordinates relative to the basis point, sorted per dimension (translation-invariant
+ * descriptors), or the distances of the neighbors to the basis point in ascending order (rotation-invariant descriptors),
+ * see {@link #relativeCoordinates(Particle, Particle[])}
+ * and {@link #distances(Particle, Particle[])}. Searching is best-bin-first: the leaves are visited in the order of their
+ * distance to the query; with maxChecks = 0 all leaves that can contain a closer point are visited (exact k nearest
+ * neighbors), otherwise the search stops after maxChecks leaves (approximate, faster).
+ *
+ * The tree is read-only after construction, every thread needs its own {@link Searcher}.
+ */
+public class DescriptorIndex
+{
+	final static int bucketSize = 8;
+
+	final float[][] features;
+	final int numDimensions;
+
+	// the points of each node are index[ start[ node ] ... end[ node ] - 1 ]
+	final int[] index;
+	final int[] start, end, splitDimension, left, right;
+	final float[] splitValue;
+	int numNodes = 0;
+
+	/**
+	 * @param features - one feature vector per descriptor, all of the same length
+	 */
+	public DescriptorIndex( final float[][] features )
+	{
+		this.features = features;
+		this.numDimensions = features.length == 0 ? 0 : features[ 0 ].length;
+
+		final int n = features.length;
+
+		this.index = new int[ n ];
+		for ( int i = 0; i < n; ++i )
+			index[ i ] = i;
+
+		// every leaf has at least bucketSize / 2 points
+		final int maxNodes = 4 * ( n / bucketSize + 1 );
+
+		this.start = new int[ maxNodes ];
+		this.end = new int[ maxNodes ];
+		this.splitDimension = new int[ maxNodes ];
+		this.left = new int[ maxNodes ];
+		this.right = new int[ maxNodes ];
+		this.splitValue = new float[ maxNodes ];
+
+		build( 0, n );
+	}
+
+	public int size() { return features.length; }
+
+	protected int build( final int from, final int to )
+	{
+		final int node = numNodes++;
+
+		start[ node ] = from;
+		end[ node ] = to;
+		left[ node ] = right[ node ] = -1;
+
+		if ( to - from <= bucketSize || numDimensions == 0 )
+			return node;
+
+		// split the dimension with the largest extent at the median
+		int dim = 0;
+		float maxExtent = -1;
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+
+			for ( int i = from; i < to; ++i )
+			{
+				final float v = features[ index[ i ] ][ d ];
+				min = Math.min( min, v );
+				max = Math.max( max, v );
+			}
+
+			if ( max - min > maxExtent )
+			{
+				maxExtent = max - min;
+				dim = d;
+			}
+		}
+
+		if ( maxExtent <= 0 )
+			return node;
+
+		final int mid = ( from + to ) / 2;
+		select( from, to - 1, mid, dim );
+
+		splitDimension[ node ] = dim;
+		splitValue[ node ] = features[ index[ mid ] ][ dim ];
+
+		final int l = build( from, mid );
+		final int r = build( mid, to );
+
+		left[ node ] = l;
+		right[ node ] = r;
+
+		return node;
+	}
+
+	/**
+	 * Partially sorts index[ from ... to ] by dimension dim so that the element k is in place (quickselect)
+	 */
+	protected void select( int from, int to, final int k, final int dim )
+	{
+		while ( from < to )
+		{
+			final float pivot = features[ index[ ( from + to ) >>> 1 ] ][ dim ];
+			int i = from, j = to;
+
+			while ( i <= j )
+			{
+				while ( features[ index[ i ] ][ dim ] < pivot )
+					++i;
+				while ( features[ index[ j ] ][ dim ] > pivot )
+					--j;
+
+				if ( i <= j )
+				{
+					final int tmp = index[ i ];
+					index[ i ] = index[ j ];
+					index[ j ] = tmp;
+					++i;
+					--j;
+				}
+			}
+
+			if ( k <= j )
+				to = j;
+			else if ( k >= i )
+				from = i;
+			else
+				return;
+		}
+	}
+
+	/**
+	 * The feature of a translation-invariant descriptor: the coordinates of the neighbors relative to the basis point,
+	 * first all x sorted ascending, then all y, (then all z). The neighbors are ordered by their distance, two neighbors
+	 * at almost the same distance can swap in the other image; sorting per dimension makes the feature independent of
+	 * that order, so the true match stays close in feature space.
+	 *
+	 * @param neighborList - the result of the nearest neighbor search, the first entry is the basis point itself
+	 */
+	public static float[] relativeCoordinates( final Particle basis, final Particle[] neighborList )
+	{
+		final double[] b = basis.getW();
+		final int n = b.length;
+		final int numNeighbors = neighborList.length - 1;
+		final float[] feature = new float[ numNeighbors * n ];
+
+		for ( int i = 1; i < neighborList.length; ++i )
+		{
+			final double[] p = neighborList[ i ].getW();
+
+			for ( int d = 0; d < n; ++d )
+				feature[ d * numNeighbors + i - 1 ] = (float)( p[ d ] - b[ d ] );
+		}
+
+		for ( int d = 0; d < n; ++d )
+			Arrays.sort( feature, d * numNeighbors, ( d + 1 ) * numNeighbors );
+
+		return feature;
+	}
+
+	/**
+	 * The feature of a rotation-invariant descriptor: the distances of the neighbors to the basis point, which are
+	 * ascending because the neighbors are ordered by their distance
+	 *
+	 * @param neighborList - the result of the nearest neighbor search, the first entry is the basis point itself
+	 */
+	public static float[] distances( final Particle basis, final Particle[] neighborList )
+	{
+		final double[] b = basis.getW();
+		final float[] feature = new float[ neighborList.length - 1 ];
+
+		for ( int i = 1; i < neighborList.length; ++i )
+		{
+			final double[] p = neighborList[ i ].getW();
+			double sum = 0;
+
+			for ( int d = 0; d < b.length; ++d )
+				sum += ( p[ d ] - b[ d ] ) * ( p[ d ] - b[ d ] );
+
+			feature[ i - 1 ] = (float)Math.sqrt( sum );
+		}
+
+		return feature;
+	}
+
+	/**
+	 * Best-bin-first search for the k nearest features, with buffers for one thread
+	 */
+	public static class Searcher
+	{
+		final DescriptorIndex tree;
+		final int k, maxChecks;
+
+		// the k nearest so far, sorted by distance
+		final int[] nearest;
+		final double[] nearestDistance;
+		int numNearest;
+
+		// min-heap of nodes by the lower bound of their distance
+		int[] heapNode;
+		double[] heapBound;
+		int heapSize;
+
+		/**
+		 * @param k - how many neighbors to find
+		 * @param maxChecks - the maximal number of leaves that are visited, 0 means all that are necessary (exact)
+		 */
+		public Searcher( final DescriptorIndex tree, final int k, final int maxChecks )
+		{
+			this.tree = tree;
+			this.k = Math.max( 1, k );
+			this.maxChecks = maxChecks;
+
+			this.nearest = new int[ this.k ];
+			this.nearestDistance = new double[ this.k ];
+			this.heapNode = new int[ 64 ];
+			this.heapBound = new double[ 64 ];
+		}
+
+		/**
+		 * @return the number of neighbors that were found, see {@link #getNearest(int)}
+		 */
+		public int search( final float[] query )
+		{
+			numNearest = 0;
+			heapSize = 0;
+
+			if ( tree.size() == 0 )
+				return 0;
+
+			push( 0, 0 );
+
+			int checks = 0;
+
+			while ( heapSize > 0 )
+			{
+				final double bound = heapBound[ 0 ];
+				int node = pop();
+
+				// no leaf that is left can contain a closer point
+				if ( numNearest == k && bound >= nearestDistance[ k - 1 ] )
+					break;
+
+				// descend to the leaf on the side of the query, remember the other side
+				while ( tree.left[ node ] >= 0 )
+				{
+					final double diff = query[ tree.splitDimension[ node ] ] - tree.splitValue[ node ];
+					final double farBound = Math.max( bound, diff * diff );
+
+					if ( diff < 0 )
+					{
+						push( tree.right[ node ], farBound );
+						node = tree.left[ node ];
+					}
+					else
+					{
+						push( tree.left[ node ], farBound );
+						node = tree.right[ node ];
+					}
+				}
+
+				for ( int i = tree.start[ node ]; i < tree.end[ node ]; ++i )
+					insert( tree.index[ i ], squareDistance( query, tree.features[ tree.index[ i ] ] ) );
+
+				if ( maxChecks > 0 && ++checks >= maxChecks )
+					break;
+			}
+
+			return numNearest;
+		}
+
+		/**
+		 * @return the index of the i-th nearest descriptor (0 is the nearest)
+		 */
+		public int getNearest( final int i ) { return nearest[ i ]; }
+
+		protected void insert( final int index, final double distance )
+		{
+			if ( numNearest == k && distance >= nearestDistance[ k - 1 ] )
+				return;
+
+			int i = numNearest < k ? numNearest++ : k - 1;
+
+			while ( i > 0 && nearestDistance[ i - 1 ] > distance )
+			{
+				nearest[ i ] = nearest[ i - 1 ];
+				nearestDistance[ i ] = nearestDistance[ i - 1 ];
+				--i;
+			}
+
+			nearest[ i ] = index;
+			nearestDistance[ i ] = distance;
+		}
+
+		protected void push( final int node, final double bound )
+		{
+			if ( heapSize == heapNode.length )
+			{
+				heapNode = Arrays.copyOf( heapNode, heapSize * 2 );
+				heapBound = Arrays.copyOf( heapBound, heapSize * 2 );
+			}
+
+			int i = heapSize++;
+
+			while ( i > 0 )
+			{
+				final int parent = ( i - 1 ) / 2;
+
+				if ( heapBound[ parent ] <= bound )
+					break;
+
+				heapNode[ i ] = heapNode[ parent ];
+				heapBound[ i ] = heapBound[ parent ];
+				i = parent;
+			}
+
+			heapNode[ i ] = node;
+			heapBound[ i ] = bound;
+		}
+
+		protected int pop()
+		{
+			final int top = heapNode[ 0 ];
+			final int lastNode = heapNode[ --heapSize ];
+			final double lastBound = heapBound[ heapSize ];
+
+			int i = 0;
+
+			while ( true )
+			{
+				int child = 2 * i + 1;
+
+				if ( child >= heapSize )
+					break;
+
+				if ( child + 1 < heapSize && heapBound[ child + 1 ] < heapBound[ child ] )
+					++child;
+
+				if ( heapBound[ child ] >= lastBound )
+					break;
+
+				heapNode[ i ] = heapNode[ child ];
+				heapBound[ i ] = heapBound[ child ];
+				i = child;
+			}
+
+			heapNode[ i ] = lastNode;
+			heapBound[ i ] = lastBound;
+
+			return top;
+		}
+
+		protected static double squareDistance( final float[] a, final float[] b )
+		{
+			double sum = 0;
+
+			for ( int d = 0; d < a.length; ++d )
+			{
+				final double diff = a[ d ] - b[ d ];
+				sum += diff * diff;
+			}
+
+			return sum;
+		}
+	}
+}
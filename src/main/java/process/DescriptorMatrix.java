@@ -0,0 +1,214 @@
+package process;
+
+import java.util.ArrayList;
+
+import mpicbg.models.PointMatch;
+import mpicbg.pointdescriptor.AbstractPointDescriptor;
+import mpicbg.pointdescriptor.matcher.Matcher;
+
+/**
+ * The translation-invariant descriptors of one image packed into two flat arrays: one row per (basis point, subset of
+ * neighbors) with the relative coordinates of the subset, once as the first and once as the second descriptor of a
+ * comparison. The distance of two descriptors is then the minimum over all combinations of subsets of the squared
+ * distance of two rows, a plain loop over primitive arrays instead of creating the PointMatch lists of the Matcher and
+ * going through the SimilarityMeasure for every comparison.
+ *
+ * The combinations of subsets and the rows they use are taken from Matcher.createCandidates of the first descriptor,
+ * they are the same for all descriptors (the matcher combines the neighbors by their index). Only descriptors whose
+ * descriptorDistance does not fit a model (SimplePointDescriptor) can be packed. The SimilarityMeasure is SquareDistance,
+ * the mean squared distance of the points of a subset, so a row distance times {@link #getNormalization()} is the
+ * descriptorDistance; {@link #agrees(ArrayList, DescriptorMatrix, ArrayList, DescriptorMatrix)} checks this once per pair of images.
+ *
+ * The matrix is read-only after construction and can be used by several threads.
+ */
+public class DescriptorMatrix
+{
+	final int numDescriptors;
+
+	// the rows of the first and second descriptor that each combination compares
+	final int[] combinationRow1, combinationRow2;
+	final int numCombinations, numRows1, numRows2;
+
+	// the number of points of a subset and the dimensionality
+	final int subsetSize, numDimensions, rowLength;
+
+	// row r of descriptor i starts at ( i * numRows + r ) * rowLength
+	final double[] rows1, rows2;
+
+	/**
+	 * @param descriptors - translation-invariant descriptors that were all created with this matcher
+	 * @param matcher - the matcher
+	 */
+	public DescriptorMatrix( final ArrayList< AbstractPointDescriptor > descriptors, final Matcher matcher )
+	{
+		this.numDescriptors = descriptors.size();
+
+		if ( numDescriptors == 0 )
+		{
+			this.combinationRow1 = this.combinationRow2 = new int[ 0 ];
+			this.numCombinations = this.numRows1 = this.numRows2 = 0;
+			this.subsetSize = this.numDimensions = this.rowLength = 0;
+			this.rows1 = this.rows2 = new double[ 0 ];
+
+			return;
+		}
+
+		final ArrayList< ArrayList< PointMatch > > pattern = matcher.createCandidates( descriptors.get( 0 ), descriptors.get( 0 ) );
+
+		this.numCombinations = pattern.size();
+		this.subsetSize = pattern.get( 0 ).size();
+		this.numDimensions = pattern.get( 0 ).get( 0 ).getP1().getW().length;
+		this.rowLength = subsetSize * numDimensions;
+
+		// combinations that use the same points of a descriptor share a row
+		this.combinationRow1 = new int[ numCombinations ];
+		this.combinationRow2 = new int[ numCombinations ];
+
+		final int[] firstCombination1 = new int[ numCombinations ];
+		final int[] firstCombination2 = new int[ numCombinations ];
+
+		this.numRows1 = assignRows( pattern, true, combinationRow1, firstCombination1 );
+		this.numRows2 = assignRows( pattern, false, combinationRow2, firstCombination2 );
+
+		this.rows1 = new double[ numDescriptors * numRows1 * rowLength ];
+		this.rows2 = new double[ numDescriptors * numRows2 * rowLength ];
+
+		for ( int i = 0; i < numDescriptors; ++i )
+		{
+			final ArrayList< ArrayList< PointMatch > > candidates = i == 0 ? pattern : matcher.createCandidates( descriptors.get( i ), descriptors.get( i ) );
+
+			for ( int r = 0; r < numRows1; ++r )
+				copyRow( candidates.get( firstCombination1[ r ] ), true, rows1, ( i * numRows1 + r ) * rowLength );
+
+			for ( int r = 0; r < numRows2; ++r )
+				copyRow( candidates.get( firstCombination2[ r ] ), false, rows2, ( i * numRows2 + r ) * rowLength );
+		}
+	}
+
+	public int size() { return numDescriptors; }
+
+	/**
+	 * The squared distance of descriptor i of this matrix (as first descriptor) and descriptor j of the other matrix (as second
+	 * descriptor), not normalized. The sum of a combination is stopped as soon as it reaches the limit or the minimum of the
+	 * combinations so far, so the result is only exact if it is smaller than the limit.
+	 *
+	 * @param limit - distances &gt;= limit are of no interest (e.g. the second best distance so far)
+	 * @return the distance if it is smaller than the limit, otherwise Double.MAX_VALUE
+	 */
+	public double distance( final int i, final DescriptorMatrix other, final int j, final double limit )
+	{
+		final double[] a = rows1;
+		final double[] b = other.rows2;
+		final int offsetA = i * numRows1 * rowLength;
+		final int offsetB = j * other.numRows2 * rowLength;
+
+		double min = limit;
+
+		for ( int c = 0; c < numCombinations; ++c )
+		{
+			int ka = offsetA + combinationRow1[ c ] * rowLength;
+			int kb = offsetB + other.combinationRow2[ c ] * rowLength;
+
+			double sum = 0;
+			int p = 0;
+
+			for ( ; p < subsetSize; ++p )
+			{
+				for ( int d = 0; d < numDimensions; ++d, ++ka, ++kb )
+				{
+					final double diff = a[ ka ] - b[ kb ];
+					sum += diff * diff;
+				}
+
+				// partial distance, this combination cannot be better any more
+				if ( sum >= min )
+					break;
+			}
+
+			if ( p == subsetSize )
+				min = sum;
+		}
+
+		return min < limit ? min : Double.MAX_VALUE;
+	}
+
+	/**
+	 * @return the factor that turns a distance of the matrices into a descriptorDistance, SquareDistance divides the
+	 * sum of squared distances by the number of points of a subset
+	 */
+	public double getNormalization()
+	{
+		return subsetSize == 0 ? 1 : 1.0 / subsetSize;
+	}
+
+	/**
+	 * Checks for the first descriptors of both images that the normalized distance of the matrices is their descriptorDistance
+	 *
+	 * @return false if they do not agree (e.g. the descriptors fit a model or the SimilarityMeasure is not SquareDistance)
+	 */
+	public static boolean agrees( final ArrayList< AbstractPointDescriptor > descriptorsA, final DescriptorMatrix matrixA,
+			final ArrayList< AbstractPointDescriptor > descriptorsB, final DescriptorMatrix matrixB )
+	{
+		if ( matrixA.size() == 0 || matrixB.size() == 0 )
+			return true;
+
+		if ( matrixA.numCombinations != matrixB.numCombinations || matrixA.rowLength != matrixB.rowLength )
+			return false;
+
+		final double reference = descriptorsA.get( 0 ).descriptorDistance( descriptorsB.get( 0 ) );
+		final double distance = matrixA.distance( 0, matrixB, 0, Double.MAX_VALUE ) * matrixA.getNormalization();
+
+		return Math.abs( distance - reference ) <= 1e-9 * Math.max( reference, 1e-12 );
+	}
+
+	/**
+	 * Numbers the distinct subsets (by the identity of their points) of the first or second descriptor
+	 *
+	 * @return the number of rows
+	 */
+	protected static int assignRows( final ArrayList< ArrayList< PointMatch > > pattern, final boolean first, final int[] combinationRow, final int[] firstCombination )
+	{
+		int numRows = 0;
+
+		for ( int c = 0; c < pattern.size(); ++c )
+		{
+			combinationRow[ c ] = -1;
+
+			for ( int r = 0; r < numRows && combinationRow[ c ] < 0; ++r )
+				if ( sameSubset( pattern.get( c ), pattern.get( firstCombination[ r ] ), first ) )
+					combinationRow[ c ] = r;
+
+			if ( combinationRow[ c ] < 0 )
+			{
+				firstCombination[ numRows ] = c;
+				combinationRow[ c ] = numRows++;
+			}
+		}
+
+		return numRows;
+	}
+
+	protected static boolean sameSubset( final ArrayList< PointMatch > m1, final ArrayList< PointMatch > m2, final boolean first )
+	{
+		for ( int p = 0; p < m1.size(); ++p )
+		{
+			if ( first && m1.get( p ).getP1() != m2.get( p ).getP1() )
+				return false;
+			if ( !first && m1.get( p ).getP2() != m2.get( p ).getP2() )
+				return false;
+		}
+
+		return true;
+	}
+
+	protected void copyRow( final ArrayList< PointMatch > matches, final boolean first, final double[] rows, final int offset )
+	{
+		for ( int p = 0, k = offset; p < subsetSize; ++p )
+		{
+			final double[] w = first ? matches.get( p ).getP1().getW() : matches.get( p ).getP2().getW();
+
+			for ( int d = 0; d < numDimensions; ++d )
+				rows[ k++ ] = w[ d ];
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package process;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import plugin.DescriptorParameters;
+import spim.Threads;
+
+/**
+ * Streams the detection of a series into the descriptor matching: a {@link ComparePair} is matched
+ * as soon as both of its timepoints are detected, so that the detection of later timepoints overlaps
+ * with the matching of earlier ones. Timepoints are detected in increasing order and the pairs are
+ * matched in the order in which they become available, which for consecutive matching and
+ * all-to-all matching with range means that matching starts after the first few timepoints.
+ *
+ * If the detection or matching of a timepoint fails, the remaining timepoints and pairs are skipped and
+ * the failure is rethrown once all threads finished, like the sequential detection did.
+ */
+public class DetectionPipeline
+{
+	/**
+	 * @param imp - the series
+	 * @param numImages - the number of timepoints
+	 * @param params - the parameters
+	 * @param minmax - the min/max for normalization or null
+	 * @param crop - the region of every timepoint that is detected (see Matching.computeCropBox) or null for the entire image
+	 * @param firstTimepoint - the peaks of the entire timepoint 0 if they are known already (see ThresholdEstimation) or null
+	 * @param zStretching - the zStretching if applicable
+	 * @param peaksComplete - will be filled with all peaks of each timepoint
+	 * @param peaks - will be filled with the peaks of each timepoint that are used for matching (see Matching.preparePeaks)
+	 * @return all pairs with their models and inliers
+	 */
+	public static Vector< ComparePair > detectAndMatch( final ImagePlus imp, final int numImages, final DescriptorParameters params, final float[] minmax, final int[][] crop,
+			final ArrayList< DifferenceOfGaussianPeak< FloatType > > firstTimepoint, final float zStretching, final ArrayList< PeakTable > peaksComplete,
+			final ArrayList< PeakTable > peaks )
+	{
+		// get all compare pairs, and the order in which they can be matched
+		final Vector< ComparePair > pairs = Matching.getComparePairs( params, numImages );
+		final ArrayList< ComparePair > matchingOrder = new ArrayList< ComparePair >( pairs );
+
+		// the neighbors of each timepoint are searched once for all pairs
+		final DescriptorCache cache = new DescriptorCache( numImages, pairs, params.numNeighbors + params.redundancy, zStretching );
+
+		Collections.sort( matchingOrder, new Comparator< ComparePair >()
+		{
+			@Override
+			public int compare( final ComparePair o1, final ComparePair o2 )
+			{
+				final int diff = Math.max( o1.indexA, o1.indexB ) - Math.max( o2.indexA, o2.indexB );
+
+				if ( diff != 0 )
+					return diff;
+				else
+					return Math.min( o1.indexA, o1.indexB ) - Math.min( o2.indexA, o2.indexB );
+			}
+		});
+
+		final ArrayList< PeakTable > complete = new ArrayList< PeakTable >();
+		final ArrayList< PeakTable > prepared = new ArrayList< PeakTable >();
+		final CountDownLatch[] detected = new CountDownLatch[ numImages ];
+
+		for ( int t = 0; t < numImages; ++t )
+		{
+			complete.add( null );
+			prepared.add( null );
+			detected[ t ] = new CountDownLatch( 1 );
+		}
+
+		// the detection threads
+		final int numThreads = Threads.numThreads();
+		final int numConcurrent = ParallelDetection.computeNumConcurrentTimepoints( imp, numImages, numThreads );
+		final int threadsPerTimepoint = Math.max( 1, numThreads / numConcurrent );
+
+		// the first failure of a detection or matching, the pipeline stops and rethrows it
+		final AtomicReference< Throwable > failure = new AtomicReference< Throwable >();
+
+		final AtomicInteger nextTimepoint = new AtomicInteger( 0 );
+		final Thread[] detectionThreads = SimpleMultiThreading.newThreads( numConcurrent );
+
+		for ( int ithread = 0; ithread < detectionThreads.length; ++ithread )
+			detectionThreads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					for ( int t = nextTimepoint.getAndIncrement(); t < numImages; t = nextTimepoint.getAndIncrement() )
+					{
+						try
+						{
+							// nothing is detected after a failure, the latches still open so that no matcher waits forever
+							if ( failure.get() == null )
+							{
+								final PeakTable list = Matching.extractCandidateTable( imp, params.channel1, t, params, minmax, threadsPerTimepoint, crop, t == 0 ? firstTimepoint : null );
+								list.sortByLocation();
+								final PeakTable listPrepared = Matching.preparePeaks( list, params );
+
+								synchronized ( complete )
+								{
+									complete.set( t, list );
+									prepared.set( t, listPrepared );
+								}
+							}
+						}
+						catch ( Throwable e )
+						{
+							failure.compareAndSet( null, e );
+							IJ.log( "Detection failed for timepoint " + t + ": " + e );
+						}
+						finally
+						{
+							detected[ t ].countDown();
+						}
+					}
+				}
+			});
+
+		// the matching threads, they wait until both timepoints of the next pair are detected
+		final AtomicInteger nextPair = new AtomicInteger( 0 );
+		final Thread[] matchingThreads = SimpleMultiThreading.newThreads( numThreads );
+
+		for ( int ithread = 0; ithread < matchingThreads.length; ++ithread )
+			matchingThreads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					for ( int i = nextPair.getAndIncrement(); i < matchingOrder.size(); i = nextPair.getAndIncrement() )
+					{
+						final ComparePair pair = matchingOrder.get( i );
+
+						try
+						{
+							detected[ pair.indexA ].await();
+							detected[ pair.indexB ].await();
+						}
+						catch ( InterruptedException e )
+						{
+							failure.compareAndSet( null, e );
+							IJ.log( "Matching interrupted: " + e );
+							return;
+						}
+
+						// the pipeline is aborted
+						if ( failure.get() != null )
+							return;
+
+						final PeakTable peaksA, peaksB;
+
+						synchronized ( complete )
+						{
+							peaksA = prepared.get( pair.indexA );
+							peaksB = prepared.get( pair.indexB );
+						}
+
+						try
+						{
+							Matching.matchPair( pair, peaksA, peaksB, zStretching, params, cache );
+						}
+						catch ( Throwable e )
+						{
+							failure.compareAndSet( null, e );
+							IJ.log( "Matching failed for timepoints " + pair.indexA + " and " + pair.indexB + ": " + e );
+							return;
+						}
+					}
+				}
+			});
+
+		// open debug file if wanted
+		Matching.openCorrespondenceFile();
+
+		final Thread[] threads = new Thread[ detectionThreads.length + matchingThreads.length ];
+		System.arraycopy( detectionThreads, 0, threads, 0, detectionThreads.length );
+		System.arraycopy( matchingThreads, 0, threads, detectionThreads.length, matchingThreads.length );
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		Matching.closeCorrespondenceFile();
+
+		// like the sequential detection, a failed timepoint aborts the registration
+		final Throwable t = failure.get();
+
+		if ( t instanceof Error )
+			throw (Error)t;
+		else if ( t instanceof RuntimeException )
+			throw (RuntimeException)t;
+		else if ( t != null )
+			throw new RuntimeException( "Detection failed", t );
+
+		peaksComplete.addAll( complete );
+		peaks.addAll( prepared );
+
+		return pairs;
+	}
+}
@@ -11,17 +11,20 @@ import mpicbg.imglib.algorithm.scalespace.SubpixelLocalization;
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyFactory;
 import mpicbg.imglib.type.numeric.real.FloatType;
-import mpicbg.imglib.wrapper.ImgLib1;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.registration.ViewStructure;
-import net.imglib2.RandomAccessible;
-import net.imglib2.view.Views;
+import plugin.DescriptorParameters;
 import spim.Threads;
 
 public class DetectionSegmentation
 {
 	public static double distanceThreshold = 1.5;
 
+	/**
+	 * How often a peak may move to a neighboring pixel during the subpixel localization (localization == 1)
+	 */
+	public static final int maxNumMoves = 10;
+
 	public static ArrayList< DifferenceOfGaussianPeak< FloatType > > extractBeadsLaPlaceImgLib( 
 			final Image< FloatType > img,
 			final OutOfBoundsStrategyFactory< FloatType > oobsFactory,
@@ -37,6 +40,33 @@ public class DetectionSegmentation
 			final double[] sigma,
 			final int[] region,
 			final int debugLevel )
+	{
+		return extractBeadsLaPlaceImgLib( img, oobsFactory, imageSigma, sigma1, sigma2, minPeakValue, minInitialPeakValue, findMax, findMin,
+				localization, iterations, sigma, region, 0, Threads.numThreads(), debugLevel );
+	}
+
+	/**
+	 * @param dogEngine - 0 == ImgLib1 gaussian convolution, 1 == recursive gaussian ({@link RecursiveGaussian}),
+	 * 2 == recursive gaussian with reduced-precision buffers ({@link ReducedPrecisionDoG}), see DescriptorParameters.dogEngine
+	 * @param numThreads - how many threads to use for this image
+	 */
+	public static ArrayList< DifferenceOfGaussianPeak< FloatType > > extractBeadsLaPlaceImgLib( 
+			final Image< FloatType > img,
+			final OutOfBoundsStrategyFactory< FloatType > oobsFactory,
+			final float imageSigma, 
+			final float sigma1,
+			final float sigma2,
+			float minPeakValue,
+			float minInitialPeakValue,
+			final boolean findMax,
+			final boolean findMin,
+			final int localization,
+			final int iterations,
+			final double[] sigma,
+			final int[] region,
+			final int dogEngine,
+			final int numThreads,
+			final int debugLevel )
 	{
 		// we ignore the intensity after the gauss fit for now ...
 		if ( localization == 0 || localization == 2 )
@@ -45,116 +75,160 @@ public class DetectionSegmentation
 		//
 		// Compute the Sigmas for the gaussian folding
 		//
-		final float[] sigmaXY = new float[]{ sigma1, sigma2 };
-		final float[] sigmaDiffXY = computeSigmaDiff( sigmaXY, imageSigma );
-		
-		final float k = sigmaXY[ 1 ] / sigmaXY[ 0 ];
+		final float k = sigma2 / sigma1;
 		final float K_MIN1_INV = computeKWeight(k);
 		
-		final double[][] sigmaDiff = new double[ 2 ][ 3 ];
-		sigmaDiff[ 0 ][ 0 ] = sigmaDiffXY[ 0 ];
-		sigmaDiff[ 0 ][ 1 ] = sigmaDiffXY[ 0 ];
-		sigmaDiff[ 1 ][ 0 ] = sigmaDiffXY[ 1 ];
-		sigmaDiff[ 1 ][ 1 ] = sigmaDiffXY[ 1 ];
-		
-		// sigmaZ is at least twice the image sigma
-		if ( img.getNumDimensions() == 3 )
-		{
-			final float sigma1Z = Math.max( imageSigma * 2, sigma1 / img.getCalibration( 2 ) );
-			final float sigma2Z = sigma1Z * k;
-			final float[] sigmaZ = new float[]{ sigma1Z, sigma2Z };
-			final float[] sigmaDiffZ = computeSigmaDiff( sigmaZ, imageSigma );
-			sigmaDiff[ 0 ][ 2 ] = sigmaDiffZ[ 0 ];
-			sigmaDiff[ 1 ][ 2 ] = sigmaDiffZ[ 1 ];
-		}
+		final double[][] sigmaDiff = computeSigmaDiff( sigma1, sigma2, imageSigma, img.getNumDimensions(), img.getNumDimensions() == 3 ? img.getCalibration( 2 ) : 1 );
 
 		// compute difference of gaussian
-		final DifferenceOfGaussianReal1< FloatType > dog = new DifferenceOfGaussianReal1< FloatType >( img, oobsFactory, sigmaDiff[0], sigmaDiff[1], minInitialPeakValue, K_MIN1_INV );
-		dog.setKeepDoGImage( true );
-		dog.setNumThreads( Threads.numThreads() );
-		
-		if ( !dog.checkInput() || !dog.process() )
+		final Image< FloatType > dogImage;
+		final ReducedPrecisionDoG reducedDoG;
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > peakList;
+
+		if ( dogEngine == 2 && FloatImages.isArrayImage( img ) )
 		{
-			if ( debugLevel <= ViewStructure.DEBUG_ERRORONLY )
-				IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Cannot compute difference of gaussian for " + dog.getErrorMessage() );
-			
-			return new ArrayList< DifferenceOfGaussianPeak< FloatType > >();
+			// 16 bit gaussians and a half precision DoG, peak values and localization in float
+			dogImage = null;
+			reducedDoG = ReducedPrecisionDoG.computeDoG( img, sigmaDiff[ 0 ], sigmaDiff[ 1 ], K_MIN1_INV, numThreads );
+			peakList = reducedDoG.findPeaks( minInitialPeakValue, numThreads );
 		}
+		else if ( dogEngine == 1 && FloatImages.isArrayImage( img ) )
+		{
+			reducedDoG = null;
 
-		// remove all minima
-		final ArrayList< DifferenceOfGaussianPeak< FloatType > > peakList = dog.getPeaks();
-		for ( int i = peakList.size() - 1; i >= 0; --i )
+			// recursive gaussian, the runtime does not depend on the sigmas
+			dogImage = RecursiveGaussian.computeDoG( img, sigmaDiff[ 0 ], sigmaDiff[ 1 ], K_MIN1_INV, numThreads );
+			if ( DescriptorParameters.extremumFinder == 1 )
+				peakList = ExtremumFinder.findPeaks( dogImage, minInitialPeakValue, numThreads );
+			else
+				peakList = RecursiveGaussian.findPeaks( dogImage, minInitialPeakValue, numThreads );
+		}
+		else
 		{
-			if ( !findMin )
+			reducedDoG = null;
+
+			final DifferenceOfGaussianReal1< FloatType > dog;
+
+			if ( DescriptorParameters.extremumFinder == 1 )
+			{
+				final float minDoGPeakValue = minInitialPeakValue;
+
+				// the DoG image has the container of the input, the filters need an array
+				dog = new DifferenceOfGaussianReal1< FloatType >( img, oobsFactory, sigmaDiff[0], sigmaDiff[1], minInitialPeakValue, K_MIN1_INV )
+				{
+					@Override
+					public ArrayList< DifferenceOfGaussianPeak< FloatType > > findPeaks( final Image< FloatType > laPlace )
+					{
+						if ( FloatImages.isArrayImage( laPlace ) )
+							return ExtremumFinder.findPeaks( laPlace, minDoGPeakValue, getNumThreads() );
+						else
+							return super.findPeaks( laPlace );
+					}
+				};
+			}
+			else
 			{
-				if ( peakList.get( i ).isMin() )
-					peakList.remove( i );
+				dog = new DifferenceOfGaussianReal1< FloatType >( img, oobsFactory, sigmaDiff[0], sigmaDiff[1], minInitialPeakValue, K_MIN1_INV );
 			}
+
+			dog.setKeepDoGImage( true );
+			dog.setNumThreads( numThreads );
 			
-			if ( !findMax )
+			if ( !dog.checkInput() || !dog.process() )
 			{
-				if ( peakList.get( i ).isMax() )
-					peakList.remove( i );
+				if ( debugLevel <= ViewStructure.DEBUG_ERRORONLY )
+					IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Cannot compute difference of gaussian for " + dog.getErrorMessage() );
+				
+				return new ArrayList< DifferenceOfGaussianPeak< FloatType > >();
 			}
+
+			dogImage = dog.getDoGImage();
+			peakList = dog.getPeaks();
+		}
+
+		// remove all minima/maxima that are not wanted, in one pass keeping the order
+		int j = 0;
+
+		for ( int i = 0; i < peakList.size(); ++i )
+		{
+			final DifferenceOfGaussianPeak< FloatType > peak = peakList.get( i );
+
+			if ( ( !findMin && peak.isMin() ) || ( !findMax && peak.isMax() ) )
+				continue;
+
+			peakList.set( j++, peak );
 		}
 
+		peakList.subList( j, peakList.size() ).clear();
+
 		if ( localization == 1 )
 		{
-			final SubpixelLocalization< FloatType > spl = new SubpixelLocalization< FloatType >( dog.getDoGImage(), dog.getPeaks() );
-			spl.setAllowMaximaTolerance( true );
-			spl.setMaxNumMoves( 10 );
-			spl.setNumThreads( Threads.numThreads() );
-			
-			if ( !spl.checkInput() || !spl.process() )
+			int invalid = 0;
+
+			if ( reducedDoG != null )
 			{
-				if ( debugLevel <= ViewStructure.DEBUG_ERRORONLY )
-					IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Warning! Failed to compute subpixel localization " + spl.getErrorMessage() );
+				// peaks that cannot be localized are removed right away
+				invalid = QuadraticLocalization.localize( reducedDoG, reducedDoG.getDimensions(), peakList, maxNumMoves, true, numThreads );
+			}
+			else if ( DescriptorParameters.subpixelEngine == 1 && FloatImages.isArrayImage( dogImage ) )
+			{
+				final float[] dog = FloatImages.getArray( dogImage );
+
+				invalid = QuadraticLocalization.localize( new FloatAccess()
+				{
+					@Override
+					public float get( final int index ) { return dog[ index ]; }
+				}, dogImage.getDimensions(), peakList, maxNumMoves, true, numThreads );
+			}
+			else
+			{
+				final SubpixelLocalization< FloatType > spl = new SubpixelLocalization< FloatType >( dogImage, peakList );
+				spl.setAllowMaximaTolerance( true );
+				spl.setMaxNumMoves( maxNumMoves );
+				spl.setNumThreads( numThreads );
+				
+				if ( !spl.checkInput() || !spl.process() )
+				{
+					if ( debugLevel <= ViewStructure.DEBUG_ERRORONLY )
+						IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Warning! Failed to compute subpixel localization " + spl.getErrorMessage() );
+				}
+				
+				//dog.getDoGImage().getDisplay().setMinMax();
+				//ImageJFunctions.copyToImagePlus( dog.getDoGImage() ).show();
 			}
-			
-			//dog.getDoGImage().getDisplay().setMinMax();
-			//ImageJFunctions.copyToImagePlus( dog.getDoGImage() ).show();
-			dog.getDoGImage().close();
 				
 			int peakTooLow = 0;
-			int invalid = 0;
 			int extrema = 0;
 			
-			// remove entries that are too low
-			for ( int i = peakList.size() - 1; i >= 0; --i )
+			// remove entries that are too low, in one pass keeping the order
+			j = 0;
+
+			for ( int i = 0; i < peakList.size(); ++i )
 			{
 				final DifferenceOfGaussianPeak< FloatType > maximum = peakList.get( i );
 				
 				if ( !maximum.isValid() )
 					++invalid;
-				
-				if ( findMax )
-				{
-					if ( maximum.isMax() ) 
-					{
-						++extrema;
-						if ( Math.abs( maximum.getValue().getRealDouble() ) < minPeakValue )
-						{
-							peakList.remove( i );
-							++peakTooLow;
-						}
-					}
-				}
-				if ( findMin )
+
+				if ( ( findMax && maximum.isMax() ) || ( findMin && maximum.isMin() ) )
 				{
-					if ( maximum.isMin() ) 
+					++extrema;
+
+					if ( Math.abs( maximum.getValue().getRealDouble() ) < minPeakValue )
 					{
-						++extrema;
-						if ( Math.abs( maximum.getValue().getRealDouble() ) < minPeakValue )
-						{
-							peakList.remove( i );
-							++peakTooLow;
-						}
+						++peakTooLow;
+						continue;
 					}
 				}
+
+				peakList.set( j++, maximum );
 			}
+
+			peakList.subList( j, peakList.size() ).clear();
+
 			if ( debugLevel <= ViewStructure.DEBUG_ALL )
 			{
-				IOFunctions.println( "number of peaks: " + dog.getPeaks().size() );
+				IOFunctions.println( "number of peaks: " + peakList.size() );
 				IOFunctions.println( "invalid: " + invalid );
 				IOFunctions.println( "extrema: " + extrema );
 				IOFunctions.println( "peak to low: " + peakTooLow );
@@ -162,60 +236,57 @@ public class DetectionSegmentation
 		}
 		else if ( localization == 2 )
 		{
-			final int n = img.getNumDimensions();
-
-			final long[] min = new long[ n ];
-			final long[] max = new long[ n ];
-			final int[] p = new int[ n ];
-			final double[] loc = new double[ n ];
-
-			int countRemoveDistance = 0;
-			int countRemoveBorder = 0;
-
-			final RandomAccessible< net.imglib2.type.numeric.real.FloatType > imgLib2 = ImgLib1.wrapFloatToImgLib2( img );
-			
-			// gaussian fit (removes and adds the background after its done)
-			for ( int i = peakList.size() - 1; i >= 0; --i )
-			{
-				final DifferenceOfGaussianPeak< FloatType > maximum = peakList.get( i );
-
-				for ( int d = 0; d < n; ++d )
-					loc[ d ] = p[ d ] = maximum.getPosition( d );
-
-				if ( !getRangeForFit( min, max, region, p, img ) )
-				{
-					++countRemoveBorder;
-					peakList.remove( i );
-					continue;
-				}
+			// gaussian fit of all peaks in parallel, the image is not modified
+			final int[] removed = GaussianMaskFitEngine.localize( img, peakList, region, sigma, iterations, distanceThreshold, numThreads );
 
-				GaussianMaskFit.gaussianMaskFit( Views.interval( imgLib2, min, max ), loc, sigma, iterations );
-
-				double distance = 0;
-				for ( int d = 0; d < n; ++d )
-					distance += (loc[ d ] - p[ d ]) * (loc[ d ] - p[ d ]);
-				distance = Math.sqrt( distance );
-
-				if ( distance > distanceThreshold )
-				{
-					++countRemoveDistance;
-					peakList.remove( i );
-				}
-				else
-				{
-					for ( int d = 0; d < n; ++d )
-						maximum.setSubPixelLocationOffset( (float)loc[ d ] - p[ d ], d );
-				}
-			}
+			final int countRemoveBorder = removed[ 0 ];
+			final int countRemoveDistance = removed[ 1 ];
 
 			IJ.log( "Removed " + countRemoveBorder + " detections because the region was too close to the image boundary (try reducing the support region to reduce this number).");
 			IJ.log( "Removed " + countRemoveDistance + " detections because the Gaussian fit moved it by more than " + distanceThreshold + " pixels.");
 		}
+
+		// the DoG is not needed anymore (recycled if it came from the pool)
+		ImagePool.release( dogImage );
 		
 		return peakList;
 		
 	}
 
+	/**
+	 * Computes the sigmas that need to be applied to the image to achieve sigma1 and sigma2 (the image already has imageSigma),
+	 * sigmaZ is at least twice the image sigma
+	 * 
+	 * @param calibrationZ - the calibration of the image in z (ignored in 2d)
+	 * @return [ sigma1, sigma2 ][ x, y, z ]
+	 */
+	public static double[][] computeSigmaDiff( final float sigma1, final float sigma2, final float imageSigma, final int numDimensions, final float calibrationZ )
+	{
+		final float[] sigmaXY = new float[]{ sigma1, sigma2 };
+		final float[] sigmaDiffXY = computeSigmaDiff( sigmaXY, imageSigma );
+		
+		final float k = sigmaXY[ 1 ] / sigmaXY[ 0 ];
+		
+		final double[][] sigmaDiff = new double[ 2 ][ 3 ];
+		sigmaDiff[ 0 ][ 0 ] = sigmaDiffXY[ 0 ];
+		sigmaDiff[ 0 ][ 1 ] = sigmaDiffXY[ 0 ];
+		sigmaDiff[ 1 ][ 0 ] = sigmaDiffXY[ 1 ];
+		sigmaDiff[ 1 ][ 1 ] = sigmaDiffXY[ 1 ];
+		
+		// sigmaZ is at least twice the image sigma
+		if ( numDimensions == 3 )
+		{
+			final float sigma1Z = Math.max( imageSigma * 2, sigma1 / calibrationZ );
+			final float sigma2Z = sigma1Z * k;
+			final float[] sigmaZ = new float[]{ sigma1Z, sigma2Z };
+			final float[] sigmaDiffZ = computeSigmaDiff( sigmaZ, imageSigma );
+			sigmaDiff[ 0 ][ 2 ] = sigmaDiffZ[ 0 ];
+			sigmaDiff[ 1 ][ 2 ] = sigmaDiffZ[ 1 ];
+		}
+
+		return sigmaDiff;
+	}
+
 	public static boolean getRangeForFit( final long[] min, final long[] max, final int[] range, final int[] p, final Image<?> img )
 	{
 		for ( int d = 0; d < p.length; ++d )
@@ -0,0 +1,220 @@
+package process;
+
+import ij.IJ;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.outofbounds.OutOfBoundsStrategyFactory;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+/**
+ * Computes the difference of gaussian for large sigmas on a downsampled copy of the image. Every
+ * octave halves the image (2x2(x2) average) and the sigmas, as long as sigma1 stays at least minSigma
+ * pixels in the downsampled image. In 3d, z is only downsampled while the sigma in z is large enough as
+ * well. Each octave therefore reduces the work of the DoG by a factor of 4 (2d) to 8 (3d).
+ *
+ * The peaks are mapped back into full-resolution coordinates, a downsampled pixel x' covers the pixels
+ * [ x' * 2^o, (x'+1) * 2^o - 1 ], its center is at ( x' + 0.5 ) * 2^o - 0.5. The gaussian mask fit
+ * (localization == 2) is computed on the full-resolution image, the quadratic fit on the downsampled DoG.
+ *
+ * The downsampled image is assumed to have the same inherent blur (imageSigma) as the input, which
+ * is a slight underestimation, so for the same threshold a few more peaks than at full resolution
+ * might be found.
+ */
+public class DoGPyramid
+{
+	/**
+	 * @param minSigma - the minimal sigma1 (in pixels) in the downsampled image, at least 1
+	 * @param calibrationZ - the calibration in z as used by {@link DetectionSegmentation#computeSigmaDiff(float, float, float, int, float)}
+	 * @return the number of octaves for { x, y, (z) }
+	 */
+	public static int[] computeOctaves( final float sigma1, final float imageSigma, final int numDimensions, final float calibrationZ, final double minSigma )
+	{
+		final int[] octaves = new int[ numDimensions ];
+		final int octavesXY = computeOctaves( sigma1, minSigma );
+
+		octaves[ 0 ] = octaves[ 1 ] = octavesXY;
+
+		if ( numDimensions == 3 )
+			octaves[ 2 ] = Math.min( octavesXY, computeOctaves( Math.max( imageSigma * 2, sigma1 / calibrationZ ), minSigma ) );
+
+		return octaves;
+	}
+
+	protected static int computeOctaves( final double sigma, double minSigma )
+	{
+		minSigma = Math.max( 1, minSigma );
+
+		int o = 0;
+
+		while ( sigma / ( 1 << ( o + 1 ) ) >= minSigma )
+			++o;
+
+		return o;
+	}
+
+	/**
+	 * Same as DetectionSegmentation.extractBeadsLaPlaceImgLib, but the DoG is computed on a downsampled copy of the image.
+	 *
+	 * @param minSigma - the minimal sigma1 (in pixels) in the downsampled image, at least 1
+	 */
+	public static ArrayList< DifferenceOfGaussianPeak< FloatType > > extractBeadsLaPlaceImgLib(
+			final Image< FloatType > img,
+			final OutOfBoundsStrategyFactory< FloatType > oobsFactory,
+			final float imageSigma,
+			final float sigma1,
+			final float sigma2,
+			final float minPeakValue,
+			final float minInitialPeakValue,
+			final boolean findMax,
+			final boolean findMin,
+			final int localization,
+			final int iterations,
+			final double[] sigma,
+			final int[] region,
+			final int dogEngine,
+			final double minSigma,
+			final int numThreads,
+			final int debugLevel )
+	{
+		final int n = img.getNumDimensions();
+		final float calibrationZ = n == 3 ? img.getCalibration( 2 ) : 1;
+		final int[] octaves = computeOctaves( sigma1, imageSigma, n, calibrationZ, minSigma );
+
+		// nothing to gain or not array-backed
+		if ( octaves[ 0 ] == 0 || n < 2 || n > 3 || !FloatImages.isArrayImage( img ) )
+			return DetectionSegmentation.extractBeadsLaPlaceImgLib( img, oobsFactory, imageSigma, sigma1, sigma2, minPeakValue, minInitialPeakValue, findMax, findMin,
+					localization, iterations, sigma, region, dogEngine, numThreads, debugLevel );
+
+		// downsample octave by octave
+		final int[] dim = img.getDimensions().clone();
+		float[] data = FloatImages.getArray( img );
+
+		for ( int o = 0; o < octaves[ 0 ]; ++o )
+			for ( int d = 0; d < n; ++d )
+				if ( o < octaves[ d ] && dim[ d ] > 1 )
+				{
+					data = downsample( data, dim, d, numThreads );
+					dim[ d ] = ( dim[ d ] + 1 ) / 2;
+				}
+
+		final Image< FloatType > downsampled = ImagePool.leaseFloat( dim );
+		final float[] target = FloatImages.getArray( downsampled );
+		System.arraycopy( data, 0, target, 0, data.length );
+
+		// the sigma in z has to scale with the number of octaves in z
+		final float scaleXY = 1 << octaves[ 0 ];
+
+		if ( n == 3 )
+			downsampled.setCalibration( new float[]{ img.getCalibration( 0 ), img.getCalibration( 1 ), calibrationZ * ( 1 << octaves[ 2 ] ) / scaleXY } );
+		else
+			downsampled.setCalibration( new float[]{ img.getCalibration( 0 ), img.getCalibration( 1 ) } );
+
+		// the gaussian fit is done at full resolution
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaksDownsampled = DetectionSegmentation.extractBeadsLaPlaceImgLib( downsampled, oobsFactory, imageSigma,
+				sigma1 / scaleXY, sigma2 / scaleXY, minPeakValue, minInitialPeakValue, findMax, findMin, localization == 2 ? 0 : localization, iterations, sigma, region,
+				dogEngine, numThreads, debugLevel );
+
+		ImagePool.release( downsampled );
+
+		// map back into full resolution
+		final int[] fullDim = img.getDimensions();
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks = new ArrayList< DifferenceOfGaussianPeak< FloatType > >( peaksDownsampled.size() );
+
+		for ( final DifferenceOfGaussianPeak< FloatType > p : peaksDownsampled )
+		{
+			final int[] position = new int[ n ];
+			final float[] offset = new float[ n ];
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final float scale = 1 << octaves[ d ];
+				final float x = ( p.getSubPixelPosition( d ) + 0.5f ) * scale - 0.5f;
+
+				position[ d ] = Math.max( 0, Math.min( fullDim[ d ] - 1, Math.round( x ) ) );
+				offset[ d ] = x - position[ d ];
+			}
+
+			final DifferenceOfGaussianPeak< FloatType > peak = new DifferenceOfGaussianPeak< FloatType >( position, new FloatType( p.getValue().get() ), p.getPeakType() );
+
+			if ( localization == 1 )
+				for ( int d = 0; d < n; ++d )
+					peak.setSubPixelLocationOffset( offset[ d ], d );
+
+			peaks.add( peak );
+		}
+
+		if ( localization == 2 )
+		{
+			final int[] removed = GaussianMaskFitEngine.localize( img, peaks, region, sigma, iterations, DetectionSegmentation.distanceThreshold, numThreads );
+
+			IJ.log( "Removed " + removed[ 0 ] + " detections because the region was too close to the image boundary (try reducing the support region to reduce this number).");
+			IJ.log( "Removed " + removed[ 1 ] + " detections because the Gaussian fit moved it by more than " + DetectionSegmentation.distanceThreshold + " pixels.");
+		}
+
+		return peaks;
+	}
+
+	/**
+	 * Halves one dimension by averaging pairs of pixels, an odd last pixel is kept as it is
+	 *
+	 * @param data - the pixels in the order x + y*w + z*w*h
+	 * @param dim - the dimensions
+	 * @param d - the dimension to halve
+	 * @param numThreads - how many threads to use
+	 * @return the downsampled pixels
+	 */
+	public static float[] downsample( final float[] data, final int[] dim, final int d, final int numThreads )
+	{
+		int s = 1;
+		for ( int e = 0; e < d; ++e )
+			s *= dim[ e ];
+
+		final int stride = s;
+		final int length = dim[ d ];
+		final int newLength = ( length + 1 ) / 2;
+		final int numLines = data.length / length;
+		final int blockSize = stride * length;
+		final int newBlockSize = stride * newLength;
+
+		final float[] out = new float[ numLines * newLength ];
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numLines ) ) );
+		final int numChunks = threads.length;
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					final int myNumber = ai.getAndIncrement();
+
+					final int start = (int)( (long)numLines * myNumber / numChunks );
+					final int end = (int)( (long)numLines * ( myNumber + 1 ) / numChunks );
+
+					for ( int l = start; l < end; ++l )
+					{
+						final int offset = ( l / stride ) * blockSize + ( l % stride );
+						final int newOffset = ( l / stride ) * newBlockSize + ( l % stride );
+
+						for ( int i = 0; i < newLength; ++i )
+						{
+							final int i0 = 2 * i;
+							final int i1 = Math.min( i0 + 1, length - 1 );
+
+							out[ newOffset + i * stride ] = 0.5f * ( data[ offset + i0 * stride ] + data[ offset + i1 * stride ] );
+						}
+					}
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		return out;
+	}
+}
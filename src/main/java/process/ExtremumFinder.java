@@ -0,0 +1,268 @@
+package process;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+/**
+ * Finds the local minima and maxima of a DoG image with separable running max/min filters (van Herk /
+ * Gil-Werman, at most 3 comparisons per pixel and dimension for any window size) instead of scanning the
+ * 3^n - 1 neighbors of every pixel.
+ *
+ * A pixel is a maximum if it equals the max of its 3^n neighborhood (it is &gt;= all neighbors) and a
+ * minimum if it equals the min, which is the criterion of DifferenceOfGaussian.findPeaks and
+ * {@link RecursiveGaussian#findPeaks(FloatAccess, int[], float, int)}: pixels at the image border are skipped,
+ * as are pixels with |value| &lt; minPeakValue; a plateau reports all its pixels and a constant neighborhood is
+ * reported as a minimum. The peak set is the same, the peaks are ordered by location (z, y, x) like the
+ * peaks of RecursiveGaussian.findPeaks.
+ *
+ * The image is processed in slabs of planes (the last dimension) in parallel; every thread filters each
+ * plane once along the other dimensions into a ring of three planes and combines them along the last
+ * dimension, so only 6 planes per thread are needed in addition to the DoG.
+ */
+public class ExtremumFinder
+{
+	/**
+	 * @param dog - an array-backed DoG image
+	 * @param minPeakValue - the minimal absolute value of a peak
+	 * @param numThreads - how many threads to use
+	 * @return the minima and maxima
+	 */
+	public static ArrayList< DifferenceOfGaussianPeak< FloatType > > findPeaks( final Image< FloatType > dog, final float minPeakValue, final int numThreads )
+	{
+		return findPeaks( FloatImages.getArray( dog ), dog.getDimensions(), minPeakValue, numThreads );
+	}
+
+	/**
+	 * @param data - the DoG values in the order x + y*w + z*w*h
+	 * @param dim - the dimensions
+	 */
+	public static ArrayList< DifferenceOfGaussianPeak< FloatType > > findPeaks( final float[] data, final int[] dim, final float minPeakValue, final int numThreads )
+	{
+		final int n = dim.length;
+		final int numPlanes = dim[ n - 1 ];
+
+		int s = 1;
+		for ( int d = 0; d < n - 1; ++d )
+			s *= dim[ d ];
+
+		final int planeSize = s;
+
+		// only planes 1 ... numPlanes - 2 can contain peaks
+		final int numInner = Math.max( 0, numPlanes - 2 );
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numInner ) ) );
+		final int numChunks = threads.length;
+
+		final ArrayList< ArrayList< DifferenceOfGaussianPeak< FloatType > > > threadPeaks = new ArrayList< ArrayList< DifferenceOfGaussianPeak< FloatType > > >();
+
+		for ( int i = 0; i < numChunks; ++i )
+			threadPeaks.add( new ArrayList< DifferenceOfGaussianPeak< FloatType > >() );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					final int myNumber = ai.getAndIncrement();
+					final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks = threadPeaks.get( myNumber );
+
+					final int start = 1 + (int)( (long)numInner * myNumber / numChunks );
+					final int end = 1 + (int)( (long)numInner * ( myNumber + 1 ) / numChunks );
+
+					if ( start >= end )
+						return;
+
+					// the filtered planes p-1, p, p+1 at index p % 3
+					final float[][] maxPlanes = new float[ 3 ][ planeSize ];
+					final float[][] minPlanes = new float[ 3 ][ planeSize ];
+					final LineFilter filter = new LineFilter( dim, 1 );
+
+					filter.filterPlane( data, start - 1, planeSize, maxPlanes[ ( start - 1 ) % 3 ], minPlanes[ ( start - 1 ) % 3 ] );
+					filter.filterPlane( data, start, planeSize, maxPlanes[ start % 3 ], minPlanes[ start % 3 ] );
+
+					final int[] position = new int[ n ];
+
+					for ( int p = start; p < end; ++p )
+					{
+						filter.filterPlane( data, p + 1, planeSize, maxPlanes[ ( p + 1 ) % 3 ], minPlanes[ ( p + 1 ) % 3 ] );
+
+						final float[] max0 = maxPlanes[ ( p - 1 ) % 3 ], max1 = maxPlanes[ p % 3 ], max2 = maxPlanes[ ( p + 1 ) % 3 ];
+						final float[] min0 = minPlanes[ ( p - 1 ) % 3 ], min1 = minPlanes[ p % 3 ], min2 = minPlanes[ ( p + 1 ) % 3 ];
+						final int offset = p * planeSize;
+
+						// all pixels of the plane that are not at the border
+						for ( int d = 0; d < n - 1; ++d )
+							position[ d ] = 1;
+
+						position[ n - 1 ] = p;
+
+						if ( !isInside( position, dim, n - 1 ) )
+							continue;
+
+						do
+						{
+							int j = 0;
+							for ( int d = n - 2; d >= 0; --d )
+								j = j * dim[ d ] + position[ d ];
+
+							final float v = data[ offset + j ];
+
+							if ( Math.abs( v ) >= minPeakValue )
+							{
+								if ( v <= min0[ j ] && v <= min1[ j ] && v <= min2[ j ] )
+									peaks.add( new DifferenceOfGaussianPeak< FloatType >( position.clone(), new FloatType( v ), SpecialPoint.MIN ) );
+								else if ( v >= max0[ j ] && v >= max1[ j ] && v >= max2[ j ] )
+									peaks.add( new DifferenceOfGaussianPeak< FloatType >( position.clone(), new FloatType( v ), SpecialPoint.MAX ) );
+							}
+						}
+						while ( nextInner( position, dim, n - 1 ) );
+					}
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks = new ArrayList< DifferenceOfGaussianPeak< FloatType > >();
+
+		for ( final ArrayList< DifferenceOfGaussianPeak< FloatType > > p : threadPeaks )
+			peaks.addAll( p );
+
+		return peaks;
+	}
+
+	protected static boolean isInside( final int[] position, final int[] dim, final int numDimensions )
+	{
+		for ( int d = 0; d < numDimensions; ++d )
+			if ( position[ d ] < 1 || position[ d ] > dim[ d ] - 2 )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * moves to the next pixel that is not at the border (x fastest) in the first numDimensions dimensions
+	 */
+	protected static boolean nextInner( final int[] position, final int[] dim, final int numDimensions )
+	{
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			if ( ++position[ d ] <= dim[ d ] - 2 )
+				return true;
+
+			position[ d ] = 1;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Running max/min filters of window 2 * radius + 1 along lines (van Herk / Gil-Werman), with scratch
+	 * buffers for one thread. At the ends of a line the window is clipped.
+	 */
+	public static class LineFilter
+	{
+		final int[] dim;
+		final int radius, window;
+		final float[] line, g, h;
+
+		public LineFilter( final int[] dim, final int radius )
+		{
+			this.dim = dim;
+			this.radius = radius;
+			this.window = 2 * radius + 1;
+
+			int maxLength = 1;
+			for ( final int d : dim )
+				maxLength = Math.max( maxLength, d );
+
+			this.line = new float[ maxLength ];
+			this.g = new float[ maxLength ];
+			this.h = new float[ maxLength ];
+		}
+
+		/**
+		 * Filters one plane (the last dimension is fixed) along all other dimensions
+		 *
+		 * @param data - the image
+		 * @param plane - the index in the last dimension
+		 * @param planeSize - the number of pixels of a plane
+		 * @param max - will contain the max filtered plane
+		 * @param min - will contain the min filtered plane
+		 */
+		public void filterPlane( final float[] data, final int plane, final int planeSize, final float[] max, final float[] min )
+		{
+			final int n = dim.length;
+
+			System.arraycopy( data, plane * planeSize, max, 0, planeSize );
+			System.arraycopy( data, plane * planeSize, min, 0, planeSize );
+
+			int stride = 1;
+
+			for ( int d = 0; d < n - 1; ++d )
+			{
+				final int length = dim[ d ];
+				final int blockSize = stride * length;
+				final int numLines = planeSize / length;
+
+				if ( length > 1 )
+				{
+					for ( int l = 0; l < numLines; ++l )
+					{
+						final int offset = ( l / stride ) * blockSize + ( l % stride );
+
+						filterLine( max, offset, stride, length, true );
+						filterLine( min, offset, stride, length, false );
+					}
+				}
+
+				stride *= length;
+			}
+		}
+
+		/**
+		 * In-place running max (or min) of one line
+		 */
+		public void filterLine( final float[] data, final int offset, final int stride, final int length, final boolean isMax )
+		{
+			for ( int i = 0, j = offset; i < length; ++i, j += stride )
+				line[ i ] = data[ j ];
+
+			// forward within blocks of the window size
+			for ( int i = 0; i < length; ++i )
+				g[ i ] = ( i % window == 0 ) ? line[ i ] : ( isMax ? Math.max( g[ i - 1 ], line[ i ] ) : Math.min( g[ i - 1 ], line[ i ] ) );
+
+			// backward within blocks of the window size
+			for ( int i = length - 1; i >= 0; --i )
+				h[ i ] = ( i % window == window - 1 || i == length - 1 ) ? line[ i ] : ( isMax ? Math.max( h[ i + 1 ], line[ i ] ) : Math.min( h[ i + 1 ], line[ i ] ) );
+
+			for ( int i = 0, j = offset; i < length; ++i, j += stride )
+			{
+				final int a = i - radius;
+				final int b = i + radius;
+
+				if ( a >= 0 && b < length )
+				{
+					// a full window covers at most two blocks
+					data[ j ] = isMax ? Math.max( h[ a ], g[ b ] ) : Math.min( h[ a ], g[ b ] );
+				}
+				else
+				{
+					// clipped at the end of the line
+					float v = line[ Math.max( 0, a ) ];
+
+					for ( int k = Math.max( 0, a ) + 1; k <= Math.min( length - 1, b ); ++k )
+						v = isMax ? Math.max( v, line[ k ] ) : Math.min( v, line[ k ] );
+
+					data[ j ] = v;
+				}
+			}
+		}
+	}
+}
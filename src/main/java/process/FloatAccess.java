@@ -0,0 +1,10 @@
+package process;
+
+/**
+ * Read access to the pixels of an image in the order x + y*w + z*w*h, independent of how they are stored
+ * (e.g. float[] or half-precision short[], see {@link ReducedPrecisionDoG})
+ */
+public interface FloatAccess
+{
+	public float get( int index );
+}
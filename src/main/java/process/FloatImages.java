@@ -0,0 +1,98 @@
+package process;
+
+import mpicbg.imglib.container.array.Array;
+import mpicbg.imglib.container.basictypecontainer.array.FloatArray;
+import mpicbg.imglib.container.imageplus.ImagePlusContainer;
+import mpicbg.imglib.exception.ImgLibException;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+/**
+ * Direct access to the primitive storage of {@link Image}s of {@link FloatType} that
+ * are backed by an ArrayContainer, so that the performance critical loops do not have
+ * to go through cursors.
+ */
+public class FloatImages
+{
+	/**
+	 * The largest number of pixels of an array-backed image, ImgLib1 indexes the array with an int
+	 */
+	public static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	/**
+	 * @return the number of pixels, as long so that it does not overflow
+	 */
+	public static long numPixels( final int[] dim )
+	{
+		long numPixels = 1;
+
+		for ( final int d : dim )
+			numPixels *= d;
+
+		return numPixels;
+	}
+
+	/**
+	 * @return true if an image of this size can be backed by an ArrayContainer, otherwise it has to be planar
+	 */
+	public static boolean fitsInArray( final int[] dim )
+	{
+		return numPixels( dim ) <= MAX_ARRAY_SIZE;
+	}
+
+	/**
+	 * @param img - an {@link Image} created by an ArrayContainerFactory
+	 * @return the float[] that stores the pixels in the order x + y*w + z*w*h, or null if the image is not array-backed
+	 */
+	@SuppressWarnings("unchecked")
+	public static float[] getArray( final Image< FloatType > img )
+	{
+		if ( !( img.getContainer() instanceof Array ) )
+			return null;
+
+		final Array< FloatType, FloatArray > container = (Array< FloatType, FloatArray >)img.getContainer();
+
+		return container.update( null ).getCurrentStorageArray();
+	}
+
+	/**
+	 * @param img - the image
+	 * @return true if the pixels can be accessed with {@link #getArray(Image)}
+	 */
+	public static boolean isArrayImage( final Image< FloatType > img )
+	{
+		return img.getContainer() instanceof Array;
+	}
+
+	/**
+	 * @param img - an array-backed image or an image created by an ImagePlusContainerFactory (one array per plane)
+	 * @param z - the plane (0 in 2d)
+	 * @return the float[] that contains the pixels of plane z starting at {@link #getPlaneOffset(Image, int)}
+	 */
+	public static float[] getPlane( final Image< FloatType > img, final int z )
+	{
+		if ( !( img.getContainer() instanceof ImagePlusContainer ) )
+			return getArray( img );
+
+		try
+		{
+			return (float[])( (ImagePlusContainer< ?, ? >)img.getContainer() ).getImagePlus().getStack().getPixels( z + 1 );
+		}
+		catch ( ImgLibException e )
+		{
+			// cannot happen for FloatType, it is backed by a FloatImagePlus
+			throw new RuntimeException( "Float image has no ImageJ type: " + e );
+		}
+	}
+
+	/**
+	 * @return the index of the first pixel of plane z in {@link #getPlane(Image, int)}
+	 */
+	public static int getPlaneOffset( final Image< FloatType > img, final int z )
+	{
+		if ( img.getContainer() instanceof ImagePlusContainer )
+			return 0;
+		else
+			return z * img.getDimension( 0 ) * img.getDimension( 1 );
+	}
+}
@@ -0,0 +1,312 @@
+package process;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.imglib.wrapper.ImgLib1;
+import net.imglib2.RandomAccess;
+
+/**
+ * Thread-safe version of {@link GaussianMaskFit} that localizes many peaks in parallel.
+ *
+ * Every thread owns one instance with scratch buffers for the patch around a peak and for the
+ * gaussian weights, so nothing is allocated per peak. The background is removed from the copy
+ * of the patch, the input image is only read. The gaussian mask is separable, so per iteration
+ * only sum( region[ d ] ) exponentials are computed instead of n * prod( region[ d ] ).
+ *
+ * Differences to calling GaussianMaskFit.gaussianMaskFit for every peak:
+ *
+ * - the patch, the background and the mask are kept in double, GaussianMaskFit stores the background-corrected
+ *   patch and the mask as float, so the locations differ by float rounding (~1e-5 px)
+ * - a fit that does not converge (no signal in the patch, the location is NaN) is removed like a peak that moved
+ *   more than distanceThreshold, the sequential code kept it because ( NaN &gt; distanceThreshold ) is false
+ * - the input image is not modified, GaussianMaskFit subtracts and adds the background in place, which can
+ *   change the pixels by float rounding
+ */
+public class GaussianMaskFitEngine
+{
+	final int n;
+	final int[] size;
+	final double[] two_sq_sigma;
+	final int iterations;
+
+	// scratch buffers, one engine per thread
+	final double[] patch;
+	final double[][] weights;
+	final long[] min;
+	final int[] position;
+	final double[] sumLocSN;
+
+	/**
+	 * @param n - the number of dimensions
+	 * @param region - the size of the patch that is fitted, an odd region[ d ] is centered on the peak
+	 * @param sigma - the sigma of the gaussian mask
+	 * @param iterations - how many iterations
+	 */
+	public GaussianMaskFitEngine( final int n, final int[] region, final double[] sigma, final int iterations )
+	{
+		this.n = n;
+
+		// GaussianMaskFit always computes at least one iteration
+		this.iterations = Math.max( 1, iterations );
+
+		this.size = new int[ n ];
+		this.two_sq_sigma = new double[ n ];
+		this.weights = new double[ n ][];
+
+		int numPixels = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			size[ d ] = ( region[ d ] / 2 ) * 2 + 1;
+			two_sq_sigma[ d ] = 2 * sigma[ d ] * sigma[ d ];
+			weights[ d ] = new double[ size[ d ] ];
+			numPixels *= size[ d ];
+		}
+
+		this.patch = new double[ numPixels ];
+		this.min = new long[ n ];
+		this.position = new int[ n ];
+		this.sumLocSN = new double[ n ];
+	}
+
+	/**
+	 * Localizes all peaks in parallel, peaks whose region is not completely inside the image or that moved more
+	 * than distanceThreshold are removed from the list (the order of the remaining peaks is preserved).
+	 *
+	 * @param img - the image, it is not modified
+	 * @param peakList - the peaks, their subpixel offset is set
+	 * @param region - the size of the patch that is fitted
+	 * @param sigma - the sigma of the gaussian mask
+	 * @param iterations - how many iterations
+	 * @param distanceThreshold - the maximal distance a peak may move
+	 * @param numThreads - how many threads to use
+	 * @return { removed at the border, removed because of the distance }
+	 */
+	public static int[] localize( final Image< FloatType > img, final ArrayList< DifferenceOfGaussianPeak< FloatType > > peakList, final int[] region,
+			final double[] sigma, final int iterations, final double distanceThreshold, final int numThreads )
+	{
+		final int n = img.getNumDimensions();
+		final int[] dim = img.getDimensions();
+		final int numPeaks = peakList.size();
+
+		// 0 == valid, 1 == too close to the border, 2 == moved too far
+		final byte[] status = new byte[ numPeaks ];
+
+		final float[] data = FloatImages.getArray( img );
+		final net.imglib2.RandomAccessible< net.imglib2.type.numeric.real.FloatType > imgLib2 = data == null ? ImgLib1.wrapFloatToImgLib2( img ) : null;
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numPeaks ) ) );
+		final int numChunks = threads.length;
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					final int myNumber = ai.getAndIncrement();
+
+					final GaussianMaskFitEngine engine = new GaussianMaskFitEngine( n, region, sigma, iterations );
+					final RandomAccess< net.imglib2.type.numeric.real.FloatType > ra = imgLib2 == null ? null : imgLib2.randomAccess();
+					final double[] loc = new double[ n ];
+
+					final int start = (int)( (long)numPeaks * myNumber / numChunks );
+					final int end = (int)( (long)numPeaks * ( myNumber + 1 ) / numChunks );
+
+					for ( int i = start; i < end; ++i )
+					{
+						final DifferenceOfGaussianPeak< FloatType > maximum = peakList.get( i );
+
+						if ( !engine.setPatch( maximum, dim, data, ra ) )
+						{
+							status[ i ] = 1;
+							continue;
+						}
+
+						for ( int d = 0; d < n; ++d )
+							loc[ d ] = maximum.getPosition( d );
+
+						engine.fit( loc );
+
+						double distance = 0;
+						for ( int d = 0; d < n; ++d )
+							distance += ( loc[ d ] - maximum.getPosition( d ) ) * ( loc[ d ] - maximum.getPosition( d ) );
+						distance = Math.sqrt( distance );
+
+						// a fit without signal does not converge (NaN)
+						if ( !( distance <= distanceThreshold ) )
+						{
+							status[ i ] = 2;
+						}
+						else
+						{
+							for ( int d = 0; d < n; ++d )
+								maximum.setSubPixelLocationOffset( (float)loc[ d ] - maximum.getPosition( d ), d );
+						}
+					}
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		// compact the list keeping the order
+		int countRemoveBorder = 0;
+		int countRemoveDistance = 0;
+		int j = 0;
+
+		for ( int i = 0; i < numPeaks; ++i )
+		{
+			if ( status[ i ] == 0 )
+				peakList.set( j++, peakList.get( i ) );
+			else if ( status[ i ] == 1 )
+				++countRemoveBorder;
+			else
+				++countRemoveDistance;
+		}
+
+		peakList.subList( j, numPeaks ).clear();
+
+		return new int[]{ countRemoveBorder, countRemoveDistance };
+	}
+
+	/**
+	 * Copies the patch around the peak into the scratch buffer and removes the background (the mean)
+	 *
+	 * @param dim - the dimensions of the image
+	 * @param data - the pixels of an array image or null
+	 * @param ra - a random access if data is null
+	 * @return false if the patch is not completely inside the image
+	 */
+	protected boolean setPatch( final DifferenceOfGaussianPeak< FloatType > peak, final int[] dim, final float[] data,
+			final RandomAccess< net.imglib2.type.numeric.real.FloatType > ra )
+	{
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = peak.getPosition( d ) - size[ d ] / 2;
+
+			if ( min[ d ] < 0 || min[ d ] + size[ d ] - 1 >= dim[ d ] )
+				return false;
+		}
+
+		double sum = 0;
+
+		if ( data != null )
+		{
+			final int w = dim[ 0 ];
+			final int h = dim[ 1 ];
+			final int depth = n > 2 ? size[ 2 ] : 1;
+			final int z0 = n > 2 ? (int)min[ 2 ] : 0;
+
+			int k = 0;
+
+			for ( int z = 0; z < depth; ++z )
+				for ( int y = 0; y < size[ 1 ]; ++y )
+				{
+					int index = (int)( ( (long)( z0 + z ) * h + min[ 1 ] + y ) * w + min[ 0 ] );
+
+					for ( int x = 0; x < size[ 0 ]; ++x )
+					{
+						final double v = data[ index++ ];
+						patch[ k++ ] = v;
+						sum += v;
+					}
+				}
+		}
+		else
+		{
+			for ( int d = 0; d < n; ++d )
+				position[ d ] = 0;
+
+			for ( int k = 0; k < patch.length; ++k )
+			{
+				for ( int d = 0; d < n; ++d )
+					ra.setPosition( min[ d ] + position[ d ], d );
+
+				final double v = ra.get().get();
+				patch[ k ] = v;
+				sum += v;
+
+				next( position );
+			}
+		}
+
+		// remove background in the copy
+		final double bg = sum / patch.length;
+
+		for ( int k = 0; k < patch.length; ++k )
+			patch[ k ] -= bg;
+
+		return true;
+	}
+
+	/**
+	 * Runs the iterations of the gaussian mask fit on the current patch
+	 *
+	 * @param location - the initial location in image coordinates, will contain the result
+	 */
+	protected void fit( final double[] location )
+	{
+		for ( int i = 0; i < iterations; ++i )
+		{
+			// the separable gaussian mask
+			for ( int d = 0; d < n; ++d )
+			{
+				final double[] w = weights[ d ];
+
+				for ( int k = 0; k < w.length; ++k )
+				{
+					final double x = location[ d ] - ( min[ d ] + k );
+					w[ k ] = Math.exp( -( x * x ) / two_sq_sigma[ d ] );
+				}
+			}
+
+			// compute the sums
+			double sumSN = 0;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				sumLocSN[ d ] = 0;
+				position[ d ] = 0;
+			}
+
+			for ( int k = 0; k < patch.length; ++k )
+			{
+				double mask = 1;
+
+				for ( int d = 0; d < n; ++d )
+					mask *= weights[ d ][ position[ d ] ];
+
+				final double signalmask = patch[ k ] * mask;
+
+				sumSN += signalmask;
+
+				for ( int d = 0; d < n; ++d )
+					sumLocSN[ d ] += ( min[ d ] + position[ d ] ) * signalmask;
+
+				next( position );
+			}
+
+			for ( int d = 0; d < n; ++d )
+				location[ d ] = sumLocSN[ d ] / sumSN;
+		}
+	}
+
+	/**
+	 * moves the position within the patch one pixel forward (x fastest)
+	 */
+	final protected void next( final int[] position )
+	{
+		for ( int d = 0; d < n; ++d )
+		{
+			if ( ++position[ d ] < size[ d ] )
+				return;
+
+			position[ d ] = 0;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package process;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import mpicbg.imglib.container.ContainerFactory;
+import mpicbg.imglib.container.array.ArrayContainerFactory;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.type.Type;
+import mpicbg.imglib.type.numeric.integer.UnsignedByteType;
+import mpicbg.imglib.type.numeric.integer.UnsignedShortType;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import plugin.DescriptorParameters;
+
+/**
+ * Recycles images of the same type, container and size, e.g. the normalized copy and the DoG of every
+ * timepoint during detection or the input and output of every channel/timepoint during fusion.
+ *
+ * Images are leased with {@link #lease(Type, ContainerFactory, int[])} and given back with
+ * {@link #release(Image)}. A leased image contains arbitrary values, it has to be overwritten completely.
+ * Released images are kept while the pool holds at most DescriptorParameters.imagePoolMegabytes,
+ * otherwise (and for images that were not leased) release closes the image. With a capacity of 0 the
+ * pool only counts and does not keep a reference to the leased images, so an image that is never
+ * released is simply garbage collected. With a capacity &gt;0 every leased image must be released.
+ *
+ * All methods are thread-safe.
+ */
+public class ImagePool
+{
+	final static HashMap< String, ArrayDeque< Image< ? > > > free = new HashMap< String, ArrayDeque< Image< ? > > >();
+	final static IdentityHashMap< Image< ? >, String > leased = new IdentityHashMap< Image< ? >, String >();
+	final static HashMap< String, Long > bytesPerKey = new HashMap< String, Long >();
+
+	static long pooledBytes = 0;
+	static long hits = 0, misses = 0, discarded = 0;
+
+	/**
+	 * @return an array-backed float image of this size
+	 */
+	public static Image< FloatType > leaseFloat( final int[] dim )
+	{
+		return lease( new FloatType(), new ArrayContainerFactory(), dim );
+	}
+
+	/**
+	 * @return an image of this type, container and size, either recycled or new
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static < T extends Type< T > > Image< T > lease( final T type, final ContainerFactory containerFactory, final int[] dim )
+	{
+		final String key = type.getClass().getName() + "@" + containerFactory.getClass().getName() + Arrays.toString( dim );
+
+		synchronized ( ImagePool.class )
+		{
+			final ArrayDeque< Image< ? > > queue = free.get( key );
+
+			if ( queue != null && !queue.isEmpty() )
+			{
+				final Image< T > img = (Image< T >)queue.pop();
+
+				pooledBytes -= bytesPerKey.get( key );
+				leased.put( img, key );
+				++hits;
+
+				return img;
+			}
+
+			++misses;
+		}
+
+		final Image< T > img = new ImageFactory< T >( type, containerFactory ).createImage( dim.clone() );
+
+		// nothing is pooled, release closes the image
+		if ( getCapacity() <= 0 )
+			return img;
+
+		synchronized ( ImagePool.class )
+		{
+			leased.put( img, key );
+
+			if ( !bytesPerKey.containsKey( key ) )
+				bytesPerKey.put( key, numBytes( type, dim ) );
+		}
+
+		return img;
+	}
+
+	/**
+	 * Gives an image back, it must not be used afterwards. Images that were not leased from the pool are closed.
+	 */
+	public static void release( final Image< ? > img )
+	{
+		if ( img == null )
+			return;
+
+		synchronized ( ImagePool.class )
+		{
+			final String key = leased.remove( img );
+
+			if ( key != null )
+			{
+				final long bytes = bytesPerKey.get( key );
+
+				if ( pooledBytes + bytes <= getCapacity() )
+				{
+					ArrayDeque< Image< ? > > queue = free.get( key );
+
+					if ( queue == null )
+					{
+						queue = new ArrayDeque< Image< ? > >();
+						free.put( key, queue );
+					}
+
+					queue.push( img );
+					pooledBytes += bytes;
+
+					return;
+				}
+
+				++discarded;
+			}
+		}
+
+		img.close();
+	}
+
+	/**
+	 * Closes all pooled images, the statistics are kept
+	 */
+	public static synchronized void clear()
+	{
+		for ( final ArrayDeque< Image< ? > > queue : free.values() )
+			for ( final Image< ? > img : queue )
+				img.close();
+
+		free.clear();
+		pooledBytes = 0;
+	}
+
+	public static synchronized void resetStatistics()
+	{
+		hits = misses = discarded = 0;
+	}
+
+	public static synchronized long getHits() { return hits; }
+	public static synchronized long getMisses() { return misses; }
+
+	/**
+	 * @return a summary of hits, misses and the current size of the pool
+	 */
+	public static synchronized String getStatistics()
+	{
+		final long total = hits + misses;
+
+		return "Image pool: " + hits + " hits, " + misses + " misses (" + ( total == 0 ? 0 : Math.round( 100.0 * hits / total ) ) + "% reused), " +
+			discarded + " discarded, " + ( pooledBytes / ( 1024 * 1024 ) ) + " of " + ( getCapacity() / ( 1024 * 1024 ) ) + " MB pooled";
+	}
+
+	protected static long getCapacity()
+	{
+		return (long)DescriptorParameters.imagePoolMegabytes * 1024l * 1024l;
+	}
+
+	protected static long numBytes( final Type< ? > type, final int[] dim )
+	{
+		long numPixels = 1;
+
+		for ( final int d : dim )
+			numPixels *= d;
+
+		if ( type instanceof UnsignedByteType )
+			return numPixels;
+		else if ( type instanceof UnsignedShortType )
+			return numPixels * 2;
+		else if ( type instanceof FloatType )
+			return numPixels * 4;
+		else
+			return numPixels * 8;
+	}
+}
@@ -0,0 +1,344 @@
+package process;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A {@link VirtualStack} on an uncompressed TIFF or raw file that is memory-mapped instead of read into the heap.
+ *
+ * The file is mapped read-only in regions of up to 2 GB, every plane is a view on its bytes in a region, {@link #getProcessor(int)} copies only the
+ * requested plane into a new processor; the operating system pages the file in and out as needed. An
+ * {@link ImagePlus} of this stack can be used for the registration and fusion like any other image (all
+ * pixels are accessed through imp.getStack().getProcessor()), so series larger than the RAM can be registered.
+ *
+ * From the menu: Plugins &gt; Registration &gt; Open memory-mapped TIFF ({@link plugin.Open_Mapped_Stack}),
+ * from a macro: call( "process.MappedStack.show", path );
+ */
+public class MappedStack extends VirtualStack
+{
+	final int fileType;
+	final ByteOrder byteOrder;
+	final ByteBuffer[] planes;
+
+	protected MappedStack( final int width, final int height, final int fileType, final boolean intelByteOrder, final ByteBuffer[] planes, final String path )
+	{
+		super( width, height, null, path );
+
+		this.fileType = fileType;
+		this.byteOrder = intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		this.planes = planes;
+	}
+
+	/**
+	 * Opens an uncompressed TIFF file (single or multiple IFDs, e.g. written by ImageJ), the hyperstack
+	 * dimensions and calibration are taken from the ImageJ description if present
+	 */
+	public static ImagePlus openTiff( final File file ) throws IOException
+	{
+		final FileInfo[] info = new TiffDecoder( file.getParent() == null ? "" : file.getParent() + File.separator, file.getName() ).getTiffInfo();
+
+		if ( info == null || info.length == 0 )
+			throw new IOException( "Not a TIFF file: " + file );
+
+		final FileInfo fi = info[ 0 ];
+
+		for ( final FileInfo f : info )
+		{
+			if ( f.compression > FileInfo.COMPRESSION_NONE )
+				throw new IOException( "Compressed TIFF files cannot be memory-mapped: " + file );
+
+			if ( f.width != fi.width || f.height != fi.height || f.fileType != fi.fileType )
+				throw new IOException( "All planes of a memory-mapped TIFF must have the same size and type: " + file );
+
+			if ( f.stripOffsets != null )
+				for ( int s = 1; s < f.stripOffsets.length; ++s )
+					if ( f.stripOffsets[ s ] != f.stripOffsets[ s - 1 ] + f.stripLengths[ s - 1 ] )
+						throw new IOException( "The strips of a memory-mapped TIFF must be contiguous: " + file );
+		}
+
+		// ImageJ stacks are described by the first IFD only, others have one IFD per plane
+		final ArrayList< Long > offsets = new ArrayList< Long >();
+		final long planeBytes = (long)fi.width * fi.height * bytesPerPixel( fi.fileType );
+
+		for ( final FileInfo f : info )
+			for ( int k = 0; k < Math.max( 1, f.nImages ); ++k )
+				offsets.add( f.getOffset() + k * ( planeBytes + f.gapBetweenImages ) );
+
+		final MappedStack stack = map( file, fi.width, fi.height, fi.fileType, fi.intelByteOrder, offsets );
+		final ImagePlus imp = new ImagePlus( file.getName(), stack );
+
+		setDimensions( imp, fi.description, offsets.size() );
+		setCalibration( imp, fi );
+		setSigned16BitCalibration( imp, fi.fileType );
+
+		return imp;
+	}
+
+	/**
+	 * Opens a raw file of equally sized planes
+	 *
+	 * @param fileType - FileInfo.GRAY8, GRAY16_UNSIGNED, GRAY16_SIGNED or GRAY32_FLOAT
+	 * @param offset - the position of the first plane in the file
+	 * @param gap - the number of bytes between two planes
+	 */
+	public static ImagePlus openRaw( final File file, final int width, final int height, final int numPlanes, final int fileType,
+			final long offset, final long gap, final boolean intelByteOrder ) throws IOException
+	{
+		final long planeBytes = (long)width * height * bytesPerPixel( fileType );
+		final ArrayList< Long > offsets = new ArrayList< Long >();
+
+		for ( int k = 0; k < numPlanes; ++k )
+			offsets.add( offset + k * ( planeBytes + gap ) );
+
+		final ImagePlus imp = new ImagePlus( file.getName(), map( file, width, height, fileType, intelByteOrder, offsets ) );
+		setSigned16BitCalibration( imp, fileType );
+
+		return imp;
+	}
+
+	/**
+	 * Opens and shows a memory-mapped TIFF, for macros
+	 *
+	 * @return the title of the image or an empty string if it cannot be opened
+	 */
+	public static String show( final String path )
+	{
+		try
+		{
+			final ImagePlus imp = openTiff( new File( path ) );
+			imp.show();
+			return imp.getTitle();
+		}
+		catch ( IOException e )
+		{
+			IJ.log( "Cannot memory-map '" + path + "': " + e.getMessage() );
+			return "";
+		}
+	}
+
+	/**
+	 * The largest region of the file that is mapped at once
+	 */
+	final static long maxRegionBytes = Integer.MAX_VALUE;
+
+	/**
+	 * Maps the planes in a few large regions instead of one mapping per plane (the number of mappings of a process is
+	 * limited, e.g. vm.max_map_count = 65530 on Linux), every plane is a view on the region that contains it
+	 */
+	protected static MappedStack map( final File file, final int width, final int height, final int fileType, final boolean intelByteOrder,
+			final ArrayList< Long > offsets ) throws IOException
+	{
+		final long planeBytes = (long)width * height * bytesPerPixel( fileType );
+
+		if ( planeBytes > maxRegionBytes )
+			throw new IOException( "A plane is too large to be memory-mapped: " + file );
+
+		final ByteBuffer[] planes = new ByteBuffer[ offsets.size() ];
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+			final long fileSize = channel.size();
+
+			// the strip offsets of a TIFF are not necessarily in order
+			for ( final long offset : offsets )
+				if ( offset < 0 || offset + planeBytes > fileSize )
+					throw new IOException( "A plane at offset " + offset + " is outside of the file: " + file );
+
+			// the planes in the order of their offset
+			final Integer[] order = new Integer[ planes.length ];
+			for ( int i = 0; i < order.length; ++i )
+				order[ i ] = i;
+
+			Arrays.sort( order, new Comparator< Integer >()
+			{
+				@Override
+				public int compare( final Integer a, final Integer b ) { return Long.compare( offsets.get( a ), offsets.get( b ) ); }
+			});
+
+			// the mappings stay valid after the file is closed
+			MappedByteBuffer region = null;
+			long regionStart = 0;
+
+			for ( final int i : order )
+			{
+				final long offset = offsets.get( i );
+
+				if ( region == null || offset + planeBytes > regionStart + region.capacity() )
+				{
+					regionStart = offset;
+					region = channel.map( FileChannel.MapMode.READ_ONLY, regionStart, Math.min( maxRegionBytes, fileSize - regionStart ) );
+				}
+
+				final ByteBuffer plane = region.duplicate();
+				plane.position( (int)( offset - regionStart ) );
+				plane.limit( (int)( offset - regionStart + planeBytes ) );
+
+				planes[ i ] = plane.slice();
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		return new MappedStack( width, height, fileType, intelByteOrder, planes, file.getAbsolutePath() );
+	}
+
+	/**
+	 * @param n - the plane (1-based)
+	 * @return a new processor with a copy of the plane, the mapping is shared and only read so this is thread-safe
+	 */
+	@Override
+	public ImageProcessor getProcessor( final int n )
+	{
+		final ByteBuffer buffer = planes[ n - 1 ].duplicate().order( byteOrder );
+		final int w = getWidth();
+		final int h = getHeight();
+
+		switch ( fileType )
+		{
+			case FileInfo.GRAY8:
+			{
+				final byte[] pixels = new byte[ w * h ];
+				buffer.get( pixels );
+				return new ByteProcessor( w, h, pixels, null );
+			}
+			case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY16_SIGNED:
+			{
+				final short[] pixels = new short[ w * h ];
+				buffer.asShortBuffer().get( pixels );
+
+				// the same as ImageJ does when opening signed 16 bit images
+				if ( fileType == FileInfo.GRAY16_SIGNED )
+					for ( int i = 0; i < pixels.length; ++i )
+						pixels[ i ] = (short)( pixels[ i ] + 32768 );
+
+				return new ShortProcessor( w, h, pixels, null );
+			}
+			default:
+			{
+				final float[] pixels = new float[ w * h ];
+				buffer.asFloatBuffer().get( pixels );
+				return new FloatProcessor( w, h, pixels, null );
+			}
+		}
+	}
+
+	@Override
+	public int getSize() { return planes.length; }
+
+	@Override
+	public String getSliceLabel( final int n ) { return null; }
+
+	@Override
+	public int getBitDepth()
+	{
+		return fileType == FileInfo.GRAY8 ? 8 : fileType == FileInfo.GRAY32_FLOAT ? 32 : 16;
+	}
+
+	protected static int bytesPerPixel( final int fileType ) throws IOException
+	{
+		switch ( fileType )
+		{
+			case FileInfo.GRAY8: return 1;
+			case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY16_SIGNED: return 2;
+			case FileInfo.GRAY32_FLOAT: return 4;
+			default: throw new IOException( "Only 8 bit, 16 bit and 32 bit float images can be memory-mapped." );
+		}
+	}
+
+	/**
+	 * Reads channels, slices and frames from the ImageJ description (e.g. "channels=2\nslices=10\nframes=5")
+	 */
+	protected static void setDimensions( final ImagePlus imp, final String description, final int numPlanes )
+	{
+		final int c = getInt( description, "channels=", 1 );
+		final int z = getInt( description, "slices=", 1 );
+		final int t = getInt( description, "frames=", 1 );
+
+		if ( c * z * t == numPlanes )
+		{
+			imp.setDimensions( c, z, t );
+			imp.setOpenAsHyperStack( c * z * t > Math.max( Math.max( c, z ), t ) );
+		}
+	}
+
+	protected static void setCalibration( final ImagePlus imp, final FileInfo fi )
+	{
+		final Calibration cal = imp.getCalibration();
+
+		if ( fi.pixelWidth > 0 )
+			cal.pixelWidth = fi.pixelWidth;
+
+		if ( fi.pixelHeight > 0 )
+			cal.pixelHeight = fi.pixelHeight;
+
+		cal.pixelDepth = getDouble( fi.description, "spacing=", fi.pixelDepth > 0 ? fi.pixelDepth : 1 );
+
+		if ( fi.unit != null )
+			cal.setUnit( fi.unit );
+	}
+
+	/**
+	 * Signed 16 bit planes are stored with an offset of 32768 (see {@link #getProcessor(int)}), the calibration
+	 * function maps them back to the signed values, the same as ImageJ does when opening them
+	 */
+	protected static void setSigned16BitCalibration( final ImagePlus imp, final int fileType )
+	{
+		if ( fileType == FileInfo.GRAY16_SIGNED )
+			imp.getCalibration().setSigned16BitCalibration();
+	}
+
+	protected static int getInt( final String description, final String key, final int defaultValue )
+	{
+		return (int)Math.round( getDouble( description, key, defaultValue ) );
+	}
+
+	protected static double getDouble( final String description, final String key, final double defaultValue )
+	{
+		if ( description == null )
+			return defaultValue;
+
+		final int start = description.indexOf( key );
+
+		if ( start < 0 )
+			return defaultValue;
+
+		int end = description.indexOf( '\n', start );
+
+		if ( end < 0 )
+			end = description.length();
+
+		try
+		{
+			return Double.parseDouble( description.substring( start + key.length(), end ).trim() );
+		}
+		catch ( NumberFormatException e )
+		{
+			return defaultValue;
+		}
+	}
+}
@@ -18,17 +18,17 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.imglib2.util.Util;
-import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
 import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.container.ContainerFactory;
 import mpicbg.imglib.container.array.ArrayContainerFactory;
-import mpicbg.imglib.cursor.LocalizableCursor;
-import mpicbg.imglib.cursor.array.ArrayCursor;
+import mpicbg.imglib.container.imageplus.ImagePlusContainerFactory;
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.image.ImageFactory;
 import mpicbg.imglib.multithreading.SimpleMultiThreading;
@@ -41,6 +41,7 @@ import mpicbg.models.InterpolatedAffineModel2D;
 import mpicbg.models.InterpolatedAffineModel3D;
 import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.Model;
+import mpicbg.models.NoninvertibleModelException;
 import mpicbg.models.NotEnoughDataPointsException;
 import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
@@ -58,10 +59,10 @@ import mpicbg.pointdescriptor.model.TranslationInvariantRigidModel2D;
 import mpicbg.pointdescriptor.model.TranslationInvariantRigidModel3D;
 import mpicbg.pointdescriptor.similarity.SimilarityMeasure;
 import mpicbg.pointdescriptor.similarity.SquareDistance;
-import mpicbg.spim.registration.ViewDataBeads;
 import mpicbg.spim.registration.ViewStructure;
 import mpicbg.spim.registration.bead.BeadRegistration;
 import plugin.DescriptorParameters;
+import spim.Threads;
 import plugin.Descriptor_based_registration;
 import plugin.Descriptor_based_series_registration;
 
@@ -91,9 +92,12 @@ public class Matching
 
 		if ( !params.reApply )
 		{
+			// choose the threshold from the first image if wanted, its peaks are reused if possible
+			final ArrayList<DifferenceOfGaussianPeak<FloatType>> estimatePeaks = ThresholdEstimation.isEnabled() ? estimateThreshold( imp1, params.channel1, 0, params, null ) : null;
+
 			// get the peaks
-			ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks1 = extractCandidates( imp1, params.channel1, 0, params, null );
-			ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks2 = extractCandidates( imp2, params.channel2, 0, params, null );
+			PeakTable peaks1 = extractCandidateTable( imp1, params.channel1, 0, params, null, Threads.numThreads(), computeCropBox( imp1, params.roi1, null, params ), estimatePeaks );
+			PeakTable peaks2 = extractCandidateTable( imp2, params.channel2, 0, params, null, Threads.numThreads(), computeCropBox( imp2, params.roi2, null, params ) );
 	
 			// filter for ROI
 			final int size1 = peaks1.size();
@@ -222,7 +226,7 @@ public class Matching
 		if ( !params.reApply )
 		{
 			// get the peaks
-			final ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaksComplete = new ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>>();
+			final ArrayList<PeakTable> peaksComplete = new ArrayList<PeakTable>();
 
 			float[] minmax;
 
@@ -239,64 +243,20 @@ public class Matching
 				IJ.log( "max=" + minmax[ 1 ] );
 			}
 
-			for ( int t = 0; t < numImages; ++t )
-				peaksComplete.add( extractCandidates( imp, params.channel1, t, params, minmax ) );
-
-			// filter for roi
-			final ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks = new ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>>();
-			for ( int t = 0; t < numImages; ++t )
-				peaks.add( filterForROI( params.roi1, peaksComplete.get( t ) ) );
-
 			if ( applyScaling )
-			{
 				IJ.log( "WARNING: MULTIPLYING TO ALL COORDINATES: " + factor + "!!!" );
-				for ( final ArrayList<DifferenceOfGaussianPeak<FloatType>> list : peaks )
-				{
-					for ( final DifferenceOfGaussianPeak<FloatType> peak : list )
-					{
-						final int[] position = peak.getPosition();
-						final float[] subpixel = peak.getSubPixelPositionOffset();
-						
-						for ( int d = 0; d < position.length; ++d )
-						{
-							position[ d ] *= factor;
-							subpixel[ d ] *= factor;
-						}
-						
-						peak.setPixelLocation( position );
-						peak.setSubPixelLocationOffset( subpixel );
-					}
-				}
-			}
-			
 
-			// add the offset if wanted
 			if ( Descriptor_based_series_registration.offset != null )
-			{
 				IJ.log( "WARNING: ADDING FOLLWOING OFFSET TO ALL COORDINATES: (" + Util.printCoordinates( Descriptor_based_series_registration.offset ) + ")!!!" );
-				for ( final ArrayList<DifferenceOfGaussianPeak<FloatType>> list : peaks )
-				{
-					for ( final DifferenceOfGaussianPeak<FloatType> peak : list )
-					{
-						final int[] position = peak.getPosition();
-						final float[] subpixel = peak.getSubPixelPositionOffset();
-						
-						for ( int d = 0; d < position.length; ++d )
-						{
-							position[ d ] += Math.floor( Descriptor_based_series_registration.offset[ d ] );
-							subpixel[ d ] += Descriptor_based_series_registration.offset[ d ] - Math.floor( Descriptor_based_series_registration.offset[ d ] );
-						}
-						
-						peak.setPixelLocation( position );
-						peak.setSubPixelLocationOffset( subpixel );
-						
-						System.out.println( Util.printCoordinates( peak.getSubPixelPosition() ) );
-					}
-				}
-			}
-			
-			// compute descriptormatching between all pairs of images
-			final Vector<ComparePair> pairs = descriptorMatching( peaks, numImages, params, zStretching );
+
+			// choose the threshold from the first timepoint if wanted, its peaks are reused if possible
+			final ArrayList<DifferenceOfGaussianPeak<FloatType>> estimatePeaks = ThresholdEstimation.isEnabled() ? estimateThreshold( imp, params.channel1, 0, params, minmax ) : null;
+
+			// detect the peaks and compute descriptormatching between all pairs of images,
+			// a pair is matched as soon as both of its timepoints are detected
+			final ArrayList<PeakTable> peaks = new ArrayList<PeakTable>();
+			final int[][] crop = computeCropBox( imp, params.roi1, null, params );
+			final Vector<ComparePair> pairs = DetectionPipeline.detectAndMatch( imp, numImages, params, minmax, crop, estimatePeaks, zStretching, peaksComplete, peaks );
 	        
 	        // perform global optimization
 	        models = globalOptimization( pairs, numImages, params );
@@ -308,6 +268,11 @@ public class Matching
 			if ( params.roi1 != null )
 			{
 				int numMatches = countMatches( pairs );
+
+				// the region that was detected in every timepoint
+				final int[][][] crops = new int[ numImages ][][];
+				for ( int t = 0; t < numImages; ++t )
+					crops[ t ] = crop;
 				
 				if ( !params.silent )
 					IJ.log( "\nNumber of matches " + numMatches );
@@ -318,7 +283,7 @@ public class Matching
 					if ( !params.silent )
 						IJ.log( "\nIteration " + (iteration+1) + " of maximally " + DescriptorParameters.maxIterations + " iterations." );
 
-					final int numMatches2 = performIteration( models, peaksComplete, numImages, params, zStretching );
+					final int numMatches2 = performIteration( models, peaksComplete, numImages, params, zStretching, imp, minmax, crops );
 
 					if ( !params.silent )
 						IJ.log( "\nNumber of matches " + numMatches2 );
@@ -331,6 +296,9 @@ public class Matching
 				
 			}
 	
+			// planes that were prefetched but not used by the detection
+			PlanePrefetcher.clear();
+
 			// set the static model
 			Descriptor_based_series_registration.lastModels = new ArrayList<InvertibleBoundable>();
 			//Descriptor_based_series_registration.lastModels.addAll( models );
@@ -382,6 +350,11 @@ public class Matching
 			
 			if ( result != null ) 
 				result.show();
+
+			if ( DescriptorParameters.imagePoolMegabytes > 0 && !params.silent )
+				IJ.log( ImagePool.getStatistics() );
+
+			PlanePrefetcher.clear();
 			
 			if ( !params.silent )
 				IJ.log( "Finished" );
@@ -390,6 +363,73 @@ public class Matching
 		return models;
 	}
 	
+	/**
+	 * Sets params.threshold so that the number of peaks set in DescriptorParameters.autoThresholdNumPeaks
+	 * (or autoThresholdDensity) is detected in this channel/timepoint
+	 *
+	 * @return the peaks of this channel/timepoint with the new threshold (see ThresholdEstimation.canReusePeaks) or null if it has to be detected again
+	 */
+	protected static ArrayList<DifferenceOfGaussianPeak<FloatType>> estimateThreshold( final ImagePlus imp, final int channel, final int timepoint, final DescriptorParameters params, final float[] minmax )
+	{
+		final ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks = ThresholdEstimation.canReusePeaks( params ) ? new ArrayList<DifferenceOfGaussianPeak<FloatType>>() : null;
+
+		params.threshold = ThresholdEstimation.estimateThreshold( imp, channel, timepoint, params, minmax, Threads.numThreads(), peaks );
+
+		if ( !params.silent )
+			IJ.log( "Estimated threshold " + params.threshold + " for " + ThresholdEstimation.computeTargetNumPeaks( imp, params ) + " peaks in " + imp.getTitle() + " [" + timepoint + "]" );
+
+		return peaks;
+	}
+
+	/**
+	 * Filters the peaks of one timepoint for the ROI and applies the global scaling and offset if set.
+	 * The scaling and offset are applied to the peaks inside the ROI in peaksComplete as well, as they
+	 * used to share the same peak objects.
+	 * 
+	 * @param peaksComplete - all peaks of the timepoint
+	 * @param params - the parameters
+	 * @return the peaks used for matching
+	 */
+	protected static PeakTable preparePeaks( final PeakTable peaksComplete, final DescriptorParameters params )
+	{
+		// filter for roi
+		final BitSet inside = containedInROI( params.roi1, peaksComplete, null );
+		final int n = peaksComplete.getNumDimensions();
+
+		if ( applyScaling )
+		{
+			for ( int i = inside.nextSetBit( 0 ); i >= 0; i = inside.nextSetBit( i + 1 ) )
+			{
+				for ( int d = 0; d < n; ++d )
+				{
+					peaksComplete.setPosition( i, d, (int)( peaksComplete.getPosition( i, d ) * factor ) );
+					peaksComplete.setSubPixelPositionOffset( i, d, peaksComplete.getSubPixelPositionOffset( i, d ) * factor );
+				}
+			}
+		}
+
+		// add the offset if wanted
+		if ( Descriptor_based_series_registration.offset != null )
+		{
+			final float[] offset = Descriptor_based_series_registration.offset;
+			final float[] tmp = new float[ n ];
+
+			for ( int i = inside.nextSetBit( 0 ); i >= 0; i = inside.nextSetBit( i + 1 ) )
+			{
+				for ( int d = 0; d < n; ++d )
+				{
+					peaksComplete.setPosition( i, d, (int)( peaksComplete.getPosition( i, d ) + Math.floor( offset[ d ] ) ) );
+					peaksComplete.setSubPixelPositionOffset( i, d, (float)( peaksComplete.getSubPixelPositionOffset( i, d ) + ( offset[ d ] - Math.floor( offset[ d ] ) ) ) );
+					tmp[ d ] = peaksComplete.getSubPixelPosition( i, d );
+				}
+				
+				System.out.println( Util.printCoordinates( tmp ) );
+			}
+		}
+
+		return select( peaksComplete, inside );
+	}
+
 	/**
 	 * Computes one iteration and updates the lastModels ArrayList with the new models
 	 * 
@@ -398,14 +438,38 @@ public class Matching
 	 * @param numImages - how many images are there
 	 * @param params - the parameters
 	 * @param zStretching - the zStretching if applicable
+	 * @param imp - the series
+	 * @param minmax - the min/max for normalization or null
+	 * @param crops - the region that was detected in each timepoint, null entries mean the entire image; updated if detected again
 	 * 
 	 * @return the number of matches found
 	 */
-	protected static int performIteration( final ArrayList<InvertibleBoundable> lastModels, final ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaksComplete, 
-			final int numImages, final DescriptorParameters params, final float zStretching )
+	protected static int performIteration( final ArrayList<InvertibleBoundable> lastModels, final ArrayList<PeakTable> peaksComplete, 
+			final int numImages, final DescriptorParameters params, final float zStretching, final ImagePlus imp, final float[] minmax, final int[][][] crops )
 	{
+		// the roi follows the models, detect again where it left the region that was detected so far
+		for ( int t = 0; t < numImages; ++t )
+		{
+			if ( crops[ t ] == null )
+				continue;
+
+			int[][] box = computeCropBox( imp, params.roi1, lastModels.get( t ), params );
+
+			if ( box == null )
+				box = getFullBox( imp );
+
+			if ( containsBox( crops[ t ], box ) )
+				continue;
+
+			crops[ t ] = unionBox( crops[ t ], box );
+
+			final PeakTable table = extractCandidateTable( imp, params.channel1, t, params, minmax, Threads.numThreads(), crops[ t ] );
+			table.sortByLocation();
+			peaksComplete.set( t, table );
+		}
+
 		// filter for roi with updated global coordinates
-		final ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks = new ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>>();
+		final ArrayList<PeakTable> peaks = new ArrayList<PeakTable>();
 		for ( int t = 0; t < numImages; ++t )
 			peaks.add( filterForROI( params.roi1, peaksComplete.get( t ), (Model)lastModels.get( t ) ) );
 
@@ -434,27 +498,21 @@ public class Matching
 		return numMatches;
 	}
 	
-	public static Vector<ComparePair> descriptorMatching( final ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks, final int numImages, final DescriptorParameters params, final float zStretching )
+	public static Vector<ComparePair> descriptorMatching( final ArrayList<PeakTable> peaks, final int numImages, final DescriptorParameters params, final float zStretching )
 	{
 		// get all compare pairs
 		final Vector<ComparePair> pairs = getComparePairs( params, numImages );
 
+		// the neighbors of each timepoint are searched once for all pairs
+		final DescriptorCache cache = new DescriptorCache( numImages, pairs, params.numNeighbors + params.redundancy, zStretching );
+
 		// compute all matchings
 		final AtomicInteger ai = new AtomicInteger(0);
 		final Thread[] threads = SimpleMultiThreading.newThreads();
 		final int numThreads = threads.length;
 
 		// open debug file if wanted
-		if ( DescriptorParameters.correspondenceDirectory != null )
-		{
-			final File dir = new File( DescriptorParameters.correspondenceDirectory );
-			
-			if ( dir.exists() && dir.isDirectory() )
-				outAll = openFileWrite( new File( DescriptorParameters.correspondenceDirectory, "_all.txt" ) );
-
-			if ( outAll == null )
-				IJ.log( "Could not open file to write all correspondences: " + new File( DescriptorParameters.correspondenceDirectory, "_all.txt" ));
-		}
+		openCorrespondenceFile();
 
 		for ( int ithread = 0; ithread < threads.length; ++ithread )
 		threads[ ithread ] = new Thread(new Runnable()
@@ -467,24 +525,77 @@ public class Matching
 					if ( i%numThreads == myNumber )
 					{
 						final ComparePair pair = pairs.get( i );
-						pair.model = pairwiseMatching( pair.inliers, peaks.get( pair.indexA ), peaks.get( pair.indexB ), zStretching, zStretching, params, pair.indexA + "<->" + pair.indexB );
-				
-						if ( pair.model == null )
-						{
-							pair.inliers.clear();
-							pair.model = params.model.copy();
-						}
+						matchPair( pair, peaks.get( pair.indexA ), peaks.get( pair.indexB ), zStretching, params, cache );
 					}
 			}
 		});
 		
 		SimpleMultiThreading.startAndJoin( threads );
 
-		if ( outAll != null )
-			outAll.close();
+		closeCorrespondenceFile();
 
 		return pairs;
 	}
+
+	/**
+	 * Computes the model and inliers of one pair, if no model can be found the inliers are empty
+	 * and the model is a copy of params.model
+	 */
+	protected static void matchPair( final ComparePair pair, final PeakTable peaksA, final PeakTable peaksB,
+			final float zStretching, final DescriptorParameters params )
+	{
+		matchPair( pair, peaksA, peaksB, zStretching, params, null );
+	}
+
+	/**
+	 * @param cache - the neighbors of the timepoints shared by all pairs or null, the pair is released from it when it is matched
+	 */
+	protected static void matchPair( final ComparePair pair, final PeakTable peaksA, final PeakTable peaksB,
+			final float zStretching, final DescriptorParameters params, final DescriptorCache cache )
+	{
+		if ( cache == null )
+		{
+			// the pairs are matched in parallel already
+			pair.model = pairwiseMatching( pair.inliers, peaksA, peaksB, zStretching, zStretching, params, pair.indexA + "<->" + pair.indexB, null, null, 1 );
+		}
+		else
+		{
+			pair.model = pairwiseMatching( pair.inliers, peaksA, peaksB, zStretching, zStretching, params, pair.indexA + "<->" + pair.indexB,
+					cache.get( pair.indexA, peaksA ), cache.get( pair.indexB, peaksB ), 1 );
+
+			cache.release( pair.indexA );
+			cache.release( pair.indexB );
+		}
+
+		if ( pair.model == null )
+		{
+			pair.inliers.clear();
+			pair.model = params.model.copy();
+		}
+	}
+
+	/**
+	 * Opens the file that collects the correspondences of all pairs if DescriptorParameters.correspondenceDirectory is set
+	 */
+	protected static void openCorrespondenceFile()
+	{
+		if ( DescriptorParameters.correspondenceDirectory != null )
+		{
+			final File dir = new File( DescriptorParameters.correspondenceDirectory );
+			
+			if ( dir.exists() && dir.isDirectory() )
+				outAll = openFileWrite( new File( DescriptorParameters.correspondenceDirectory, "_all.txt" ) );
+
+			if ( outAll == null )
+				IJ.log( "Could not open file to write all correspondences: " + new File( DescriptorParameters.correspondenceDirectory, "_all.txt" ));
+		}
+	}
+
+	protected static void closeCorrespondenceFile()
+	{
+		if ( outAll != null )
+			outAll.close();
+	}
 	
 	public static ArrayList<InvertibleBoundable> globalOptimization( final Vector<ComparePair> pairs, final int numImages, final DescriptorParameters params )
 	{
@@ -631,7 +742,7 @@ public class Matching
 		}
 	}  
 
-	protected static Vector<ComparePair> getComparePairs( final DescriptorParameters params, final int numImages )
+	public static Vector<ComparePair> getComparePairs( final DescriptorParameters params, final int numImages )
 	{
 		final Vector<ComparePair> pairs = new Vector<ComparePair>();
 		
@@ -662,8 +773,20 @@ public class Matching
 		return pairs;
 	}
 	
-	protected static Model<?> pairwiseMatching( final ArrayList<PointMatch> finalInliers, final ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks1, final ArrayList<DifferenceOfGaussianPeak<FloatType>>peaks2, 
+	protected static Model<?> pairwiseMatching( final ArrayList<PointMatch> finalInliers, final PeakTable peaks1, final PeakTable peaks2, 
 			final float zStretching1, final float zStretching2, final DescriptorParameters params, String explanation )
+	{
+		return pairwiseMatching( finalInliers, peaks1, peaks2, zStretching1, zStretching2, params, explanation, null, null, Threads.numThreads() );
+	}
+
+	/**
+	 * @param cache1 - the cached neighbors of peaks1 or null
+	 * @param cache2 - the cached neighbors of peaks2 or null
+	 * @param numThreads - how many threads to use for the neighbor search and the descriptors
+	 */
+	protected static Model<?> pairwiseMatching( final ArrayList<PointMatch> finalInliers, final PeakTable peaks1, final PeakTable peaks2, 
+			final float zStretching1, final float zStretching2, final DescriptorParameters params, String explanation,
+			final DescriptorCache.Entry cache1, final DescriptorCache.Entry cache2, final int numThreads )
 	{
 		final Matcher matcher = new SubsetMatcher( params.numNeighbors, params.numNeighbors + params.redundancy );
 		ArrayList<PointMatch> candidates;
@@ -681,7 +804,9 @@ public class Matching
 				identityTransform = new TranslationModel3D();
 			*/
 			
-			candidates = getCorrespondenceCandidates( params.significance, matcher, peaks1, peaks2, identityTransform, params.dimensionality, zStretching1, zStretching2, explanation );
+			// the neighbors of peaks1 only stay the same if the initial model is the identity
+			candidates = getCorrespondenceCandidates( params.significance, matcher, peaks1, peaks2, identityTransform, params.dimensionality, zStretching1, zStretching2, explanation,
+					params.hasInitialModel() ? null : cache1, cache2, numThreads );
 
 			// before we compute the RANSAC we will reset the coordinates of all points so that we directly get the correct model
 			for ( final PointMatch pm : candidates )
@@ -691,7 +816,7 @@ public class Matching
 			}
 		}
 		else
-			candidates = getCorrespondenceCandidates( params.significance, matcher, peaks1, peaks2, null, params.dimensionality, zStretching1, zStretching2, explanation );
+			candidates = getCorrespondenceCandidates( params.significance, matcher, peaks1, peaks2, null, params.dimensionality, zStretching1, zStretching2, explanation, cache1, cache2, numThreads );
 		
 		// compute ransac
 		//ArrayList<PointMatch> finalInliers = new ArrayList<PointMatch>();
@@ -743,7 +868,8 @@ public class Matching
 			do
 			{
 				// get the correspondence candidates with the knowledge of the previous model
-				candidates = getCorrespondenceCandidates( params.significance, matcher, peaks1, peaks2, finalModel, params.dimensionality, zStretching1, zStretching2, explanation );
+				// peaks1 is transformed by the model, its neighbors have to be searched again
+				candidates = getCorrespondenceCandidates( params.significance, matcher, peaks1, peaks2, finalModel, params.dimensionality, zStretching1, zStretching2, explanation, null, cache2, numThreads );
 				
 				// before we compute the RANSAC we will reset the coordinates of all points so that we directly get the correct model
 				for ( final PointMatch pm : candidates )
@@ -860,66 +986,239 @@ public class Matching
 	}
 
 	public static float[] computeMinMax( final ImagePlus imp, final int channel )
+	{
+		IJ.log( "Computing min/max over " + imp.getNSlices() + " slices and " + imp.getNFrames() + " frames for channel " + channel );
+
+		return computeMinMax( imp, channel - 1, 0, imp.getNFrames() );
+	}
+	
+	/**
+	 * Computes min and max of one channel of one timepoint, reading every plane once
+	 * 
+	 * @param channel - the channel (0-based)
+	 * @param timepoint - the timepoint (0-based)
+	 */
+	public static float[] computeMinMax( final ImagePlus imp, final int channel, final int timepoint )
+	{
+		return computeMinMax( imp, channel, timepoint, 1 );
+	}
+
+	/**
+	 * Computes min and max of one channel over a range of timepoints, every plane is read once, the planes are processed in parallel
+	 * 
+	 * @param channel - the channel (0-based)
+	 * @param firstTimepoint - the first timepoint (0-based)
+	 * @param numTimepoints - the number of timepoints
+	 */
+	protected static float[] computeMinMax( final ImagePlus imp, final int channel, final int firstTimepoint, final int numTimepoints )
 	{
 		final int size = imp.getWidth() * imp.getHeight();
-		float min = Float.MAX_VALUE;
-		float max = -Float.MAX_VALUE;
+		final int numSlices = imp.getNSlices();
+		final int numPlanes = numSlices * numTimepoints;
 
-		IJ.log( "Computing min/max over " + imp.getNSlices() + " slices and " + imp.getNFrames() + " frames for channel " + channel );
+		final float[][] planeMinMax = new float[ numPlanes ][];
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.min( numPlanes, Runtime.getRuntime().availableProcessors() ) );
 
-		for ( int z = 0; z < imp.getNSlices(); ++z )
-			for ( int t = 0; t < imp.getNFrames(); ++t )
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
 			{
-				final ImageProcessor ip = imp.getStack().getProcessor( imp.getStackIndex( channel, z + 1, t + 1 ) );
-
-				for ( int i = 0; i < size; ++i )
+				public void run()
 				{
-					final float f = ip.getf( i );
-					min = Math.min( min, f );
-					max = Math.max( max, f );
+					for ( int p = ai.getAndIncrement(); p < numPlanes; p = ai.getAndIncrement() )
+					{
+						final int z = p % numSlices;
+						final int t = firstTimepoint + p / numSlices;
+
+						final ImageProcessor ip = imp.getStack().getProcessor( imp.getStackIndex( channel + 1, z + 1, t + 1 ) );
+
+						float min = Float.MAX_VALUE;
+						float max = -Float.MAX_VALUE;
+
+						for ( int i = 0; i < size; ++i )
+						{
+							final float f = ip.getf( i );
+							min = Math.min( min, f );
+							max = Math.max( max, f );
+						}
+
+						planeMinMax[ p ] = new float[]{ min, max };
+					}
 				}
-			}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+
+		for ( final float[] mm : planeMinMax )
+		{
+			min = Math.min( min, mm[ 0 ] );
+			max = Math.max( max, mm[ 1 ] );
+		}
 
 		return new float[]{ min, max };
 	}
-	
+
 	public static ArrayList<DifferenceOfGaussianPeak<FloatType>> extractCandidates( final ImagePlus imp, final int channel, final int timepoint, final DescriptorParameters params, final float[] minmax )
 	{
-		// get the input images for registration
-		final Image<FloatType> img = convertToFloat( imp, channel, timepoint, minmax );
-		
-		// extract Calibrations
-		final Calibration cal = imp.getCalibration();
-		
-		if ( params.dimensionality == 2 )
-			img.setCalibration( new float[]{ (float)cal.pixelWidth, (float)cal.pixelHeight } );
-		else
-			img.setCalibration( new float[]{ (float)cal.pixelWidth, (float)cal.pixelHeight, (float)cal.pixelDepth } );
-		
-		// extract candidates
-		final ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks = computeDoG( img, (float)params.sigma1, (float)params.sigma2, params.lookForMaxima, params.lookForMinima, (float)params.threshold,
-				params.localization, params.iterations, params.sigma, params.region );
+		return extractCandidates( imp, channel, timepoint, params, minmax, Threads.numThreads() );
+	}
+
+	/**
+	 * @param numThreads - how many threads to use for this image (several images might be processed at the same time)
+	 */
+	public static ArrayList<DifferenceOfGaussianPeak<FloatType>> extractCandidates( final ImagePlus imp, final int channel, final int timepoint, final DescriptorParameters params, final float[] minmax, final int numThreads )
+	{
+		return extractCandidateTable( imp, channel, timepoint, params, minmax, numThreads ).toPeaks();
+	}
+
+	/**
+	 * Detects the peaks of one channel/timepoint and returns them as a {@link PeakTable}
+	 * 
+	 * @param numThreads - how many threads to use for this image (several images might be processed at the same time)
+	 */
+	public static PeakTable extractCandidateTable( final ImagePlus imp, final int channel, final int timepoint, final DescriptorParameters params, final float[] minmax, final int numThreads )
+	{
+		return extractCandidateTable( imp, channel, timepoint, params, minmax, numThreads, null );
+	}
+
+	/**
+	 * Detects the peaks of one channel/timepoint in a region and returns them in image coordinates
+	 * 
+	 * @param crop - { min, max } of the pixels where peaks are detected (see {@link #computeCropBox(ImagePlus, Roi, InvertibleBoundable, DescriptorParameters)}), null for the entire image
+	 * @param numThreads - how many threads to use for this image (several images might be processed at the same time)
+	 */
+	public static PeakTable extractCandidateTable( final ImagePlus imp, final int channel, final int timepoint, final DescriptorParameters params, final float[] minmax, final int numThreads,
+			final int[][] crop )
+	{
+		return extractCandidateTable( imp, channel, timepoint, params, minmax, numThreads, crop, null );
+	}
+
+	/**
+	 * @param detected - the peaks of the entire channel/timepoint if they are known already (see ThresholdEstimation), or null to detect them
+	 */
+	public static PeakTable extractCandidateTable( final ImagePlus imp, final int channel, final int timepoint, final DescriptorParameters params, final float[] minmax, final int numThreads,
+			final int[][] crop, final ArrayList<DifferenceOfGaussianPeak<FloatType>> detected )
+	{
+		// reuse the detections of a previous run if possible
+		final File cacheDir = PeakCache.getCacheDirectory();
+		final String cacheKey = cacheDir == null ? null : PeakCache.createKey( imp, channel, timepoint, params, minmax, numThreads, crop );
+
+		PeakTable peaks = cacheDir == null ? null : PeakCache.load( cacheDir, cacheKey );
+		final boolean cached = peaks != null;
+
+		if ( !cached )
+		{
+			final int blockSize = crop == null ? BlockwiseDetection.getBlockSize( imp, params ) : 0;
+
+			if ( detected != null )
+			{
+				final int n = imp.getNSlices() > 1 ? 3 : 2;
+				final ArrayList<DifferenceOfGaussianPeak<FloatType>> inside = new ArrayList<DifferenceOfGaussianPeak<FloatType>>();
+
+				// the peaks of the crop box, like the detection of the region
+				for ( final DifferenceOfGaussianPeak<FloatType> peak : detected )
+				{
+					boolean isInside = true;
+
+					for ( int d = 0; d < n && crop != null; ++d )
+						if ( peak.getPosition( d ) < crop[ 0 ][ d ] || peak.getPosition( d ) > crop[ 1 ][ d ] )
+							isInside = false;
+
+					if ( isInside )
+						inside.add( peak );
+				}
+
+				peaks = PeakTable.fromPeaks( inside, n );
+			}
+			else if ( crop != null )
+			{
+				// only the region plus the halo of the DoG, normalized like the entire image
+				final int n = crop[ 0 ].length;
+				final int[] halo = BlockwiseDetection.computeHalo( params, n, (float)imp.getCalibration().pixelDepth );
+				final int[] last = getFullBox( imp )[ 1 ];
+				final int[] offset = new int[ n ];
+				final int[] size = new int[ n ];
+
+				for ( int d = 0; d < n; ++d )
+				{
+					offset[ d ] = Math.max( 0, crop[ 0 ][ d ] - halo[ d ] );
+					size[ d ] = Math.min( last[ d ], crop[ 1 ][ d ] + halo[ d ] ) - offset[ d ] + 1;
+				}
+
+				peaks = PeakTable.fromPeaks( BlockwiseDetection.extractCandidates( imp, channel, timepoint, params, minmax == null ? computeMinMax( imp, channel, timepoint ) : minmax,
+						offset, size, crop[ 0 ], crop[ 1 ], numThreads ), n );
+			}
+			else if ( blockSize > 0 )
+			{
+				// process overlapping blocks so that the memory requirements are bounded by the block size,
+				// images with more than 2^31 voxels are always processed in blocks that fit into arrays
+				if ( DescriptorParameters.detectionBlockSize <= 0 )
+					IJ.log( imp.getTitle() + " has more than 2^31 voxels, detecting in blocks of " + blockSize + " pixels." );
+
+				peaks = PeakTable.fromPeaks( BlockwiseDetection.extractCandidates( imp, channel, timepoint, params, minmax, blockSize, numThreads ), imp.getNSlices() > 1 ? 3 : 2 );
+			}
+			else
+			{
+				// get the input images for registration
+				final Image<FloatType> img = leaseFloat( imp, channel, timepoint, minmax, numThreads );
+				
+				// extract Calibrations
+				setCalibration( img, imp, params.dimensionality );
+				
+				// extract candidates
+				peaks = PeakTable.fromPeaks( computeDoG( img, (float)params.sigma1, (float)params.sigma2, params.lookForMaxima, params.lookForMinima, (float)params.threshold,
+						params.localization, params.iterations, params.sigma, params.region, numThreads ), img.getNumDimensions() );
+
+				ImagePool.release( img );
+			}
+		}
 		
 		// remove invalid peaks
 		final int[] stats1 = removeInvalidAndCollectStatistics( peaks );
 
+		if ( cacheDir != null && !cached )
+			PeakCache.save( cacheDir, cacheKey, peaks );
+
 		String statement = "Found " + peaks.size() + " candidates for " + imp.getTitle() + " [" + timepoint + "] (" + stats1[ 1 ] + " maxima, " + stats1[ 0 ] + " minima)";
 
-		// filter strongest detections
-		if ( DescriptorParameters.brightestNPoints > 0 )
+		if ( crop != null )
+			statement += " in " + Arrays.toString( crop[ 0 ] ) + "-" + Arrays.toString( crop[ 1 ] );
+
+		if ( cached )
+			statement += " (from cache)";
+
+		// merge peaks that are closer than the radius (they would create near-identical descriptors)
+		if ( DescriptorParameters.nmsRadius > 0 )
 		{
-			final ArrayList< PeakSort > sortList = new ArrayList< PeakSort >();
+			final double[] scale = new double[ peaks.getNumDimensions() ];
+			Arrays.fill( scale, 1 );
+
+			if ( scale.length == 3 )
+				scale[ 2 ] = imp.getCalibration().pixelDepth / imp.getCalibration().pixelWidth;
+
+			final int removed = peaks.suppressNonMaxima( DescriptorParameters.nmsRadius, scale );
 
-			for ( final DifferenceOfGaussianPeak< FloatType > peak : peaks )
-				sortList.add( new PeakSort( peak ) );
+			statement += ", merged " + removed + " peaks within " + DescriptorParameters.nmsRadius + " px";
+		}
 
-			Collections.sort( sortList );
+		// filter strongest detections
+		if ( DescriptorParameters.brightestNPoints > 0 )
+		{
+			if ( DescriptorParameters.brightestNPointsCells > 0 )
+			{
+				peaks.keepBrightestUniform( DescriptorParameters.brightestNPoints, DescriptorParameters.brightestNPointsCells );
 
-			peaks.clear();
-			for ( int i = sortList.size() - 1; i >= sortList.size() - DescriptorParameters.brightestNPoints && i >= 0; --i )
-				peaks.add( sortList.get( i ).peak );
+				statement += ", kept brightest " + peaks.size() + " peaks (spread over " + DescriptorParameters.brightestNPointsCells + "^" + peaks.getNumDimensions() + " cells) for matching.";
+			}
+			else
+			{
+				peaks.keepBrightest( DescriptorParameters.brightestNPoints );
 
-			statement += ", kept brightest " + peaks.size() + " peaks for matching.";
+				statement += ", kept brightest " + peaks.size() + " peaks for matching.";
+			}
 		}
 
 		if ( !params.silent )
@@ -928,190 +1227,468 @@ public class Matching
 		return peaks;
 	}
 
-	public static class PeakSort implements Comparable< PeakSort >
+	protected static void setCalibration( final Image<FloatType> img, final ImagePlus imp, final int dimensionality )
 	{
-		final DifferenceOfGaussianPeak< FloatType > peak;
-
-		public PeakSort( final DifferenceOfGaussianPeak< FloatType > peak ) { this.peak = peak; }
-
-		@Override
-		public int compareTo( final PeakSort o)
-		{
-			final float diff = Math.abs( peak.getValue().get() ) - Math.abs( o.peak.getValue().get() );
-
-			if ( diff < 0 )
-				return -1;
-			else if ( diff > 0 )
-				return 1;
-			else
-				return 0;
-		}
+		final Calibration cal = imp.getCalibration();
 		
+		if ( dimensionality == 2 )
+			img.setCalibration( new float[]{ (float)cal.pixelWidth, (float)cal.pixelHeight } );
+		else
+			img.setCalibration( new float[]{ (float)cal.pixelWidth, (float)cal.pixelHeight, (float)cal.pixelDepth } );
 	}
 
 	/**
-	 * Normalize and make a copy of the {@link ImagePlus} into an {@link Image} of FloatType for faster access when copying the slices
+	 * Normalize and make a copy of the {@link ImagePlus} into an {@link Image} of FloatType for faster access when copying the slices.
+	 * Every plane is read exactly once and the planes are processed in parallel. If the min/max is known the values
+	 * are normalized while copying, otherwise min/max is collected while copying and the normalization is applied 
+	 * in a second pass over the (already converted) float data. The copy is array-backed if it has at most
+	 * {@link FloatImages#MAX_ARRAY_SIZE} pixels, otherwise it is planar (ImagePlusContainer).
 	 * 
 	 * @param imp - the {@link ImagePlus} input image
+	 * @param minmax - the min and max for normalization, or null if it should be computed from this image
 	 * @return - the normalized copy [0...1]
 	 */
 	public static Image<FloatType> convertToFloat( final ImagePlus imp, int channel, int timepoint, final float[] minmax )
+	{
+		return convertToFloat( imp, channel, timepoint, minmax, Runtime.getRuntime().availableProcessors() );
+	}
+
+	public static Image<FloatType> convertToFloat( final ImagePlus imp, int channel, int timepoint, final float[] minmax, final int numThreads )
+	{
+		return convertToFloat( imp, channel, timepoint, minmax, false, numThreads );
+	}
+
+	/**
+	 * The same as {@link #convertToFloat(ImagePlus, int, int, float[], int)}, but the copy is leased from the {@link ImagePool}
+	 * and has to be given back with {@link ImagePool#release(Image)}
+	 */
+	static Image<FloatType> leaseFloat( final ImagePlus imp, int channel, int timepoint, final float[] minmax, final int numThreads )
+	{
+		return convertToFloat( imp, channel, timepoint, minmax, true, numThreads );
+	}
+
+	protected static Image<FloatType> convertToFloat( final ImagePlus imp, int channel, int timepoint, final float[] minmax, final boolean pooled, final int numThreads )
+	{
+		if ( imp.getNSlices() > 1 )
+			return convertToFloat( imp, channel, timepoint, minmax, new int[]{ 0, 0, 0 }, new int[]{ imp.getWidth(), imp.getHeight(), imp.getNSlices() }, pooled, numThreads );
+		else
+			return convertToFloat( imp, channel, timepoint, minmax, new int[]{ 0, 0 }, new int[]{ imp.getWidth(), imp.getHeight() }, pooled, numThreads );
+	}
+
+	/**
+	 * Normalize and make a copy of a region of the {@link ImagePlus} into an {@link Image} of FloatType, see
+	 * {@link #convertToFloat(ImagePlus, int, int, float[])}
+	 * 
+	 * @param imp - the {@link ImagePlus} input image
+	 * @param minmax - the min and max for normalization, or null if it should be computed from this region
+	 * @param offset - the first pixel of the region (x, y, (z))
+	 * @param size - the size of the region (x, y, (z)), this is also the dimensionality of the output
+	 * @param numThreads - how many planes are converted in parallel
+	 * @return - the normalized copy [0...1]
+	 */
+	public static Image<FloatType> convertToFloat( final ImagePlus imp, int channel, int timepoint, final float[] minmax, final int[] offset, final int[] size, final int numThreads )
+	{
+		return convertToFloat( imp, channel, timepoint, minmax, offset, size, false, numThreads );
+	}
+
+	/**
+	 * The same as {@link #convertToFloat(ImagePlus, int, int, float[], int[], int[], int)}, but the copy is leased from the
+	 * {@link ImagePool} and has to be given back with {@link ImagePool#release(Image)}
+	 */
+	static Image<FloatType> leaseFloat( final ImagePlus imp, int channel, int timepoint, final float[] minmax, final int[] offset, final int[] size, final int numThreads )
+	{
+		return convertToFloat( imp, channel, timepoint, minmax, offset, size, true, numThreads );
+	}
+
+	protected static Image<FloatType> convertToFloat( final ImagePlus imp, int channel, int timepoint, final float[] minmax, final int[] offset, final int[] size,
+			final boolean pooled, final int numThreads )
 	{
 		// stupid 1-offset of imagej
-		channel++;
-		timepoint++;
+		final int c = channel + 1;
+		final int t = timepoint + 1;
 		
+		// volumes with more than 2^31 voxels are stored as one array per plane
+		final ContainerFactory containerFactory = FloatImages.fitsInArray( size ) ? new ArrayContainerFactory() : new ImagePlusContainerFactory();
 		final Image<FloatType> img;
-		
-		if ( imp.getNSlices() > 1 )
-			img = new ImageFactory<FloatType>( new FloatType(), new ArrayContainerFactory() ).createImage( new int[]{ imp.getWidth(), imp.getHeight(), imp.getNSlices() } );
+
+		if ( pooled )
+			img = ImagePool.lease( new FloatType(), containerFactory, size );
 		else
-			img = new ImageFactory<FloatType>( new FloatType(), new ArrayContainerFactory() ).createImage( new int[]{ imp.getWidth(), imp.getHeight() } );
-		
-		final int sliceSize = imp.getWidth() * imp.getHeight();
-		
-		int z = 0;
-		ImageProcessor ip = imp.getStack().getProcessor( imp.getStackIndex( channel, z + 1, timepoint ) );
-		
-		if ( ip instanceof FloatProcessor )
+			img = new ImageFactory<FloatType>( new FloatType(), containerFactory ).createImage( size.clone() );
+
+		final int sliceSize = size[ 0 ] * size[ 1 ];
+		final int numSlices = size.length > 2 ? size[ 2 ] : 1;
+		final int z0 = size.length > 2 ? offset[ 2 ] : 0;
+
+		final float[][] planes = new float[ numSlices ][];
+		final int[] planeOffsets = new int[ numSlices ];
+
+		for ( int z = 0; z < numSlices; ++z )
 		{
-			final ArrayCursor<FloatType> cursor = (ArrayCursor<FloatType>)img.createCursor();
-			
-			float[] pixels = (float[])ip.getPixels();
-			int i = 0;
-			
-			while ( cursor.hasNext() )
+			planes[ z ] = FloatImages.getPlane( img, z );
+			planeOffsets[ z ] = FloatImages.getPlaneOffset( img, z );
+		}
+
+		// if min/max are known we normalize on the fly, otherwise just copy and collect them
+		final float min, scale;
+
+		if ( minmax == null )
+		{
+			min = 0;
+			scale = 1;
+		}
+		else
+		{
+			min = minmax[ 0 ];
+			scale = normalizationScale( minmax[ 0 ], minmax[ 1 ] );
+		}
+
+		// read the next timepoints in the background if the stack is virtual
+		PlanePrefetcher.prefetch( imp, channel, timepoint, z0, numSlices );
+
+		final float[][] planeMinMax = new float[ numSlices ][];
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numSlices, numThreads ) ) );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
 			{
-				// only get new imageprocessor if necessary
-				if ( i == sliceSize )
+				public void run()
 				{
-					++z;
-					
-					pixels = (float[])imp.getStack().getProcessor( imp.getStackIndex( channel, z + 1, timepoint ) ).getPixels();
-						 
-					i = 0;
+					for ( int z = ai.getAndIncrement(); z < numSlices; z = ai.getAndIncrement() )
+					{
+						final ImageProcessor ip = PlanePrefetcher.getProcessor( imp, imp.getStackIndex( c, z0 + z + 1, t ) );
+						planeMinMax[ z ] = convertPlane( ip, planes[ z ], planeOffsets[ z ], offset[ 0 ], offset[ 1 ], size[ 0 ], size[ 1 ], min, scale );
+					}
 				}
-				
-				cursor.next().set( pixels[ i++ ] );
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		if ( minmax == null )
+		{
+			float minImg = Float.MAX_VALUE;
+			float maxImg = -Float.MAX_VALUE;
+
+			for ( final float[] mm : planeMinMax )
+			{
+				minImg = Math.min( minImg, mm[ 0 ] );
+				maxImg = Math.max( maxImg, mm[ 1 ] );
 			}
+
+			normalize( planes, planeOffsets, sliceSize, minImg, normalizationScale( minImg, maxImg ), numThreads );
+		}
+
+		return img;
+	}
+
+	/**
+	 * @return 1/(max-min), or 0 if the range is empty and normalization is not possible
+	 */
+	protected static float normalizationScale( final float min, final float max )
+	{
+		final float diff = max - min;
+
+		if ( diff == 0 || Float.isNaN( diff ) || Float.isInfinite( diff ) )
+			return 0;
+		else
+			return 1.0f / diff;
+	}
+
+	/**
+	 * Copies a rectangle of one plane into the float array and computes (value - min) * scale on the fly, a scale of 1 and min of 0 makes it a plain copy.
+	 * If the scale is 0 the image cannot be normalized and the values are copied unchanged.
+	 * 
+	 * @return the min and max of the rectangle (before normalization)
+	 */
+	protected static float[] convertPlane( final ImageProcessor ip, final float[] data, final int offset, final int x0, final int y0, final int w, final int h, float min, float scale )
+	{
+		if ( scale == 0 )
+		{
+			min = 0;
+			scale = 1;
+		}
+
+		final int width = ip.getWidth();
+
+		float minP = Float.MAX_VALUE;
+		float maxP = -Float.MAX_VALUE;
+
+		if ( ip instanceof FloatProcessor )
+		{
+			final float[] pixels = (float[])ip.getPixels();
+
+			for ( int y = 0, j = offset; y < h; ++y )
+				for ( int x = 0, i = ( y + y0 ) * width + x0; x < w; ++x, ++i, ++j )
+				{
+					final float v = pixels[ i ];
+					minP = Math.min( minP, v );
+					maxP = Math.max( maxP, v );
+					data[ j ] = ( v - min ) * scale;
+				}
 		}
 		else if ( ip instanceof ByteProcessor )
 		{
-			final ArrayCursor<FloatType> cursor = (ArrayCursor<FloatType>)img.createCursor();
+			final byte[] pixels = (byte[])ip.getPixels();
 
-			byte[] pixels = (byte[])ip.getPixels();
-			int i = 0;
-			
-			while ( cursor.hasNext() )
-			{
-				// only get new imageprocessor if necessary
-				if ( i == sliceSize )
+			for ( int y = 0, j = offset; y < h; ++y )
+				for ( int x = 0, i = ( y + y0 ) * width + x0; x < w; ++x, ++i, ++j )
 				{
-					++z;
-					pixels = (byte[])imp.getStack().getProcessor( imp.getStackIndex( channel, z + 1, timepoint ) ).getPixels();
-					
-					i = 0;
+					final float v = pixels[ i ] & 0xff;
+					minP = Math.min( minP, v );
+					maxP = Math.max( maxP, v );
+					data[ j ] = ( v - min ) * scale;
 				}
-				
-				cursor.next().set( pixels[ i++ ] & 0xff );
-			}
 		}
 		else if ( ip instanceof ShortProcessor )
 		{
-			final ArrayCursor<FloatType> cursor = (ArrayCursor<FloatType>)img.createCursor();
+			final short[] pixels = (short[])ip.getPixels();
 
-			short[] pixels = (short[])ip.getPixels();
-			int i = 0;
-			
-			while ( cursor.hasNext() )
+			for ( int y = 0, j = offset; y < h; ++y )
+				for ( int x = 0, i = ( y + y0 ) * width + x0; x < w; ++x, ++i, ++j )
+				{
+					final float v = pixels[ i ] & 0xffff;
+					minP = Math.min( minP, v );
+					maxP = Math.max( maxP, v );
+					data[ j ] = ( v - min ) * scale;
+				}
+		}
+		else // some color stuff or so
+		{
+			for ( int y = 0, j = offset; y < h; ++y )
+				for ( int x = 0; x < w; ++x, ++j )
+				{
+					final float v = ip.getPixelValue( x + x0, y + y0 );
+					minP = Math.min( minP, v );
+					maxP = Math.max( maxP, v );
+					data[ j ] = ( v - min ) * scale;
+				}
+		}
+
+		return new float[]{ minP, maxP };
+	}
+
+	/**
+	 * Normalizes the data in-place, (value - min) * scale, in parallel over the planes
+	 *
+	 * @param planes - the array of each plane (the same array for all planes of an array-backed image)
+	 * @param planeOffsets - the index of the first pixel of each plane in its array
+	 */
+	protected static void normalize( final float[][] planes, final int[] planeOffsets, final int sliceSize, final float min, final float scale, final int numThreads )
+	{
+		if ( scale == 0 )
+			return;
+
+		final int numSlices = planes.length;
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numSlices, numThreads ) ) );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
 			{
-				// only get new imageprocessor if necessary
-				if ( i == sliceSize )
+				public void run()
 				{
-					++z;
-					
-					pixels = (short[])imp.getStack().getProcessor( imp.getStackIndex( channel, z + 1, timepoint ) ).getPixels();
-					
-					i = 0;
+					for ( int z = ai.getAndIncrement(); z < numSlices; z = ai.getAndIncrement() )
+					{
+						final float[] data = planes[ z ];
+						final int end = planeOffsets[ z ] + sliceSize;
+
+						for ( int i = planeOffsets[ z ]; i < end; ++i )
+							data[ i ] = ( data[ i ] - min ) * scale;
+					}
 				}
-				
-				cursor.next().set( pixels[ i++ ] & 0xffff );
-			}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+	}
+
+	/**
+	 * The region that has to be detected so that all peaks of the ROI are found, i.e. the bounding box
+	 * of the ROI (all of z in 3d) plus a margin for the subpixel localization. If a model is given, the ROI
+	 * is in the coordinates the model maps the peaks into and its corners are mapped back into the image.
+	 * 
+	 * @param model - the model that maps the peaks into the coordinates of the ROI or null
+	 * @return { min, max } in image coordinates, or null if the entire image has to be detected
+	 */
+	public static int[][] computeCropBox( final ImagePlus imp, final Roi roi, final InvertibleBoundable model, final DescriptorParameters params )
+	{
+		// the brightest points and the global scaling/offset refer to the entire image
+		if ( roi == null || !DescriptorParameters.cropDetectionToROI || DescriptorParameters.brightestNPoints > 0 ||
+			 applyScaling || Descriptor_based_series_registration.offset != null )
+			return null;
+
+		final int[][] full = getFullBox( imp );
+		final int n = full[ 0 ].length;
+		final int margin = 2;
+
+		final java.awt.Rectangle r = roi.getBounds();
+		final int[][] box = new int[][]{ full[ 0 ].clone(), full[ 1 ].clone() };
+
+		if ( model == null )
+		{
+			box[ 0 ][ 0 ] = r.x - margin;
+			box[ 0 ][ 1 ] = r.y - margin;
+			box[ 1 ][ 0 ] = r.x + r.width - 1 + margin;
+			box[ 1 ][ 1 ] = r.y + r.height - 1 + margin;
 		}
-		else // some color stuff or so 
+		else
 		{
-			final LocalizableCursor<FloatType> cursor = img.createLocalizableCursor();
-			final int[] location = new int[ img.getNumDimensions() ];
+			double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+			final double[] corner = new double[ n ];
 
-			while ( cursor.hasNext() )
+			// all corners of the ROI, in 3d for the first and last slice
+			for ( int c = 0; c < ( 1 << n ); ++c )
 			{
-				cursor.fwd();
-				cursor.getPosition( location );
-				
-				// only get new imageprocessor if necessary
-				if ( location[ 2 ] != z )
+				corner[ 0 ] = ( c & 1 ) == 0 ? r.x : r.x + r.width;
+				corner[ 1 ] = ( c & 2 ) == 0 ? r.y : r.y + r.height;
+
+				if ( n == 3 )
+					corner[ 2 ] = ( c & 4 ) == 0 ? full[ 0 ][ 2 ] : full[ 1 ][ 2 ];
+
+				try
 				{
-					z = location[ 2 ];
-					
-					ip = imp.getStack().getProcessor( imp.getStackIndex( channel, z + 1, timepoint ) );
+					model.applyInverseInPlace( corner );
 				}
-				
-				cursor.getType().set( ip.getPixelValue( location[ 0 ], location[ 1 ] ) );
+				catch ( NoninvertibleModelException e )
+				{
+					return null;
+				}
+
+				minX = Math.min( minX, corner[ 0 ] );
+				minY = Math.min( minY, corner[ 1 ] );
+				maxX = Math.max( maxX, corner[ 0 ] );
+				maxY = Math.max( maxY, corner[ 1 ] );
 			}
+
+			box[ 0 ][ 0 ] = (int)Math.floor( minX ) - margin;
+			box[ 0 ][ 1 ] = (int)Math.floor( minY ) - margin;
+			box[ 1 ][ 0 ] = (int)Math.ceil( maxX ) + margin;
+			box[ 1 ][ 1 ] = (int)Math.ceil( maxY ) + margin;
 		}
 
-		ViewDataBeads.normalizeImage( img, minmax );
+		for ( int d = 0; d < 2; ++d )
+		{
+			box[ 0 ][ d ] = Math.max( full[ 0 ][ d ], box[ 0 ][ d ] );
+			box[ 1 ][ d ] = Math.min( full[ 1 ][ d ], box[ 1 ][ d ] );
 
-		return img;
+			// the ROI is outside of the image, keep a valid (small) region
+			if ( box[ 1 ][ d ] < box[ 0 ][ d ] )
+				box[ 1 ][ d ] = box[ 0 ][ d ];
+		}
+
+		if ( containsBox( box, full ) )
+			return null;
+
+		return box;
 	}
 
-	protected static ArrayList<DifferenceOfGaussianPeak<FloatType>> filterForROI( final Roi roi, final ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks )
+	/**
+	 * @return { min, max } of the entire image
+	 */
+	protected static int[][] getFullBox( final ImagePlus imp )
 	{
-		if ( roi == null )
-		{
-			return peaks;
-		}
+		if ( imp.getNSlices() > 1 )
+			return new int[][]{ { 0, 0, 0 }, { imp.getWidth() - 1, imp.getHeight() - 1, imp.getNSlices() - 1 } };
 		else
+			return new int[][]{ { 0, 0 }, { imp.getWidth() - 1, imp.getHeight() - 1 } };
+	}
+
+	protected static boolean containsBox( final int[][] outer, final int[][] inner )
+	{
+		for ( int d = 0; d < outer[ 0 ].length; ++d )
+			if ( inner[ 0 ][ d ] < outer[ 0 ][ d ] || inner[ 1 ][ d ] > outer[ 1 ][ d ] )
+				return false;
+
+		return true;
+	}
+
+	protected static int[][] unionBox( final int[][] a, final int[][] b )
+	{
+		final int n = a[ 0 ].length;
+		final int[][] union = new int[ 2 ][ n ];
+
+		for ( int d = 0; d < n; ++d )
 		{
-			final ArrayList<DifferenceOfGaussianPeak<FloatType>> peaksNew = new ArrayList<DifferenceOfGaussianPeak<FloatType>>();
-			
-			for ( final DifferenceOfGaussianPeak<FloatType> peak : peaks )
-				if ( roi.contains( Math.round( peak.getSubPixelPosition( 0 ) ), Math.round( peak.getSubPixelPosition( 1 ) ) ) )
-					peaksNew.add( peak );
-			
-			return peaksNew;
+			union[ 0 ][ d ] = Math.min( a[ 0 ][ d ], b[ 0 ][ d ] );
+			union[ 1 ][ d ] = Math.max( a[ 1 ][ d ], b[ 1 ][ d ] );
 		}
+
+		return union;
+	}
+
+	protected static PeakTable filterForROI( final Roi roi, final PeakTable peaks )
+	{
+		return filterForROI( roi, peaks, null );
 	}
 
-	protected static ArrayList<DifferenceOfGaussianPeak<FloatType>> filterForROI( final Roi roi, final ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks, final Model<?> model )
+	/**
+	 * @param model - the model that maps the peaks into the coordinates of the ROI or null
+	 * @return the peaks inside the ROI (a new table), or the same table if there is no ROI
+	 */
+	protected static PeakTable filterForROI( final Roi roi, final PeakTable peaks, final Model<?> model )
 	{
 		if ( roi == null )
-		{
 			return peaks;
-		}
 		else
+			return select( peaks, containedInROI( roi, peaks, model ) );
+	}
+
+	/**
+	 * @param model - the model that maps the peaks into the coordinates of the ROI or null
+	 * @return which peaks are inside the ROI, all if there is no ROI
+	 */
+	protected static BitSet containedInROI( final Roi roi, final PeakTable peaks, final Model<?> model )
+	{
+		final BitSet inside = new BitSet( peaks.size() );
+
+		if ( roi == null )
 		{
-			final ArrayList<DifferenceOfGaussianPeak<FloatType>> peaksNew = new ArrayList<DifferenceOfGaussianPeak<FloatType>>();
-			
-			// init a temporary point that we will transform
-			final int numDimensions = peaks.get( 0 ).getSubPixelPosition().length;
-			final double[] tmp = new double[ numDimensions ];
-			
-			for ( final DifferenceOfGaussianPeak<FloatType> peak : peaks )
+			inside.set( 0, peaks.size() );
+			return inside;
+		}
+
+		// init a temporary point that we will transform
+		final int numDimensions = peaks.getNumDimensions();
+		final double[] tmp = new double[ numDimensions ];
+
+		for ( int i = 0; i < peaks.size(); ++i )
+		{
+			if ( model == null )
+			{
+				if ( roi.contains( Math.round( peaks.getSubPixelPosition( i, 0 ) ), Math.round( peaks.getSubPixelPosition( i, 1 ) ) ) )
+					inside.set( i );
+			}
+			else
 			{
 				// update tmp
 				for ( int d = 0; d < numDimensions; ++d )
-					tmp[ d ] = peak.getSubPixelPosition( d );
-				
+					tmp[ d ] = peaks.getSubPixelPosition( i, d );
+
 				// apply the model
 				model.applyInPlace( tmp );
-				
+
 				if ( roi.contains( (int)Math.round( tmp[ 0 ] ), (int)Math.round( tmp[ 1 ] ) ) )
-					peaksNew.add( peak );
+					inside.set( i );
 			}
-			
-			return peaksNew;
 		}
+
+		return inside;
+	}
+
+	/**
+	 * @return a new table with the selected peaks
+	 */
+	protected static PeakTable select( final PeakTable peaks, final BitSet selection )
+	{
+		final PeakTable copy = peaks.copyValid();
+
+		for ( int i = 0; i < copy.size(); ++i )
+			copy.setValid( i, selection.get( i ) );
+
+		copy.compact();
+
+		return copy;
 	}
 
 	protected static void setPointRois( final ImagePlus imp1, final ImagePlus imp2, final ArrayList<PointMatch> inliers )
@@ -1177,8 +1754,22 @@ public class Matching
 	}
 
 	protected static ArrayList<PointMatch> getCorrespondenceCandidates( final double nTimesBetter, final Matcher matcher, 
-			ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks1, ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks2, 
+			final PeakTable peaks1, final PeakTable peaks2, 
 			final Model<?> model, final int dimensionality, final float zStretching1, final float zStretching2, String explanation )
+	{
+		return getCorrespondenceCandidates( nTimesBetter, matcher, peaks1, peaks2, model, dimensionality, zStretching1, zStretching2, explanation, null, null, Threads.numThreads() );
+	}
+
+	/**
+	 * @param cache1 - the cached neighbors of peaks1 or null, must only be given if the model does not move the points of peaks1
+	 * relative to each other (null or identity) or if they keep their order of distances
+	 * @param cache2 - the cached neighbors of peaks2 or null
+	 * @param numThreads - how many threads to use for the neighbor search and the descriptors
+	 */
+	protected static ArrayList<PointMatch> getCorrespondenceCandidates( final double nTimesBetter, final Matcher matcher, 
+			final PeakTable peaks1, final PeakTable peaks2, 
+			final Model<?> model, final int dimensionality, final float zStretching1, final float zStretching2, String explanation,
+			final DescriptorCache.Entry cache1, final DescriptorCache.Entry cache2, final int numThreads )
 	{
 		// test if there are enough points for the matcher
 		if ( peaks1.size() <= matcher.getRequiredNumNeighbors() || peaks2.size() <= matcher.getRequiredNumNeighbors() )
@@ -1196,50 +1787,54 @@ public class Matching
 		if ( model == null )
 		{
 			// no prior model known, do a locally rigid matching
-			for ( DifferenceOfGaussianPeak<FloatType> peak : peaks1 )
-				listA.add( new Particle( id++, peak, zStretching1 ) );
-			for ( DifferenceOfGaussianPeak<FloatType> peak : peaks2 )
-				listB.add( new Particle( id++, peak, zStretching2 ) );
+			for ( int i = 0; i < peaks1.size(); ++i )
+				listA.add( new Particle( id++, peaks1, i, zStretching1 ) );
+			for ( int i = 0; i < peaks2.size(); ++i )
+				listB.add( new Particle( id++, peaks2, i, zStretching2 ) );
 		}
 		else
 		{
 			// prior model known, apply to the points before matching and then do a simple descriptor matching
-			for ( DifferenceOfGaussianPeak<FloatType> peak : peaks1 )
+			for ( int i = 0; i < peaks1.size(); ++i )
 			{
-				final Particle particle = new Particle( id++, peak, zStretching1 );			
+				final Particle particle = new Particle( id++, peaks1, i, zStretching1 );			
 				particle.apply( model );
 				for ( int d = 0; d < particle.getL().length; ++d )
 					particle.getL()[ d ] = particle.getW()[ d ];
 				listA.add( particle );
 			}
 			
-			for ( DifferenceOfGaussianPeak<FloatType> peak : peaks2 )
+			for ( int i = 0; i < peaks2.size(); ++i )
 			{
-				final Particle particle = new Particle( id++, peak, zStretching2 );
+				final Particle particle = new Particle( id++, peaks2, i, zStretching2 );
 				listB.add( particle );
 			}
 		}
 		
-		/* create KDTrees */	
-		final KDTree< Particle > treeA = new KDTree< Particle >( listA );
-		final KDTree< Particle > treeB = new KDTree< Particle >( listB );
-		
 		/* extract point descriptors */						
 		final int numNeighbors = matcher.getRequiredNumNeighbors();
+
+		/* find the neighbors of every point, cached ones are searched only once for all pairs */
+		final Particle[][] neighborsA = cache1 != null && cache1.numNeighbors == numNeighbors ? cache1.getNeighborLists( listA, numThreads ) : findNeighbors( listA, numNeighbors, numThreads );
+		final Particle[][] neighborsB = cache2 != null && cache2.numNeighbors == numNeighbors ? cache2.getNeighborLists( listB, numThreads ) : findNeighbors( listB, numNeighbors, numThreads );
 		
 		final SimilarityMeasure similarityMeasure = new SquareDistance();
 		
 		final ArrayList< AbstractPointDescriptor > descriptorsA, descriptorsB;
+
+		// the features for the preselection of candidates, one per descriptor
+		final ArrayList< float[] > featuresA = DescriptorParameters.descriptorCandidates > 0 ? new ArrayList< float[] >() : null;
+		final ArrayList< float[] > featuresB = DescriptorParameters.descriptorCandidates > 0 ? new ArrayList< float[] >() : null;
 		
 		if ( model == null )
 		{
-			descriptorsA = createModelPointDescriptors( treeA, listA, numNeighbors, matcher, similarityMeasure, dimensionality );
-			descriptorsB = createModelPointDescriptors( treeB, listB, numNeighbors, matcher, similarityMeasure, dimensionality );
+			descriptorsA = createModelPointDescriptors( listA, neighborsA, matcher, similarityMeasure, dimensionality, featuresA, numThreads );
+			descriptorsB = createModelPointDescriptors( listB, neighborsB, matcher, similarityMeasure, dimensionality, featuresB, numThreads );
 		}
 		else
 		{
-			descriptorsA = createSimplePointDescriptors( treeA, listA, numNeighbors, matcher, similarityMeasure );
-			descriptorsB = createSimplePointDescriptors( treeB, listB, numNeighbors, matcher, similarityMeasure );
+			descriptorsA = createSimplePointDescriptors( listA, neighborsA, matcher, similarityMeasure, featuresA, numThreads );
+			descriptorsB = createSimplePointDescriptors( listB, neighborsB, matcher, similarityMeasure, featuresB, numThreads );
 		}
 		
 		//IJ.log( "before" );
@@ -1252,7 +1847,23 @@ public class Matching
 		
 		/* compute matching */
 		/* the list of correspondence candidates */
-		final ArrayList<PointMatch> correspondenceCandidates = findCorrespondingDescriptors( descriptorsA, descriptorsB, (float)nTimesBetter );
+		final ArrayList<PointMatch> correspondenceCandidates;
+
+		if ( featuresA != null )
+		{
+			// the second best candidate is needed for nTimesBetter
+			final int numCandidates = Math.max( 2, DescriptorParameters.descriptorCandidates );
+
+			if ( numCandidates != DescriptorParameters.descriptorCandidates )
+				IJ.log( "descriptorCandidates = " + DescriptorParameters.descriptorCandidates + " is too small, comparing " + numCandidates + " candidates per descriptor." );
+
+			correspondenceCandidates = findCorrespondingDescriptors( descriptorsA, descriptorsB, featuresA, featuresB, (float)nTimesBetter,
+					numCandidates, DescriptorParameters.descriptorMaxChecks, numThreads );
+		}
+		else if ( model != null && DescriptorParameters.descriptorMatrix == 1 )
+			correspondenceCandidates = findCorrespondingDescriptors( descriptorsA, descriptorsB, matcher, (float)nTimesBetter, numThreads );
+		else
+			correspondenceCandidates = findCorrespondingDescriptors( descriptorsA, descriptorsB, (float)nTimesBetter, numThreads );
 
 		//IJ.log( "after" );
 		//for ( final Particle p : listA )
@@ -1265,121 +1876,399 @@ public class Matching
 		return correspondenceCandidates;
 	}
 	
-	protected static final ArrayList<PointMatch> findCorrespondingDescriptors( final ArrayList<AbstractPointDescriptor> descriptorsA, final ArrayList<AbstractPointDescriptor> descriptorsB, final float nTimesBetter )
+	/**
+	 * How many descriptors of A a thread takes at once in findCorrespondingDescriptors
+	 */
+	final static int matchingChunkSize = 64;
+
+	/**
+	 * Finds for every descriptor of A the best and second best descriptor of B, the chunks of A are matched in parallel.
+	 * A descriptor of A is only used by one thread (descriptorDistance changes its points), those of B are only read.
+	 *
+	 * @param numThreads - how many threads to use
+	 * @return the correspondence candidates, in the order of descriptorsA
+	 */
+	protected static final ArrayList<PointMatch> findCorrespondingDescriptors( final ArrayList<AbstractPointDescriptor> descriptorsA, final ArrayList<AbstractPointDescriptor> descriptorsB,
+			final float nTimesBetter, final int numThreads )
 	{
-		final ArrayList<PointMatch> correspondenceCandidates = new ArrayList<PointMatch>();
-		
-		for ( final AbstractPointDescriptor descriptorA : descriptorsA )
+		return matchDescriptors( descriptorsA, descriptorsB, nTimesBetter, new DescriptorMatchFactory()
 		{
-			double bestDifference = Double.MAX_VALUE;			
-			double secondBestDifference = Double.MAX_VALUE;
-			
-			AbstractPointDescriptor bestMatch = null;
-			AbstractPointDescriptor secondBestMatch = null;
+			@Override
+			public DescriptorMatch create()
+			{
+				return new DescriptorMatch()
+				{
+					@Override
+					public void match( final int a )
+					{
+						final AbstractPointDescriptor descriptorA = descriptorsA.get( a );
 
-			for ( final AbstractPointDescriptor descriptorB : descriptorsB )
+						for ( int b = 0; b < descriptorsB.size(); ++b )
+							add( b, descriptorA.descriptorDistance( descriptorsB.get( b ) ) );
+					}
+				};
+			}
+		}, numThreads );
+	}
+
+	/**
+	 * Same as {@link #findCorrespondingDescriptors(ArrayList, ArrayList, float, int)}, but every descriptor of A is only compared to the
+	 * numCandidates descriptors of B whose features are closest to its own (kd-tree, see {@link DescriptorIndex}). The best and
+	 * second best match are chosen among them by descriptorDistance and tested with minSimilarity and nTimesBetter as before;
+	 * more candidates and maxChecks = 0 (exact feature search) give a higher recall, fewer candidates are faster.
+	 *
+	 * @param featuresA - the feature of each descriptor of A
+	 * @param featuresB - the feature of each descriptor of B
+	 * @param numCandidates - how many descriptors of B are compared to each descriptor of A, at least 2
+	 * @param maxChecks - how many leaves of the kd-tree are visited at most, 0 == exact
+	 * @param numThreads - how many threads to use
+	 */
+	protected static final ArrayList<PointMatch> findCorrespondingDescriptors( final ArrayList<AbstractPointDescriptor> descriptorsA, final ArrayList<AbstractPointDescriptor> descriptorsB,
+			final ArrayList< float[] > featuresA, final ArrayList< float[] > featuresB, final float nTimesBetter, final int numCandidates, final int maxChecks, final int numThreads )
+	{
+		final DescriptorIndex index = new DescriptorIndex( featuresB.toArray( new float[ featuresB.size() ][] ) );
+
+		return matchDescriptors( descriptorsA, descriptorsB, nTimesBetter, new DescriptorMatchFactory()
+		{
+			@Override
+			public DescriptorMatch create()
 			{
-				final double difference = descriptorA.descriptorDistance( descriptorB );
+				// the searcher has a state, the tree is only read
+				final DescriptorIndex.Searcher searcher = new DescriptorIndex.Searcher( index, numCandidates, maxChecks );
 
-				if ( difference < secondBestDifference )
-				{					
-					secondBestDifference = difference;
-					secondBestMatch = descriptorB;
-					
-					if ( secondBestDifference < bestDifference )
+				return new DescriptorMatch()
+				{
+					@Override
+					public void match( final int a )
 					{
-						double tmpDiff = secondBestDifference;
-						AbstractPointDescriptor tmpMatch = secondBestMatch;
-						
-						secondBestDifference = bestDifference;
-						secondBestMatch = bestMatch;
-						
-						bestDifference = tmpDiff;
-						bestMatch = tmpMatch;
+						final AbstractPointDescriptor descriptorA = descriptorsA.get( a );
+						final int numFound = searcher.search( featuresA.get( a ) );
+
+						for ( int c = 0; c < numFound; ++c )
+						{
+							final int b = searcher.getNearest( c );
+							add( b, descriptorA.descriptorDistance( descriptorsB.get( b ) ) );
+						}
 					}
-				}				
-			}
-			
-			if ( bestDifference < DescriptorParameters.minSimilarity && bestDifference * nTimesBetter < secondBestDifference )
-			{	
-				// add correspondence for the two basis points of the descriptor
-				Particle particleA = (Particle)descriptorA.getBasisPoint();
-				Particle particleB = (Particle)bestMatch.getBasisPoint();
-				
-				// for RANSAC
-				correspondenceCandidates.add( new PointMatch( particleA, particleB ) );
-				
-				if ( DescriptorParameters.printAllSimilarities )
-					IJ.log( particleA.id + " <-> " + particleB.id + " = " + bestDifference );
+				};
 			}
+		}, numThreads );
+	}
+
+	/**
+	 * Same as {@link #findCorrespondingDescriptors(ArrayList, ArrayList, float, int)} for translation-invariant descriptors, but the
+	 * distances are computed on a {@link DescriptorMatrix} of each image, a comparison is stopped as soon as it cannot be better
+	 * than the second best match so far. If the matrices do not reproduce descriptorDistance, all descriptors are compared one by one.
+	 *
+	 * @param matcher - the matcher the descriptors were created with
+	 * @param numThreads - how many threads to use
+	 */
+	protected static final ArrayList<PointMatch> findCorrespondingDescriptors( final ArrayList<AbstractPointDescriptor> descriptorsA, final ArrayList<AbstractPointDescriptor> descriptorsB,
+			final Matcher matcher, final float nTimesBetter, final int numThreads )
+	{
+		final DescriptorMatrix matrixA = new DescriptorMatrix( descriptorsA, matcher );
+		final DescriptorMatrix matrixB = new DescriptorMatrix( descriptorsB, matcher );
+
+		if ( !DescriptorMatrix.agrees( descriptorsA, matrixA, descriptorsB, matrixB ) )
+		{
+			IJ.log( "Descriptors cannot be compared as a matrix, comparing them one by one." );
+			return findCorrespondingDescriptors( descriptorsA, descriptorsB, nTimesBetter, numThreads );
 		}
-		
-		return correspondenceCandidates;
+
+		final double normalization = matrixA.getNormalization();
+
+		return matchDescriptors( descriptorsA, descriptorsB, nTimesBetter, new DescriptorMatchFactory()
+		{
+			@Override
+			public DescriptorMatch create()
+			{
+				return new DescriptorMatch()
+				{
+					@Override
+					public void match( final int a )
+					{
+						// not normalized, a comparison stops once it cannot beat the second best
+						double bestDistance = Double.MAX_VALUE;
+						double secondBestDistance = Double.MAX_VALUE;
+
+						for ( int b = 0; b < matrixB.size(); ++b )
+						{
+							final double distance = matrixA.distance( a, matrixB, b, secondBestDistance );
+
+							if ( distance < secondBestDistance )
+							{
+								add( b, distance * normalization );
+
+								if ( distance < bestDistance )
+								{
+									secondBestDistance = bestDistance;
+									bestDistance = distance;
+								}
+								else
+								{
+									secondBestDistance = distance;
+								}
+							}
+						}
+					}
+				};
+			}
+		}, numThreads );
 	}
 
-	protected static ArrayList< AbstractPointDescriptor > createSimplePointDescriptors( final KDTree< Particle > tree, final ArrayList< Particle > basisPoints, 
-			final int numNeighbors, final Matcher matcher, final SimilarityMeasure similarityMeasure )
+	/**
+	 * Finds the best and second best descriptor of B for one descriptor of A at a time, every thread has its own instance
+	 */
+	protected static abstract class DescriptorMatch
 	{
-		final NNearestNeighborSearch< Particle > nnsearch = new NNearestNeighborSearch< Particle >( tree );
-		final ArrayList< AbstractPointDescriptor > descriptors = new ArrayList< AbstractPointDescriptor > ( );
-		
-		for ( final Particle p : basisPoints )
+		int bestMatch;
+		double bestDifference, secondBestDifference;
+
+		/**
+		 * Compares descriptor a of A to descriptors of B, each with {@link #add(int, double)}
+		 */
+		public abstract void match( final int a );
+
+		protected void reset()
 		{
-			final ArrayList< Particle > neighbors = new ArrayList< Particle >();
-			final Particle neighborList[] = nnsearch.findNNearestNeighbors( p, numNeighbors + 1 );
-			
-			// the first hit is always the point itself
-			for ( int n = 1; n < neighborList.length; ++n )
-				neighbors.add( neighborList[ n ] );
-			
-			try
+			bestMatch = -1;
+			bestDifference = secondBestDifference = Double.MAX_VALUE;
+		}
+
+		/**
+		 * @param b - the index of the descriptor of B
+		 * @param difference - its descriptor distance
+		 */
+		protected void add( final int b, final double difference )
+		{
+			if ( difference < bestDifference )
 			{
-				descriptors.add( new SimplePointDescriptor<Particle>( p, neighbors, similarityMeasure, matcher ) );
+				secondBestDifference = bestDifference;
+				bestDifference = difference;
+				bestMatch = b;
 			}
-			catch ( NoSuitablePointsException e )
+			else if ( difference < secondBestDifference )
 			{
-				e.printStackTrace();
+				secondBestDifference = difference;
 			}
 		}
-		
-		return descriptors;
 	}
 
-	protected static ArrayList< AbstractPointDescriptor > createModelPointDescriptors( final KDTree< Particle > tree, final ArrayList< Particle > basisPoints, 
-			final int numNeighbors, final Matcher matcher, final SimilarityMeasure similarityMeasure, final int dimensionality )
+	protected static interface DescriptorMatchFactory
 	{
-		final NNearestNeighborSearch< Particle > nnsearch = new NNearestNeighborSearch< Particle >( tree );
-		final ArrayList< AbstractPointDescriptor > descriptors = new ArrayList< AbstractPointDescriptor > ( );
-		
-		for ( final Particle p : basisPoints )
-		{
-			final ArrayList< Particle > neighbors = new ArrayList< Particle >();
-			final Particle neighborList[] = nnsearch.findNNearestNeighbors( p, numNeighbors + 1 );
-			
-			// the first hit is always the point itself
-			for ( int n = 1; n < neighborList.length; ++n )
-				neighbors.add( neighborList[ n ] );
-			
-			final TranslationInvariantModel<?> model;
-			
-			if ( dimensionality == 2 )
-				model = new TranslationInvariantRigidModel2D();
-			else if ( dimensionality == 3 )
-				model = new TranslationInvariantRigidModel3D();
-			else
+		public DescriptorMatch create();
+	}
+
+	/**
+	 * Matches the chunks of A in parallel with one {@link DescriptorMatch} per thread, a match is kept if it is closer than
+	 * minSimilarity and nTimesBetter than the second best
+	 *
+	 * @return the correspondence candidates, in the order of descriptorsA
+	 */
+	protected static ArrayList<PointMatch> matchDescriptors( final ArrayList<AbstractPointDescriptor> descriptorsA, final ArrayList<AbstractPointDescriptor> descriptorsB,
+			final float nTimesBetter, final DescriptorMatchFactory factory, final int numThreads )
+	{
+		final PointMatch[] matches = new PointMatch[ descriptorsA.size() ];
+		final double[] differences = new double[ descriptorsA.size() ];
+
+		final int numChunks = ( matches.length + matchingChunkSize - 1 ) / matchingChunkSize;
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numChunks ) ) );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
 			{
-				IJ.log( "dimensionality " + dimensionality + " not supported." );
-				return descriptors;
-			}
-				
-			try
+				public void run()
+				{
+					final DescriptorMatch match = factory.create();
+
+					for ( int chunk = ai.getAndIncrement(); chunk < numChunks; chunk = ai.getAndIncrement() )
+					{
+						final int end = Math.min( matches.length, ( chunk + 1 ) * matchingChunkSize );
+
+						for ( int a = chunk * matchingChunkSize; a < end; ++a )
+						{
+							match.reset();
+							match.match( a );
+
+							if ( match.bestMatch >= 0 && match.bestDifference < DescriptorParameters.minSimilarity && match.bestDifference * nTimesBetter < match.secondBestDifference )
+							{
+								// add correspondence for the two basis points of the descriptor
+								matches[ a ] = new PointMatch( descriptorsA.get( a ).getBasisPoint(), descriptorsB.get( match.bestMatch ).getBasisPoint() );
+								differences[ a ] = match.bestDifference;
+							}
+						}
+					}
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		return collectCandidates( matches, differences );
+	}
+
+	/**
+	 * Merges the matches of all chunks in the order of descriptorsA, so the result does not depend on the number of threads
+	 *
+	 * @param matches - the match of each descriptor of A or null
+	 * @param differences - the descriptor distance of each match
+	 */
+	protected static ArrayList<PointMatch> collectCandidates( final PointMatch[] matches, final double[] differences )
+	{
+		final ArrayList<PointMatch> correspondenceCandidates = new ArrayList<PointMatch>();
+
+		for ( int a = 0; a < matches.length; ++a )
+		{
+			if ( matches[ a ] == null )
+				continue;
+
+			// for RANSAC
+			correspondenceCandidates.add( matches[ a ] );
+
+			if ( DescriptorParameters.printAllSimilarities )
+				IJ.log( ((Particle)matches[ a ].getP1()).id + " <-> " + ((Particle)matches[ a ].getP2()).id + " = " + differences[ a ] );
+		}
+
+		return correspondenceCandidates;
+	}
+
+	/**
+	 * Searches the neighbors in parallel, every thread has its own {@link NNearestNeighborSearch} on the same kd-tree
+	 *
+	 * @param numThreads - how many threads to use
+	 * @return for every particle the result of the nearest neighbor search, the particle itself and its numNeighbors nearest neighbors
+	 */
+	protected static Particle[][] findNeighbors( final ArrayList< Particle > particles, final int numNeighbors, final int numThreads )
+	{
+		final KDTree< Particle > tree = new KDTree< Particle >( particles );
+		final Particle[][] neighborLists = new Particle[ particles.size() ][];
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, particles.size() ) ) );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
 			{
-				descriptors.add( new ModelPointDescriptor<Particle>( p, neighbors, model, similarityMeasure, matcher ) );
-			}
-			catch ( NoSuitablePointsException e )
+				public void run()
+				{
+					// the search has a state, the tree is only read
+					final NNearestNeighborSearch< Particle > nnsearch = new NNearestNeighborSearch< Particle >( tree );
+
+					for ( int i = ai.getAndIncrement(); i < neighborLists.length; i = ai.getAndIncrement() )
+						neighborLists[ i ] = nnsearch.findNNearestNeighbors( particles.get( i ), numNeighbors + 1 );
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		return neighborLists;
+	}
+
+	/**
+	 * Creates the descriptors in parallel, they are returned in the order of the basis points (without those that failed)
+	 *
+	 * @param neighborLists - the nearest neighbors of each basis point, see {@link #findNeighbors(ArrayList, int, int)}
+	 * @param features - if not null, the feature of every descriptor is added (see {@link DescriptorIndex#relativeCoordinates(Particle, Particle[])})
+	 * @param numThreads - how many threads to use
+	 */
+	protected static ArrayList< AbstractPointDescriptor > createSimplePointDescriptors( final ArrayList< Particle > basisPoints, final Particle[][] neighborLists,
+			final Matcher matcher, final SimilarityMeasure similarityMeasure, final ArrayList< float[] > features, final int numThreads )
+	{
+		return createPointDescriptors( basisPoints, neighborLists, matcher, similarityMeasure, 0, features, numThreads );
+	}
+
+	/**
+	 * Creates the rotation-invariant descriptors in parallel, they are returned in the order of the basis points (without those that failed)
+	 *
+	 * @param neighborLists - the nearest neighbors of each basis point, see {@link #findNeighbors(ArrayList, int, int)}
+	 * @param features - if not null, the feature of every descriptor is added (see {@link DescriptorIndex#distances(Particle, Particle[])})
+	 * @param numThreads - how many threads to use
+	 */
+	protected static ArrayList< AbstractPointDescriptor > createModelPointDescriptors( final ArrayList< Particle > basisPoints, final Particle[][] neighborLists,
+			final Matcher matcher, final SimilarityMeasure similarityMeasure, final int dimensionality, final ArrayList< float[] > features, final int numThreads )
+	{
+		if ( dimensionality != 2 && dimensionality != 3 )
+		{
+			IJ.log( "dimensionality " + dimensionality + " not supported." );
+			return new ArrayList< AbstractPointDescriptor >();
+		}
+
+		return createPointDescriptors( basisPoints, neighborLists, matcher, similarityMeasure, dimensionality, features, numThreads );
+	}
+
+	/**
+	 * @param dimensionality - 0 == SimplePointDescriptor, 2 or 3 == ModelPointDescriptor with a rigid model
+	 */
+	protected static ArrayList< AbstractPointDescriptor > createPointDescriptors( final ArrayList< Particle > basisPoints, final Particle[][] neighborLists,
+			final Matcher matcher, final SimilarityMeasure similarityMeasure, final int dimensionality, final ArrayList< float[] > features, final int numThreads )
+	{
+		// every basis point has its slot so that the order does not depend on the threads
+		final AbstractPointDescriptor[] descriptorSlots = new AbstractPointDescriptor[ basisPoints.size() ];
+		final float[][] featureSlots = new float[ basisPoints.size() ][];
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, basisPoints.size() ) ) );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
 			{
-				e.printStackTrace();
-			}
+				public void run()
+				{
+					for ( int i = ai.getAndIncrement(); i < descriptorSlots.length; i = ai.getAndIncrement() )
+					{
+						final Particle p = basisPoints.get( i );
+						final ArrayList< Particle > neighbors = new ArrayList< Particle >();
+						final Particle neighborList[] = neighborLists[ i ];
+						
+						// the first hit is always the point itself
+						for ( int n = 1; n < neighborList.length; ++n )
+							neighbors.add( neighborList[ n ] );
+						
+						try
+						{
+							if ( dimensionality == 0 )
+							{
+								descriptorSlots[ i ] = new SimplePointDescriptor<Particle>( p, neighbors, similarityMeasure, matcher );
+
+								if ( features != null )
+									featureSlots[ i ] = DescriptorIndex.relativeCoordinates( p, neighborList );
+							}
+							else
+							{
+								final TranslationInvariantModel<?> model;
+
+								if ( dimensionality == 2 )
+									model = new TranslationInvariantRigidModel2D();
+								else
+									model = new TranslationInvariantRigidModel3D();
+
+								descriptorSlots[ i ] = new ModelPointDescriptor<Particle>( p, neighbors, model, similarityMeasure, matcher );
+
+								if ( features != null )
+									featureSlots[ i ] = DescriptorIndex.distances( p, neighborList );
+							}
+						}
+						catch ( NoSuitablePointsException e )
+						{
+							e.printStackTrace();
+						}
+					}
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		final ArrayList< AbstractPointDescriptor > descriptors = new ArrayList< AbstractPointDescriptor > ( descriptorSlots.length );
+
+		for ( int i = 0; i < descriptorSlots.length; ++i )
+		{
+			if ( descriptorSlots[ i ] == null )
+				continue;
+
+			descriptors.add( descriptorSlots[ i ] );
+
+			if ( features != null )
+				features.add( featureSlots[ i ] );
 		}
 		
 		return descriptors;
@@ -1389,8 +2278,19 @@ public class Matching
 			final boolean lookForMaxima, final boolean lookForMinima, final float threshold, final int localization, 
 			final int iterations, final double[] sigmaGuess, final int[] region ) // gaussian fit parameters
 	{
-		return DetectionSegmentation.extractBeadsLaPlaceImgLib( image, new OutOfBoundsStrategyMirrorFactory<FloatType>(), 0.5f, sigma1, sigma2, threshold, threshold/4, lookForMaxima, lookForMinima, 
-				localization, iterations, sigmaGuess, region, ViewStructure.DEBUG_MAIN );
+		return computeDoG( image, sigma1, sigma2, lookForMaxima, lookForMinima, threshold, localization, iterations, sigmaGuess, region, Threads.numThreads() );
+	}
+
+	protected static ArrayList<DifferenceOfGaussianPeak<FloatType>> computeDoG( final Image<FloatType> image, final float sigma1, final float sigma2, 
+			final boolean lookForMaxima, final boolean lookForMinima, final float threshold, final int localization, 
+			final int iterations, final double[] sigmaGuess, final int[] region, final int numThreads ) // gaussian fit parameters
+	{
+		if ( DescriptorParameters.pyramidMinSigma > 0 )
+			return DoGPyramid.extractBeadsLaPlaceImgLib( image, new OutOfBoundsStrategyMirrorFactory<FloatType>(), 0.5f, sigma1, sigma2, threshold, threshold/4, lookForMaxima, lookForMinima, 
+					localization, iterations, sigmaGuess, region, DescriptorParameters.dogEngine, DescriptorParameters.pyramidMinSigma, numThreads, ViewStructure.DEBUG_MAIN );
+		else
+			return DetectionSegmentation.extractBeadsLaPlaceImgLib( image, new OutOfBoundsStrategyMirrorFactory<FloatType>(), 0.5f, sigma1, sigma2, threshold, threshold/4, lookForMaxima, lookForMinima, 
+					localization, iterations, sigmaGuess, region, DescriptorParameters.dogEngine, numThreads, ViewStructure.DEBUG_MAIN );
 	}
 
 	private static PrintWriter openFileWrite(final File file)
@@ -1408,25 +2308,12 @@ public class Matching
 		return (outputFile);
 	}
 
-	protected static int[] removeInvalidAndCollectStatistics( ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks )
+	protected static int[] removeInvalidAndCollectStatistics( final PeakTable peaks )
 	{
-		int min = 0;
-		int max = 0;
-
-		// remove entries that are too low
-        for ( int i = peaks.size() - 1; i >= 0; --i )
-        {
-        	final DifferenceOfGaussianPeak<FloatType> peak = peaks.get( i );
-        	
-        	if ( !peak.isValid() )
-        		peaks.remove( i );
-        	else if ( peak.getPeakType() == SpecialPoint.MIN )
-				min++;
-			else if ( peak.getPeakType() == SpecialPoint.MAX )
-				max++;
-        }
-        
-        return new int[]{ min, max };
+		// remove invalid entries in one pass
+		peaks.compact();
+
+		return peaks.countTypes();
 	}
 
 	public static void main( String[] args ) throws NotEnoughDataPointsException
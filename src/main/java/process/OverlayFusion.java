@@ -34,6 +34,7 @@ import mpicbg.imglib.type.numeric.real.FloatType;
 import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.InvertibleCoordinateTransform;
 import mpicbg.models.NoninvertibleModelException;
+import spim.Threads;
 
 public class OverlayFusion 
 {
@@ -131,7 +132,8 @@ public class OverlayFusion
 		}
 		
 		// for output
-		final ImageFactory<T> f = new ImageFactory<T>( targetType, new ImagePlusContainerFactory() );
+		final ImagePlusContainerFactory containerFactory = new ImagePlusContainerFactory();
+		final ImageFactory<T> f = new ImageFactory<T>( targetType, containerFactory );
 		// the composite
 		final ImageStack stack = new ImageStack( size[ 0 ], size[ 1 ] );
 
@@ -139,11 +141,19 @@ public class OverlayFusion
 		{
 			for ( int c = 1; c <= imp.getNChannels(); ++c )
 			{
-				final Image<T> out = f.createImage( size );
+				// the output is kept in the stack unless it is written to disk, fuseChannel overwrites every pixel
+				final Image<T> out = directory == null ? f.createImage( size ) : ImagePool.lease( targetType, containerFactory, size );
+
+				// an exact float copy of the channel/timepoint (min=0, max=1 does not change the values)
+				final Image<FloatType> in = Matching.leaseFloat( imp, c - 1, t - 1, new float[]{ 0, 1 }, Threads.numThreads() );
+
 				if ( useNearestNeighborInterpolation )
-					fuseChannel( out, ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), offset, models.get( t - 1 ), new NearestNeighborInterpolatorFactory<FloatType>( new OutOfBoundsStrategyValueFactory<FloatType>() ) );
+					fuseChannel( out, in, offset, models.get( t - 1 ), new NearestNeighborInterpolatorFactory<FloatType>( new OutOfBoundsStrategyValueFactory<FloatType>() ) );
 				else
-					fuseChannel( out, ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), offset, models.get( t - 1 ), new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyValueFactory<FloatType>() ) );
+					fuseChannel( out, in, offset, models.get( t - 1 ), new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyValueFactory<FloatType>() ) );
+
+				ImagePool.release( in );
+
 				try 
 				{
 					final ImagePlus outImp = ((ImagePlusContainer<?,?>)out.getContainer()).getImagePlus();
@@ -165,8 +175,7 @@ public class OverlayFusion
 							tmp.close();
 						}
 						
-						out.close();
-						outImp.close();
+						ImagePool.release( out );
 					}
 				} 
 				catch (ImgLibException e) 
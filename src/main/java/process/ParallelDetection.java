@@ -0,0 +1,72 @@
+package process;
+
+import ij.ImagePlus;
+import plugin.DescriptorParameters;
+
+/**
+ * Decides how many timepoints are detected at the same time (see {@link DetectionPipeline}). Small (e.g. 2d)
+ * images do not keep all cores busy with the intra-image multithreading, so the available threads are divided
+ * between timepoints that are processed concurrently. The number of concurrent timepoints is limited by the
+ * free memory and by DescriptorParameters.maxConcurrentTimepoints.
+ */
+public class ParallelDetection
+{
+	/**
+	 * Approximately how many float images of the size of the input are alive at the same time during
+	 * the detection of one timepoint (normalized input, DoG and one temporary gaussian)
+	 */
+	public static final int floatImagesPerTimepoint = 3;
+
+	/**
+	 * Estimates how many timepoints can be detected at the same time without running out of memory
+	 *
+	 * @param imp - the series
+	 * @param numTimepoints - the number of timepoints
+	 * @param numThreads - the number of threads available
+	 * @return at least 1, at most min( numThreads, numTimepoints )
+	 */
+	public static int computeNumConcurrentTimepoints( final ImagePlus imp, final int numTimepoints, final int numThreads )
+	{
+		int numConcurrent = Math.max( 1, Math.min( numThreads, numTimepoints ) );
+
+		if ( DescriptorParameters.maxConcurrentTimepoints > 0 )
+			numConcurrent = Math.min( numConcurrent, DescriptorParameters.maxConcurrentTimepoints );
+
+		final long bytesPerTimepoint = (long)floatImagesPerTimepoint * 4l * voxelsPerDetection( imp );
+
+		final Runtime runtime = Runtime.getRuntime();
+		final long freeMemory = runtime.maxMemory() - ( runtime.totalMemory() - runtime.freeMemory() );
+
+		// leave some memory for everything else
+		final long usable = (long)( freeMemory * 0.8 );
+
+		if ( bytesPerTimepoint > 0 )
+			numConcurrent = (int)Math.max( 1, Math.min( numConcurrent, usable / bytesPerTimepoint ) );
+
+		return numConcurrent;
+	}
+
+	/**
+	 * @return how many voxels are processed at once during the detection of one timepoint
+	 */
+	protected static long voxelsPerDetection( final ImagePlus imp )
+	{
+		final int blockSize = DescriptorParameters.detectionBlockSize;
+
+		if ( blockSize > 0 )
+		{
+			// the halo is not known here, assume it doubles the block in each dimension at most
+			long voxels = (long)Math.min( imp.getWidth(), 2 * blockSize ) * (long)Math.min( imp.getHeight(), 2 * blockSize );
+
+			if ( imp.getNSlices() > 1 )
+				voxels *= Math.min( imp.getNSlices(), 2 * blockSize );
+
+			return voxels;
+		}
+		else
+		{
+			// larger images are detected in blocks that fit into arrays, see BlockwiseDetection.getBlockSize
+			return Math.min( FloatImages.MAX_ARRAY_SIZE, (long)imp.getWidth() * (long)imp.getHeight() * (long)imp.getNSlices() );
+		}
+	}
+}
@@ -13,6 +13,9 @@ public class Particle extends Point implements Leaf<Particle>
 	final protected int id;
 	
 	protected DifferenceOfGaussianPeak<FloatType> peak;
+	protected PeakTable table;
+	protected int index;
+	final protected double[] location;
 	protected double weight = 1;
 	protected double distance = -1;
 	float diameter = 1;
@@ -20,9 +23,26 @@ public class Particle extends Point implements Leaf<Particle>
 
 	public Particle( final int id, final DifferenceOfGaussianPeak<FloatType> peak, final float zStretching )
 	{
-		super( getSubPixelPosition( peak ) );
-		this.id = id;
+		this( id, getSubPixelPosition( peak ), zStretching );
 		this.peak = peak;
+	}
+
+	/**
+	 * A particle for the peak index of a {@link PeakTable}, no {@link DifferenceOfGaussianPeak} is created
+	 * unless {@link #getPeak()} is called
+	 */
+	public Particle( final int id, final PeakTable table, final int index, final float zStretching )
+	{
+		this( id, getSubPixelPosition( table, index ), zStretching );
+		this.table = table;
+		this.index = index;
+	}
+
+	protected Particle( final int id, final double[] location, final float zStretching )
+	{
+		super( location.clone() );
+		this.id = id;
+		this.location = location;
 		this.zStretching = zStretching;
 		
 		// init
@@ -38,7 +58,22 @@ public class Particle extends Point implements Leaf<Particle>
 		return p;
 	}
 
-	public DifferenceOfGaussianPeak<FloatType> getPeak() { return peak; }
+	private final static double[] getSubPixelPosition( final PeakTable table, final int index )
+	{
+		final int n = table.getNumDimensions();
+		final double[] p = new double[ n ];
+		for ( int d = 0; d < n; ++d )
+			p[ d ] = table.getSubPixelPosition( index, d );
+		return p;
+	}
+
+	public DifferenceOfGaussianPeak<FloatType> getPeak()
+	{
+		if ( peak == null && table != null )
+			peak = table.getPeak( index );
+
+		return peak;
+	}
 	
 	/**
 	 * Restores the local and global coordinates from the peak that feeded it initially,
@@ -47,7 +82,7 @@ public class Particle extends Point implements Leaf<Particle>
 	public void restoreCoordinates()
 	{
 		for ( int d = 0; d < l.length; ++d )
-			l[ d ] = w[ d ] = peak.getSubPixelPosition( d );
+			l[ d ] = w[ d ] = location[ d ];
 
 		// apply the z-stretching if it is 3d
 		if ( l.length >= 3 )
@@ -0,0 +1,377 @@
+package process;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import plugin.DescriptorParameters;
+
+/**
+ * Stores the detections of one channel/timepoint on disk, so that re-running a registration with
+ * different matching or model settings does not have to compute the difference of gaussian again.
+ *
+ * The key of an entry is a hash of the pixel content of the channel/timepoint together with all
+ * parameters that change the result of the detection (channel, timepoint, sigma1, sigma2, threshold,
+ * localization, min/max, ...). Changing the image or any of these parameters therefore simply misses
+ * the cache. Every entry is one small binary file in DescriptorParameters.peakCacheDirectory, the full
+ * key is stored in the file as well and compared when loading.
+ *
+ * The cached peaks are the valid detections before DescriptorParameters.brightestNPoints is applied.
+ */
+public class PeakCache
+{
+	final static int MAGIC = 0x44425043; // "DBPC"
+	final static int VERSION = 2;
+
+	/**
+	 * @return the directory of the cache or null if caching is disabled
+	 */
+	public static File getCacheDirectory()
+	{
+		if ( DescriptorParameters.peakCacheDirectory == null )
+			return null;
+
+		final File dir = new File( DescriptorParameters.peakCacheDirectory );
+
+		if ( !dir.exists() && !dir.mkdirs() )
+		{
+			IJ.log( "Cannot create peak cache directory '" + dir + "', caching is disabled." );
+			return null;
+		}
+
+		return dir;
+	}
+
+	/**
+	 * Assembles the key of one detection
+	 *
+	 * @param imp - the image
+	 * @param channel - the channel (0-based)
+	 * @param timepoint - the timepoint (0-based)
+	 * @param params - the parameters
+	 * @param minmax - the min/max used for normalization or null if computed per image
+	 * @param numThreads - how many threads to use for hashing the image content
+	 * @return the key
+	 */
+	public static String createKey( final ImagePlus imp, final int channel, final int timepoint, final DescriptorParameters params, final float[] minmax, final int numThreads )
+	{
+		return createKey( imp, channel, timepoint, params, minmax, numThreads, null );
+	}
+
+	/**
+	 * @param crop - the { min, max } of the region that is detected or null for the entire image
+	 */
+	public static String createKey( final ImagePlus imp, final int channel, final int timepoint, final DescriptorParameters params, final float[] minmax, final int numThreads,
+			final int[][] crop )
+	{
+		final Calibration cal = imp.getCalibration();
+
+		final StringBuilder key = new StringBuilder();
+
+		key.append( "content=" ).append( Long.toHexString( contentHash( imp, channel, timepoint, numThreads ) ) );
+		key.append( ";size=" ).append( imp.getWidth() ).append( 'x' ).append( imp.getHeight() ).append( 'x' ).append( imp.getNSlices() );
+		key.append( ";channel=" ).append( channel );
+		key.append( ";timepoint=" ).append( timepoint );
+		key.append( ";dim=" ).append( params.dimensionality );
+		key.append( ";cal=" ).append( cal.pixelWidth ).append( ',' ).append( cal.pixelHeight ).append( ',' ).append( cal.pixelDepth );
+		key.append( ";sigma1=" ).append( params.sigma1 );
+		key.append( ";sigma2=" ).append( params.sigma2 );
+		key.append( ";threshold=" ).append( params.threshold );
+		key.append( ";minima=" ).append( params.lookForMinima );
+		key.append( ";maxima=" ).append( params.lookForMaxima );
+		key.append( ";localization=" ).append( params.localization );
+
+		if ( params.localization == 1 )
+		{
+			key.append( ";subpixelEngine=" ).append( DescriptorParameters.subpixelEngine );
+			key.append( ";maximaTolerance=" ).append( QuadraticLocalization.maximaTolerance );
+		}
+
+		if ( params.localization == 2 )
+		{
+			key.append( ";distanceThreshold=" ).append( DetectionSegmentation.distanceThreshold );
+			key.append( ";iterations=" ).append( params.iterations );
+			key.append( ";sigma=" ).append( Arrays.toString( params.sigma ) );
+			key.append( ";region=" ).append( Arrays.toString( params.region ) );
+		}
+
+		key.append( ";minmax=" ).append( minmax == null ? "image" : minmax[ 0 ] + "," + minmax[ 1 ] );
+		key.append( ";dogEngine=" ).append( DescriptorParameters.dogEngine );
+		key.append( ";pyramidMinSigma=" ).append( DescriptorParameters.pyramidMinSigma );
+		key.append( ";extremumFinder=" ).append( DescriptorParameters.extremumFinder );
+		key.append( ";detectionBlockSize=" ).append( DescriptorParameters.detectionBlockSize );
+
+		if ( crop != null )
+			key.append( ";crop=" ).append( Arrays.toString( crop[ 0 ] ) ).append( '-' ).append( Arrays.toString( crop[ 1 ] ) );
+
+		return key.toString();
+	}
+
+	/**
+	 * @return the cached peaks or null if there is no (valid) entry for this key
+	 */
+	public static PeakTable load( final File dir, final String key )
+	{
+		final File file = getFile( dir, key );
+
+		if ( !file.exists() )
+			return null;
+
+		DataInputStream in = null;
+
+		try
+		{
+			in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 1 << 16 ) );
+
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION || !key.equals( in.readUTF() ) )
+				return null;
+
+			final int n = in.readInt();
+			final int numPeaks = in.readInt();
+
+			final PeakTable peaks = new PeakTable( n, numPeaks );
+
+			for ( int j = 0; j < numPeaks; ++j )
+			{
+				final int i = peaks.add( toSpecialPoint( in.readByte() ), 0 );
+
+				for ( int d = 0; d < n; ++d )
+					peaks.setPosition( i, d, in.readInt() );
+
+				for ( int d = 0; d < n; ++d )
+					peaks.setSubPixelPositionOffset( i, d, in.readFloat() );
+
+				peaks.value[ i ] = in.readFloat();
+			}
+
+			return peaks;
+		}
+		catch ( IOException e )
+		{
+			IJ.log( "Cannot read peak cache file '" + file + "': " + e );
+			return null;
+		}
+		finally
+		{
+			close( in );
+		}
+	}
+
+	/**
+	 * Writes the valid peaks for this key, a temporary file is renamed when complete so that concurrent
+	 * readers never see a partial entry
+	 */
+	public static void save( final File dir, final String key, final PeakTable peaks )
+	{
+		final File file = getFile( dir, key );
+		final File tmp = new File( dir, file.getName() + "." + Thread.currentThread().getId() + ".tmp" );
+
+		final int n = peaks.getNumDimensions();
+
+		int numPeaks = 0;
+		for ( int i = 0; i < peaks.size(); ++i )
+			if ( peaks.isValid( i ) )
+				++numPeaks;
+
+		DataOutputStream out = null;
+
+		try
+		{
+			out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ), 1 << 16 ) );
+
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeUTF( key );
+			out.writeInt( n );
+			out.writeInt( numPeaks );
+
+			for ( int i = 0; i < peaks.size(); ++i )
+			{
+				if ( !peaks.isValid( i ) )
+					continue;
+
+				out.writeByte( fromSpecialPoint( peaks.getPeakType( i ) ) );
+
+				for ( int d = 0; d < n; ++d )
+					out.writeInt( peaks.getPosition( i, d ) );
+
+				for ( int d = 0; d < n; ++d )
+					out.writeFloat( peaks.getSubPixelPositionOffset( i, d ) );
+
+				out.writeFloat( peaks.getValue( i ) );
+			}
+
+			out.close();
+			out = null;
+
+			if ( file.exists() )
+				file.delete();
+
+			if ( !tmp.renameTo( file ) )
+				IJ.log( "Cannot write peak cache file '" + file + "'" );
+		}
+		catch ( IOException e )
+		{
+			IJ.log( "Cannot write peak cache file '" + file + "': " + e );
+		}
+		finally
+		{
+			close( out );
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * @return the file of an entry, named by the SHA-1 of its key
+	 */
+	public static File getFile( final File dir, final String key )
+	{
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( key.getBytes( "UTF-8" ) );
+			final StringBuilder name = new StringBuilder( "peaks_" );
+
+			for ( final byte b : digest )
+				name.append( String.format( "%02x", b & 0xff ) );
+
+			return new File( dir, name.append( ".bin" ).toString() );
+		}
+		catch ( NoSuchAlgorithmException e )
+		{
+			return new File( dir, "peaks_" + Integer.toHexString( key.hashCode() ) + ".bin" );
+		}
+		catch ( IOException e )
+		{
+			return new File( dir, "peaks_" + Integer.toHexString( key.hashCode() ) + ".bin" );
+		}
+	}
+
+	/**
+	 * A 64 bit hash of all pixels of one channel/timepoint, the planes are hashed in parallel and
+	 * combined in order. Reading the pixels once is much cheaper than the detection itself.
+	 */
+	public static long contentHash( final ImagePlus imp, final int channel, final int timepoint, final int numThreads )
+	{
+		final int numSlices = imp.getNSlices();
+		final long[] planeHash = new long[ numSlices ];
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numSlices, numThreads ) ) );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					for ( int z = ai.getAndIncrement(); z < numSlices; z = ai.getAndIncrement() )
+					{
+						final ImageProcessor ip = imp.getStack().getProcessor( imp.getStackIndex( channel + 1, z + 1, timepoint + 1 ) );
+						planeHash[ z ] = hash( ip.getPixels() );
+					}
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		long h = 0xcbf29ce484222325l;
+
+		for ( final long p : planeHash )
+			h = mix( h ^ p );
+
+		return h;
+	}
+
+	protected static long hash( final Object pixels )
+	{
+		long h = 0x84222325cbf29ce4l;
+
+		if ( pixels instanceof byte[] )
+		{
+			final byte[] p = (byte[])pixels;
+			for ( int i = 0; i < p.length; ++i )
+				h = ( h ^ p[ i ] ) * 0x100000001b3l;
+		}
+		else if ( pixels instanceof short[] )
+		{
+			final short[] p = (short[])pixels;
+			for ( int i = 0; i < p.length; ++i )
+				h = ( h ^ p[ i ] ) * 0x100000001b3l;
+		}
+		else if ( pixels instanceof float[] )
+		{
+			final float[] p = (float[])pixels;
+			for ( int i = 0; i < p.length; ++i )
+				h = ( h ^ Float.floatToIntBits( p[ i ] ) ) * 0x100000001b3l;
+		}
+		else if ( pixels instanceof int[] )
+		{
+			final int[] p = (int[])pixels;
+			for ( int i = 0; i < p.length; ++i )
+				h = ( h ^ p[ i ] ) * 0x100000001b3l;
+		}
+
+		return mix( h );
+	}
+
+	/**
+	 * the finalizer of MurmurHash3, distributes all bits of the FNV hash
+	 */
+	protected static long mix( long h )
+	{
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdl;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53l;
+		h ^= h >>> 33;
+
+		return h;
+	}
+
+	protected static byte fromSpecialPoint( final SpecialPoint type )
+	{
+		if ( type == SpecialPoint.MIN )
+			return 0;
+		else if ( type == SpecialPoint.MAX )
+			return 1;
+		else
+			return 2;
+	}
+
+	protected static SpecialPoint toSpecialPoint( final byte type )
+	{
+		if ( type == 0 )
+			return SpecialPoint.MIN;
+		else if ( type == 1 )
+			return SpecialPoint.MAX;
+		else
+			return SpecialPoint.INVALID;
+	}
+
+	protected static void close( final java.io.Closeable c )
+	{
+		if ( c == null )
+			return;
+
+		try
+		{
+			c.close();
+		}
+		catch ( IOException e ) {}
+	}
+}
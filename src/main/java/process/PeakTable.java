@@ -0,0 +1,699 @@
+package process;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+/**
+ * The detections of one image stored as primitive arrays (one array per dimension and attribute)
+ * instead of one {@link DifferenceOfGaussianPeak} object per detection.
+ *
+ * Filtering marks peaks as invalid and {@link #compact()} removes all of them in one linear pass
+ * that preserves the order of the remaining peaks, instead of calling ArrayList.remove( i ) for
+ * every single peak. {@link DifferenceOfGaussianPeak}s are only created on request for code that
+ * still needs them.
+ */
+public class PeakTable
+{
+	final int n;
+	int size;
+
+	int[][] position;
+	float[][] offset;
+	float[] value;
+	byte[] type;
+	final BitSet valid;
+
+	final static SpecialPoint[] types = SpecialPoint.values();
+
+	/**
+	 * @param n - the number of dimensions
+	 * @param capacity - the initial capacity
+	 */
+	public PeakTable( final int n, final int capacity )
+	{
+		this.n = n;
+		this.size = 0;
+
+		final int c = Math.max( 1, capacity );
+
+		this.position = new int[ n ][ c ];
+		this.offset = new float[ n ][ c ];
+		this.value = new float[ c ];
+		this.type = new byte[ c ];
+		this.valid = new BitSet( c );
+	}
+
+	/**
+	 * Creates a table from a list of peaks, invalid peaks are added but marked as invalid
+	 *
+	 * @param peaks - the peaks
+	 * @param n - the number of dimensions (needed if the list is empty)
+	 * @return the table
+	 */
+	public static PeakTable fromPeaks( final List< DifferenceOfGaussianPeak< FloatType > > peaks, final int n )
+	{
+		final PeakTable table = new PeakTable( n, peaks.size() );
+
+		for ( final DifferenceOfGaussianPeak< FloatType > peak : peaks )
+		{
+			final int i = table.add( peak.getPeakType(), peak.getValue().get() );
+
+			for ( int d = 0; d < n; ++d )
+			{
+				table.position[ d ][ i ] = peak.getPosition( d );
+				table.offset[ d ][ i ] = peak.getSubPixelPositionOffset( d );
+			}
+
+			if ( !peak.isValid() )
+				table.valid.clear( i );
+		}
+
+		return table;
+	}
+
+	/**
+	 * Appends a valid peak with position and offset 0
+	 *
+	 * @return the index of the new peak
+	 */
+	public int add( final SpecialPoint peakType, final float peakValue )
+	{
+		if ( size == value.length )
+			ensureCapacity( size * 2 );
+
+		final int i = size++;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			position[ d ][ i ] = 0;
+			offset[ d ][ i ] = 0;
+		}
+
+		value[ i ] = peakValue;
+		type[ i ] = (byte)peakType.ordinal();
+		valid.set( i );
+
+		return i;
+	}
+
+	/**
+	 * Appends a valid peak
+	 *
+	 * @return the index of the new peak
+	 */
+	public int add( final int[] pixelPosition, final float[] subPixelOffset, final SpecialPoint peakType, final float peakValue )
+	{
+		final int i = add( peakType, peakValue );
+
+		for ( int d = 0; d < n; ++d )
+		{
+			position[ d ][ i ] = pixelPosition[ d ];
+			offset[ d ][ i ] = subPixelOffset[ d ];
+		}
+
+		return i;
+	}
+
+	protected void ensureCapacity( final int capacity )
+	{
+		if ( capacity <= value.length )
+			return;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			position[ d ] = Arrays.copyOf( position[ d ], capacity );
+			offset[ d ] = Arrays.copyOf( offset[ d ], capacity );
+		}
+
+		value = Arrays.copyOf( value, capacity );
+		type = Arrays.copyOf( type, capacity );
+	}
+
+	public int size() { return size; }
+	public int getNumDimensions() { return n; }
+
+	public int getPosition( final int i, final int d ) { return position[ d ][ i ]; }
+	public float getSubPixelPositionOffset( final int i, final int d ) { return offset[ d ][ i ]; }
+	public float getSubPixelPosition( final int i, final int d ) { return position[ d ][ i ] + offset[ d ][ i ]; }
+	public float getValue( final int i ) { return value[ i ]; }
+	public SpecialPoint getPeakType( final int i ) { return types[ type[ i ] ]; }
+	public boolean isMin( final int i ) { return types[ type[ i ] ] == SpecialPoint.MIN; }
+	public boolean isMax( final int i ) { return types[ type[ i ] ] == SpecialPoint.MAX; }
+	public boolean isValid( final int i ) { return valid.get( i ) && types[ type[ i ] ] != SpecialPoint.INVALID; }
+
+	public void setPosition( final int i, final int d, final int pos ) { position[ d ][ i ] = pos; }
+	public void setSubPixelPositionOffset( final int i, final int d, final float o ) { offset[ d ][ i ] = o; }
+	public void setValid( final int i, final boolean isValid ) { valid.set( i, isValid ); }
+
+	/**
+	 * Removes all invalid peaks, the order of the remaining peaks is preserved
+	 *
+	 * @return how many peaks were removed
+	 */
+	public int compact()
+	{
+		int j = 0;
+
+		for ( int i = 0; i < size; ++i )
+		{
+			if ( !isValid( i ) )
+				continue;
+
+			if ( i != j )
+			{
+				for ( int d = 0; d < n; ++d )
+				{
+					position[ d ][ j ] = position[ d ][ i ];
+					offset[ d ][ j ] = offset[ d ][ i ];
+				}
+
+				value[ j ] = value[ i ];
+				type[ j ] = type[ i ];
+			}
+
+			++j;
+		}
+
+		final int removed = size - j;
+
+		valid.set( 0, j );
+		valid.clear( j, Math.max( j, size ) );
+		size = j;
+
+		return removed;
+	}
+
+	/**
+	 * @return a copy that only contains the valid peaks
+	 */
+	public PeakTable copyValid()
+	{
+		final PeakTable copy = new PeakTable( n, size );
+
+		for ( int i = 0; i < size; ++i )
+		{
+			if ( !isValid( i ) )
+				continue;
+
+			final int j = copy.add( getPeakType( i ), value[ i ] );
+
+			for ( int d = 0; d < n; ++d )
+			{
+				copy.position[ d ][ j ] = position[ d ][ i ];
+				copy.offset[ d ][ j ] = offset[ d ][ i ];
+			}
+		}
+
+		return copy;
+	}
+
+	/**
+	 * @return { number of minima, number of maxima }
+	 */
+	public int[] countTypes()
+	{
+		int min = 0;
+		int max = 0;
+
+		for ( int i = 0; i < size; ++i )
+		{
+			if ( isMin( i ) )
+				++min;
+			else if ( isMax( i ) )
+				++max;
+		}
+
+		return new int[]{ min, max };
+	}
+
+	/**
+	 * Reorders the peaks according to the permutation, the peak at order[ k ] becomes the peak k,
+	 * the table is truncated to order.length
+	 */
+	public void reorder( final int[] order )
+	{
+		final int m = order.length;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			final int[] p = new int[ Math.max( 1, m ) ];
+			final float[] o = new float[ Math.max( 1, m ) ];
+
+			for ( int k = 0; k < m; ++k )
+			{
+				p[ k ] = position[ d ][ order[ k ] ];
+				o[ k ] = offset[ d ][ order[ k ] ];
+			}
+
+			position[ d ] = p;
+			offset[ d ] = o;
+		}
+
+		final float[] v = new float[ Math.max( 1, m ) ];
+		final byte[] t = new byte[ Math.max( 1, m ) ];
+		final BitSet b = new BitSet( m );
+
+		for ( int k = 0; k < m; ++k )
+		{
+			v[ k ] = value[ order[ k ] ];
+			t[ k ] = type[ order[ k ] ];
+			b.set( k, valid.get( order[ k ] ) );
+		}
+
+		value = v;
+		type = t;
+		valid.clear();
+		valid.or( b );
+		size = m;
+	}
+
+	/**
+	 * Keeps only the numPeaks peaks with the highest absolute value, ordered from the brightest to the
+	 * darkest (peaks with the same value end up in reverse table order). The brightest peaks are selected
+	 * in linear time, only they are sorted.
+	 */
+	public void keepBrightest( final int numPeaks )
+	{
+		final long[] keys = createKeys();
+		final int m = Math.max( 0, Math.min( numPeaks, size ) );
+
+		// the m largest keys to the end, then sort only those
+		selectLargest( keys, 0, size, m );
+		Arrays.sort( keys, size - m, size );
+
+		final int[] order = new int[ m ];
+
+		for ( int k = 0; k < m; ++k )
+			order[ k ] = (int)( keys[ size - 1 - k ] & 0xffffffffl );
+
+		reorder( order );
+	}
+
+	/**
+	 * Keeps numPeaks of the brightest peaks spread over the field of view: the bounding box of the peaks
+	 * is divided into cellsPerDimension cells in every dimension and the budget is shared evenly by the
+	 * non-empty cells, the budget of cells with fewer peaks goes to the others. What cannot be shared evenly
+	 * goes one peak each to the cells with the brightest peaks, so if there are more non-empty cells than
+	 * numPeaks, those cells keep their brightest peak. The order of the kept peaks is the order in the table.
+	 *
+	 * @param numPeaks - how many peaks to keep (at most)
+	 * @param cellsPerDimension - the number of cells in every dimension, reduced so that there are not more
+	 * cells than peaks
+	 */
+	public void keepBrightestUniform( final int numPeaks, final int cellsPerDimension )
+	{
+		if ( size <= numPeaks )
+			return;
+
+		final int m = Math.max( 0, numPeaks );
+
+		// more cells than peaks only cost memory (and cells^n must not overflow)
+		int cells = Math.max( 1, Math.min( cellsPerDimension, (int)Math.pow( size, 1.0 / n ) + 1 ) );
+
+		while ( cells > 1 && power( cells, n ) > size )
+			--cells;
+
+		// the cell of every peak
+		final int[] min = new int[ n ];
+		final int[] max = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = Integer.MAX_VALUE;
+			max[ d ] = Integer.MIN_VALUE;
+
+			for ( int i = 0; i < size; ++i )
+			{
+				min[ d ] = Math.min( min[ d ], position[ d ][ i ] );
+				max[ d ] = Math.max( max[ d ], position[ d ][ i ] );
+			}
+		}
+
+		final int numCells = (int)power( cells, n );
+
+		final int[] cell = new int[ size ];
+		final int[] cellStart = new int[ numCells + 1 ];
+
+		for ( int i = 0; i < size; ++i )
+		{
+			int c = 0;
+
+			for ( int d = n - 1; d >= 0; --d )
+			{
+				final long extent = (long)max[ d ] - min[ d ] + 1;
+				c = c * cells + (int)( (long)( position[ d ][ i ] - min[ d ] ) * cells / extent );
+			}
+
+			cell[ i ] = c;
+			++cellStart[ c + 1 ];
+		}
+
+		// group the keys by cell (counting sort)
+		for ( int c = 0; c < numCells; ++c )
+			cellStart[ c + 1 ] += cellStart[ c ];
+
+		final long[] keys = createKeys();
+		final long[] grouped = new long[ size ];
+		final int[] next = cellStart.clone();
+
+		for ( int i = 0; i < size; ++i )
+			grouped[ next[ cell[ i ] ]++ ] = keys[ i ];
+
+		// the non-empty cells by their number of peaks
+		int numNonEmpty = 0;
+
+		for ( int c = 0; c < numCells; ++c )
+			if ( cellStart[ c + 1 ] > cellStart[ c ] )
+				++numNonEmpty;
+
+		final long[] byCount = new long[ numNonEmpty ];
+
+		for ( int c = 0, j = 0; c < numCells; ++c )
+			if ( cellStart[ c + 1 ] > cellStart[ c ] )
+				byCount[ j++ ] = ( (long)( cellStart[ c + 1 ] - cellStart[ c ] ) << 32 ) | c;
+
+		Arrays.sort( byCount );
+
+		// cells with fewer peaks than an even share keep all of them, the smallest first so that their unused
+		// budget goes to the others
+		final int[] quota = new int[ numCells ];
+		int budget = m;
+		int first = 0;
+
+		while ( first < numNonEmpty && ( byCount[ first ] >>> 32 ) <= budget / ( numNonEmpty - first ) )
+		{
+			final int c = (int)( byCount[ first++ ] & 0xffffffffl );
+
+			quota[ c ] = cellStart[ c + 1 ] - cellStart[ c ];
+			budget -= quota[ c ];
+		}
+
+		// all other cells have more peaks than an even share, they get the share and what cannot be shared
+		// evenly goes one each to those with the brightest peaks
+		if ( first < numNonEmpty )
+		{
+			final int share = budget / ( numNonEmpty - first );
+			final long[] brightest = new long[ numNonEmpty - first ];
+
+			for ( int j = first; j < numNonEmpty; ++j )
+			{
+				final int c = (int)( byCount[ j ] & 0xffffffffl );
+				long key = Long.MIN_VALUE;
+
+				for ( int i = cellStart[ c ]; i < cellStart[ c + 1 ]; ++i )
+					key = Math.max( key, grouped[ i ] );
+
+				quota[ c ] = share;
+				brightest[ j - first ] = key;
+			}
+
+			budget -= share * brightest.length;
+
+			// the key of the brightest peak is unique and tells its cell
+			Arrays.sort( brightest );
+
+			for ( int j = brightest.length - 1; j >= brightest.length - budget; --j )
+				++quota[ cell[ (int)( brightest[ j ] & 0xffffffffl ) ] ];
+		}
+
+		final BitSet selected = new BitSet( size );
+
+		for ( int c = 0; c < numCells; ++c )
+		{
+			final int from = cellStart[ c ];
+			final int to = cellStart[ c + 1 ];
+			final int k = quota[ c ];
+
+			selectLargest( grouped, from, to, k );
+
+			for ( int j = to - k; j < to; ++j )
+				selected.set( (int)( grouped[ j ] & 0xffffffffl ) );
+		}
+
+		final int[] order = new int[ selected.cardinality() ];
+
+		for ( int i = selected.nextSetBit( 0 ), k = 0; i >= 0; i = selected.nextSetBit( i + 1 ) )
+			order[ k++ ] = i;
+
+		reorder( order );
+	}
+
+	/**
+	 * Non-maximum suppression: removes every peak that has a brighter peak (higher |value|, minima and maxima alike)
+	 * within the radius, the order of the remaining peaks is preserved. Neighbors are found with a spatial hash of
+	 * cells of the size of the radius, so the expected runtime is linear in the number of peaks. Unlike a greedy
+	 * suppression in the order of the values, a peak suppressed by a brighter one can still suppress a darker one.
+	 *
+	 * @param radius - the radius (in pixels)
+	 * @param scale - the scaling of every dimension applied before measuring the distance (e.g. the z-stretching) or null
+	 * @return how many peaks were removed
+	 */
+	public int suppressNonMaxima( final double radius, final double[] scale )
+	{
+		if ( radius <= 0 || size < 2 )
+			return 0;
+
+		final double sqRadius = radius * radius;
+		final double[][] p = new double[ n ][ size ];
+		final long[] cell = new long[ size ];
+
+		for ( int i = 0; i < size; ++i )
+			for ( int d = 0; d < n; ++d )
+				p[ d ][ i ] = getSubPixelPosition( i, d ) * ( scale == null ? 1 : scale[ d ] );
+
+		// chain the peaks of every cell
+		final HashMap< Long, Integer > head = new HashMap< Long, Integer >();
+		final int[] next = new int[ size ];
+		final long[] c = new long[ n ];
+
+		for ( int i = 0; i < size; ++i )
+		{
+			for ( int d = 0; d < n; ++d )
+				c[ d ] = (long)Math.floor( p[ d ][ i ] / radius );
+
+			cell[ i ] = cellKey( c );
+
+			final Integer first = head.put( cell[ i ], i );
+			next[ i ] = first == null ? -1 : first;
+		}
+
+		// a peak survives if no brighter peak is within the radius (ties are broken by the index)
+		final BitSet suppressed = new BitSet( size );
+		final int numNeighbors = (int)Math.pow( 3, n );
+		final long[] nc = new long[ n ];
+
+		for ( int i = 0; i < size; ++i )
+		{
+			final float vi = Math.abs( value[ i ] );
+
+			for ( int d = 0; d < n; ++d )
+				c[ d ] = (long)Math.floor( p[ d ][ i ] / radius );
+
+			search:
+			for ( int k = 0; k < numNeighbors; ++k )
+			{
+				for ( int d = 0, m = k; d < n; ++d, m /= 3 )
+					nc[ d ] = c[ d ] + ( m % 3 ) - 1;
+
+				final Integer first = head.get( cellKey( nc ) );
+
+				for ( int j = first == null ? -1 : first; j >= 0; j = next[ j ] )
+				{
+					if ( j == i )
+						continue;
+
+					final float vj = Math.abs( value[ j ] );
+
+					if ( vj < vi || ( vj == vi && j > i ) )
+						continue;
+
+					double dist = 0;
+					for ( int d = 0; d < n; ++d )
+						dist += ( p[ d ][ i ] - p[ d ][ j ] ) * ( p[ d ][ i ] - p[ d ][ j ] );
+
+					if ( dist <= sqRadius )
+					{
+						suppressed.set( i );
+						break search;
+					}
+				}
+			}
+		}
+
+		for ( int i = suppressed.nextSetBit( 0 ); i >= 0; i = suppressed.nextSetBit( i + 1 ) )
+			valid.clear( i );
+
+		return compact();
+	}
+
+	/**
+	 * packs up to three cell coordinates (21 bits each) into one key
+	 */
+	protected static long cellKey( final long[] c )
+	{
+		long key = 0;
+
+		for ( int d = 0; d < c.length; ++d )
+			key |= ( ( c[ d ] + ( 1 << 20 ) ) & 0x1fffffl ) << ( 21 * d );
+
+		return key;
+	}
+
+	/**
+	 * |value| is non-negative, so the order of its bits is the order of the values; the index makes
+	 * every key unique
+	 *
+	 * @return ( |value| bits &lt;&lt; 32 ) | index for every peak
+	 */
+	protected long[] createKeys()
+	{
+		final long[] keys = new long[ size ];
+
+		for ( int i = 0; i < size; ++i )
+			keys[ i ] = ( (long)Float.floatToIntBits( Math.abs( value[ i ] ) ) << 32 ) | i;
+
+		return keys;
+	}
+
+	/**
+	 * @return base^exponent, or Long.MAX_VALUE if it does not fit into an int
+	 */
+	protected static long power( final int base, final int exponent )
+	{
+		long result = 1;
+
+		for ( int e = 0; e < exponent; ++e )
+		{
+			result *= base;
+
+			if ( result > Integer.MAX_VALUE )
+				return Long.MAX_VALUE;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Partially orders keys[ from, to ) so that its k largest entries are in [ to - k, to ) (quickselect
+	 * with median-of-three pivots, expected linear time)
+	 */
+	protected static void selectLargest( final long[] keys, int from, int to, final int k )
+	{
+		if ( k <= 0 || k >= to - from )
+			return;
+
+		// the k largest are the entries from index to - k on in sorted order
+		final int target = to - k;
+
+		while ( to - from > 1 )
+		{
+			final int mid = ( from + to ) >>> 1;
+			final long pivot = median( keys[ from ], keys[ mid ], keys[ to - 1 ] );
+
+			// three-way partition: [ from, lt ) < pivot, [ lt, gt ) == pivot, [ gt, to ) > pivot
+			int lt = from, i = from, gt = to;
+
+			while ( i < gt )
+			{
+				if ( keys[ i ] < pivot )
+					swap( keys, lt++, i++ );
+				else if ( keys[ i ] > pivot )
+					swap( keys, i, --gt );
+				else
+					++i;
+			}
+
+			if ( target < lt )
+				to = lt;
+			else if ( target >= gt )
+				from = gt;
+			else
+				return;
+		}
+	}
+
+	protected static long median( final long a, final long b, final long c )
+	{
+		return Math.max( Math.min( a, b ), Math.min( Math.max( a, b ), c ) );
+	}
+
+	protected static void swap( final long[] keys, final int i, final int j )
+	{
+		final long tmp = keys[ i ];
+		keys[ i ] = keys[ j ];
+		keys[ j ] = tmp;
+	}
+
+	/**
+	 * Sorts the peaks by their pixel location (z, y, x), so that the result does not depend on the
+	 * order in which the threads of the detection reported them
+	 */
+	public void sortByLocation()
+	{
+		final Integer[] indices = new Integer[ size ];
+		for ( int i = 0; i < size; ++i )
+			indices[ i ] = i;
+
+		Arrays.sort( indices, new Comparator< Integer >()
+		{
+			@Override
+			public int compare( final Integer o1, final Integer o2 )
+			{
+				for ( int d = n - 1; d >= 0; --d )
+				{
+					final int diff = position[ d ][ o1 ] - position[ d ][ o2 ];
+
+					if ( diff != 0 )
+						return diff;
+				}
+
+				return 0;
+			}
+		});
+
+		final int[] order = new int[ size ];
+		for ( int i = 0; i < size; ++i )
+			order[ i ] = indices[ i ];
+
+		reorder( order );
+	}
+
+	/**
+	 * @return a new {@link DifferenceOfGaussianPeak} for the peak i
+	 */
+	public DifferenceOfGaussianPeak< FloatType > getPeak( final int i )
+	{
+		final int[] p = new int[ n ];
+		for ( int d = 0; d < n; ++d )
+			p[ d ] = position[ d ][ i ];
+
+		final DifferenceOfGaussianPeak< FloatType > peak = new DifferenceOfGaussianPeak< FloatType >( p, new FloatType( value[ i ] ), getPeakType( i ) );
+
+		for ( int d = 0; d < n; ++d )
+			peak.setSubPixelLocationOffset( offset[ d ][ i ], d );
+
+		return peak;
+	}
+
+	/**
+	 * @return all valid peaks as {@link DifferenceOfGaussianPeak}s
+	 */
+	public ArrayList< DifferenceOfGaussianPeak< FloatType > > toPeaks()
+	{
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks = new ArrayList< DifferenceOfGaussianPeak< FloatType > >( size );
+
+		for ( int i = 0; i < size; ++i )
+			if ( isValid( i ) )
+				peaks.add( getPeak( i ) );
+
+		return peaks;
+	}
+}
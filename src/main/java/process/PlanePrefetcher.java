@@ -0,0 +1,225 @@
+package process;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import plugin.DescriptorParameters;
+
+/**
+ * Reads the planes of the next timepoints of a virtual stack (e.g. {@link MappedStack} or an ImageJ virtual
+ * stack of files) on background threads while the current timepoint is processed, so that decoding/IO and
+ * detection or fusion overlap.
+ *
+ * {@link #prefetch(ImagePlus, int, int, int, int)} schedules the planes of one channel that the caller reads (a
+ * range of slices) for the next DescriptorParameters.prefetchTimepoints timepoints, {@link #getProcessor(ImagePlus, int)}
+ * returns a prefetched plane (waiting for it if it is still being read) or reads it directly. Planes are only
+ * scheduled while the scheduled and not yet consumed planes need at most DescriptorParameters.prefetchMegabytes.
+ * Planes of earlier timepoints of the same channel that were not consumed (e.g. overlapping blocks read them
+ * directly) are dropped when a later timepoint is prefetched. Stacks that are in memory are always read directly.
+ */
+public class PlanePrefetcher
+{
+	final static HashMap< Key, Plane > planes = new HashMap< Key, Plane >();
+	static long inFlightBytes = 0;
+	static ExecutorService executor = null;
+
+	/**
+	 * @return if planes of this image are prefetched
+	 */
+	public static boolean isEnabled( final ImagePlus imp )
+	{
+		return DescriptorParameters.prefetchTimepoints > 0 && imp.getStack().isVirtual();
+	}
+
+	/**
+	 * @param stackIndex - the plane (1-based, see ImagePlus.getStackIndex)
+	 * @return the plane, prefetched if possible
+	 */
+	public static ImageProcessor getProcessor( final ImagePlus imp, final int stackIndex )
+	{
+		final ImageStack stack = imp.getStack();
+
+		if ( !isEnabled( imp ) )
+			return stack.getProcessor( stackIndex );
+
+		final Plane plane;
+
+		synchronized ( PlanePrefetcher.class )
+		{
+			plane = planes.remove( new Key( stack, stackIndex ) );
+
+			if ( plane != null )
+				inFlightBytes -= plane.bytes;
+		}
+
+		if ( plane != null )
+		{
+			try
+			{
+				return plane.future.get();
+			}
+			catch ( Exception e )
+			{
+				// read it again in this thread, a failure will show up there
+			}
+		}
+
+		return stack.getProcessor( stackIndex );
+	}
+
+	/**
+	 * Schedules the planes of the timepoints after this one
+	 *
+	 * @param channel - the channel (0-based)
+	 * @param timepoint - the timepoint that is processed now (0-based)
+	 * @param firstSlice - the first slice that the caller reads of every timepoint (0-based)
+	 * @param numSlices - how many slices the caller reads of every timepoint
+	 */
+	public static void prefetch( final ImagePlus imp, final int channel, final int timepoint, final int firstSlice, final int numSlices )
+	{
+		if ( !isEnabled( imp ) )
+			return;
+
+		final ImageStack stack = imp.getStack();
+		final long bytes = planeBytes( imp );
+		final long capacity = (long)DescriptorParameters.prefetchMegabytes * 1024l * 1024l;
+		final int lastTimepoint = Math.min( imp.getNFrames() - 1, timepoint + DescriptorParameters.prefetchTimepoints );
+		final int lastSlice = Math.min( imp.getNSlices(), firstSlice + numSlices );
+
+		synchronized ( PlanePrefetcher.class )
+		{
+			// these will not be read any more
+			dropEarlierTimepoints( stack, channel, timepoint );
+
+			for ( int t = timepoint + 1; t <= lastTimepoint; ++t )
+				for ( int z = Math.max( 0, firstSlice ); z < lastSlice; ++z )
+				{
+					final Key key = new Key( stack, imp.getStackIndex( channel + 1, z + 1, t + 1 ) );
+
+					if ( planes.containsKey( key ) )
+						continue;
+
+					if ( inFlightBytes + bytes > capacity )
+						return;
+
+					final Future< ImageProcessor > future = getExecutor().submit( new Callable< ImageProcessor >()
+					{
+						@Override
+						public ImageProcessor call() { return stack.getProcessor( key.index ); }
+					});
+
+					planes.put( key, new Plane( future, channel, t, bytes ) );
+					inFlightBytes += bytes;
+				}
+		}
+	}
+
+	/**
+	 * Drops all planes that were prefetched but not used
+	 */
+	public static synchronized void clear()
+	{
+		for ( final Plane plane : planes.values() )
+			plane.future.cancel( false );
+
+		planes.clear();
+		inFlightBytes = 0;
+	}
+
+	/**
+	 * Drops the planes of this stack and channel that belong to timepoints before this one
+	 */
+	protected static void dropEarlierTimepoints( final ImageStack stack, final int channel, final int timepoint )
+	{
+		final Iterator< Map.Entry< Key, Plane > > it = planes.entrySet().iterator();
+
+		while ( it.hasNext() )
+		{
+			final Map.Entry< Key, Plane > entry = it.next();
+			final Plane plane = entry.getValue();
+
+			if ( entry.getKey().stack == stack && plane.channel == channel && plane.timepoint < timepoint )
+			{
+				plane.future.cancel( false );
+				inFlightBytes -= plane.bytes;
+				it.remove();
+			}
+		}
+	}
+
+	protected static synchronized ExecutorService getExecutor()
+	{
+		if ( executor == null )
+		{
+			executor = Executors.newFixedThreadPool( Math.max( 1, DescriptorParameters.prefetchThreads ), new ThreadFactory()
+			{
+				@Override
+				public Thread newThread( final Runnable r )
+				{
+					final Thread thread = new Thread( r, "plane prefetcher" );
+					thread.setDaemon( true );
+					return thread;
+				}
+			});
+		}
+
+		return executor;
+	}
+
+	protected static long planeBytes( final ImagePlus imp )
+	{
+		return (long)imp.getWidth() * imp.getHeight() * Math.max( 1, imp.getBitDepth() / 8 );
+	}
+
+	/**
+	 * A scheduled plane, the channel and timepoint (0-based) it belongs to and its size
+	 */
+	protected static class Plane
+	{
+		final Future< ImageProcessor > future;
+		final int channel, timepoint;
+		final long bytes;
+
+		public Plane( final Future< ImageProcessor > future, final int channel, final int timepoint, final long bytes )
+		{
+			this.future = future;
+			this.channel = channel;
+			this.timepoint = timepoint;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * A plane of a specific stack
+	 */
+	protected static class Key
+	{
+		final ImageStack stack;
+		final int index;
+
+		public Key( final ImageStack stack, final int index )
+		{
+			this.stack = stack;
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			return o instanceof Key && ( (Key)o ).stack == stack && ( (Key)o ).index == index;
+		}
+
+		@Override
+		public int hashCode() { return System.identityHashCode( stack ) * 31 + index; }
+	}
+}
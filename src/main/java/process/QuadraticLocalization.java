@@ -0,0 +1,330 @@
+package process;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+/**
+ * Quadratic subpixel localization of DoG peaks on a {@link FloatAccess}, computed in double
+ * independent of how the DoG is stored. It follows SubpixelLocalization: the gradient and the Hessian
+ * are estimated from the 3^n neighborhood, the offset is -H^-1 * g; if it is larger than 0.5 (plus
+ * a tolerance that grows by 0.01 per move) in some dimension, the peak moves one pixel in that direction
+ * and the fit is repeated. The value of the peak is set to the interpolated value v + 0.5 * g * offset.
+ *
+ * Unlike SubpixelLocalization, which creates matrices for every peak and every move, the 2d and 3d
+ * systems are solved in closed form on local variables, nothing is allocated per peak. The peaks are
+ * localized in parallel in chunks of a {@link PeakTable}, the results are written into the table.
+ */
+public class QuadraticLocalization
+{
+	public static float maximaTolerance = 0.01f;
+
+	/**
+	 * Localizes the valid peaks of a table in parallel, peaks that cannot be localized (singular Hessian,
+	 * too many moves, moved to the image border) are marked as invalid and keep their location.
+	 *
+	 * @param dog - the DoG values
+	 * @param dim - the dimensions of the DoG (2d or 3d)
+	 * @param peaks - the peaks, their pixel location, subpixel offset and value are updated
+	 * @param maxNumMoves - how often a peak may move to a neighboring pixel
+	 * @param allowMaximaTolerance - if the threshold for a move grows with the number of moves
+	 * @param numThreads - how many threads to use
+	 * @return how many peaks became invalid
+	 */
+	public static int localize( final FloatAccess dog, final int[] dim, final PeakTable peaks,
+			final int maxNumMoves, final boolean allowMaximaTolerance, final int numThreads )
+	{
+		final int n = dim.length;
+		final int size = peaks.size();
+		final boolean[] failed = new boolean[ size ];
+
+		final int chunkSize = 1024;
+		final int numChunks = ( size + chunkSize - 1 ) / chunkSize;
+
+		final AtomicInteger nextChunk = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numChunks ) ) );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					// location and result of one peak, reused for all peaks of this thread
+					final int[] position = new int[ n ];
+					final double[] result = new double[ n + 1 ];
+
+					for ( int c = nextChunk.getAndIncrement(); c < numChunks; c = nextChunk.getAndIncrement() )
+					{
+						final int end = Math.min( size, ( c + 1 ) * chunkSize );
+
+						for ( int i = c * chunkSize; i < end; ++i )
+						{
+							if ( !peaks.isValid( i ) )
+								continue;
+
+							for ( int d = 0; d < n; ++d )
+								position[ d ] = peaks.position[ d ][ i ];
+
+							final boolean localized;
+
+							if ( n == 3 )
+								localized = fit3d( dog, dim, position, result, maxNumMoves, allowMaximaTolerance );
+							else
+								localized = fit2d( dog, dim, position, result, maxNumMoves, allowMaximaTolerance );
+
+							if ( !localized )
+							{
+								failed[ i ] = true;
+								continue;
+							}
+
+							for ( int d = 0; d < n; ++d )
+							{
+								peaks.position[ d ][ i ] = position[ d ];
+								peaks.offset[ d ][ i ] = (float)result[ d ];
+							}
+
+							peaks.value[ i ] = (float)result[ n ];
+						}
+					}
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		// the BitSet of the table is not thread-safe
+		int invalid = 0;
+
+		for ( int i = 0; i < size; ++i )
+		{
+			if ( failed[ i ] )
+			{
+				peaks.setValid( i, false );
+				++invalid;
+			}
+		}
+
+		return invalid;
+	}
+
+	/**
+	 * Localizes the peaks of a list, peaks that cannot be localized are removed from the list,
+	 * the order of the remaining peaks is preserved.
+	 *
+	 * @return how many peaks were removed
+	 */
+	public static int localize( final FloatAccess dog, final int[] dim, final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks,
+			final int maxNumMoves, final boolean allowMaximaTolerance, final int numThreads )
+	{
+		final int n = dim.length;
+		final PeakTable table = PeakTable.fromPeaks( peaks, n );
+
+		localize( dog, dim, table, maxNumMoves, allowMaximaTolerance, numThreads );
+
+		// write the results back into the peaks, in one pass keeping the order
+		int j = 0;
+
+		for ( int i = 0; i < peaks.size(); ++i )
+		{
+			if ( !table.isValid( i ) )
+				continue;
+
+			final DifferenceOfGaussianPeak< FloatType > peak = peaks.get( i );
+
+			for ( int d = 0; d < n; ++d )
+			{
+				peak.setPixelLocation( table.getPosition( i, d ), d );
+				peak.setSubPixelLocationOffset( table.getSubPixelPositionOffset( i, d ), d );
+			}
+
+			peak.getValue().set( table.getValue( i ) );
+
+			peaks.set( j++, peak );
+		}
+
+		final int removed = peaks.size() - j;
+		peaks.subList( j, peaks.size() ).clear();
+
+		return removed;
+	}
+
+	/**
+	 * Fits the quadratic in 2d, moving it if necessary
+	 *
+	 * @param position - the pixel location, is updated
+	 * @param result - will contain the subpixel offset (x, y) and the interpolated value
+	 * @return false if the peak could not be localized
+	 */
+	protected static boolean fit2d( final FloatAccess dog, final int[] dim, final int[] position, final double[] result,
+			final int maxNumMoves, final boolean allowMaximaTolerance )
+	{
+		final int w = dim[ 0 ];
+		final int h = dim[ 1 ];
+
+		int x = position[ 0 ];
+		int y = position[ 1 ];
+
+		for ( int numMoves = 0; ; ++numMoves )
+		{
+			// the 3x3 neighborhood has to be inside
+			if ( x < 1 || y < 1 || x > w - 2 || y > h - 2 )
+				return false;
+
+			final int i = x + y * w;
+
+			final double v = dog.get( i );
+			final double xp = dog.get( i + 1 ), xm = dog.get( i - 1 );
+			final double yp = dog.get( i + w ), ym = dog.get( i - w );
+
+			final double gx = ( xp - xm ) * 0.5;
+			final double gy = ( yp - ym ) * 0.5;
+
+			final double hxx = xp - 2 * v + xm;
+			final double hyy = yp - 2 * v + ym;
+			final double hxy = ( dog.get( i + 1 + w ) - dog.get( i + 1 - w ) - dog.get( i - 1 + w ) + dog.get( i - 1 - w ) ) * 0.25;
+
+			final double det = hxx * hyy - hxy * hxy;
+
+			if ( det == 0 || Double.isNaN( det ) )
+				return false;
+
+			// -H^-1 * g
+			final double ox = -( hyy * gx - hxy * gy ) / det;
+			final double oy = -( hxx * gy - hxy * gx ) / det;
+
+			final double threshold = allowMaximaTolerance ? 0.5 + numMoves * maximaTolerance : 0.5;
+			boolean stable = true;
+
+			if ( Math.abs( ox ) > threshold )
+			{
+				x += ox > 0 ? 1 : -1;
+				stable = false;
+			}
+
+			if ( Math.abs( oy ) > threshold )
+			{
+				y += oy > 0 ? 1 : -1;
+				stable = false;
+			}
+
+			if ( stable )
+			{
+				position[ 0 ] = x;
+				position[ 1 ] = y;
+
+				result[ 0 ] = ox;
+				result[ 1 ] = oy;
+				result[ 2 ] = v + 0.5 * ( gx * ox + gy * oy );
+
+				return true;
+			}
+
+			if ( numMoves >= maxNumMoves )
+				return false;
+		}
+	}
+
+	/**
+	 * Fits the quadratic in 3d, moving it if necessary
+	 *
+	 * @param position - the pixel location, is updated
+	 * @param result - will contain the subpixel offset (x, y, z) and the interpolated value
+	 * @return false if the peak could not be localized
+	 */
+	protected static boolean fit3d( final FloatAccess dog, final int[] dim, final int[] position, final double[] result,
+			final int maxNumMoves, final boolean allowMaximaTolerance )
+	{
+		final int w = dim[ 0 ];
+		final int h = dim[ 1 ];
+		final int depth = dim[ 2 ];
+		final int wh = w * h;
+
+		int x = position[ 0 ];
+		int y = position[ 1 ];
+		int z = position[ 2 ];
+
+		for ( int numMoves = 0; ; ++numMoves )
+		{
+			// the 3x3x3 neighborhood has to be inside
+			if ( x < 1 || y < 1 || z < 1 || x > w - 2 || y > h - 2 || z > depth - 2 )
+				return false;
+
+			final int i = x + y * w + z * wh;
+
+			final double v = dog.get( i );
+			final double xp = dog.get( i + 1 ), xm = dog.get( i - 1 );
+			final double yp = dog.get( i + w ), ym = dog.get( i - w );
+			final double zp = dog.get( i + wh ), zm = dog.get( i - wh );
+
+			final double gx = ( xp - xm ) * 0.5;
+			final double gy = ( yp - ym ) * 0.5;
+			final double gz = ( zp - zm ) * 0.5;
+
+			final double hxx = xp - 2 * v + xm;
+			final double hyy = yp - 2 * v + ym;
+			final double hzz = zp - 2 * v + zm;
+			final double hxy = ( dog.get( i + 1 + w ) - dog.get( i + 1 - w ) - dog.get( i - 1 + w ) + dog.get( i - 1 - w ) ) * 0.25;
+			final double hxz = ( dog.get( i + 1 + wh ) - dog.get( i + 1 - wh ) - dog.get( i - 1 + wh ) + dog.get( i - 1 - wh ) ) * 0.25;
+			final double hyz = ( dog.get( i + w + wh ) - dog.get( i + w - wh ) - dog.get( i - w + wh ) + dog.get( i - w - wh ) ) * 0.25;
+
+			// cofactors of the symmetric Hessian
+			final double c00 = hyy * hzz - hyz * hyz;
+			final double c01 = hxz * hyz - hxy * hzz;
+			final double c02 = hxy * hyz - hxz * hyy;
+			final double c11 = hxx * hzz - hxz * hxz;
+			final double c12 = hxy * hxz - hxx * hyz;
+			final double c22 = hxx * hyy - hxy * hxy;
+
+			final double det = hxx * c00 + hxy * c01 + hxz * c02;
+
+			if ( det == 0 || Double.isNaN( det ) )
+				return false;
+
+			// -H^-1 * g
+			final double ox = -( c00 * gx + c01 * gy + c02 * gz ) / det;
+			final double oy = -( c01 * gx + c11 * gy + c12 * gz ) / det;
+			final double oz = -( c02 * gx + c12 * gy + c22 * gz ) / det;
+
+			final double threshold = allowMaximaTolerance ? 0.5 + numMoves * maximaTolerance : 0.5;
+			boolean stable = true;
+
+			if ( Math.abs( ox ) > threshold )
+			{
+				x += ox > 0 ? 1 : -1;
+				stable = false;
+			}
+
+			if ( Math.abs( oy ) > threshold )
+			{
+				y += oy > 0 ? 1 : -1;
+				stable = false;
+			}
+
+			if ( Math.abs( oz ) > threshold )
+			{
+				z += oz > 0 ? 1 : -1;
+				stable = false;
+			}
+
+			if ( stable )
+			{
+				position[ 0 ] = x;
+				position[ 1 ] = y;
+				position[ 2 ] = z;
+
+				result[ 0 ] = ox;
+				result[ 1 ] = oy;
+				result[ 2 ] = oz;
+				result[ 3 ] = v + 0.5 * ( gx * ox + gy * oy + gz * oz );
+
+				return true;
+			}
+
+			if ( numMoves >= maxNumMoves )
+				return false;
+		}
+	}
+}
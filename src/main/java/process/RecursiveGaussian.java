@@ -0,0 +1,305 @@
+package process;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+/**
+ * Separable recursive (IIR) gaussian convolution after Young and van Vliet,
+ * "Recursive implementation of the Gaussian filter", Signal Processing 44 (1995).
+ *
+ * Every line is filtered by a causal and an anti-causal third-order recursion, so the cost
+ * per pixel is the same for every sigma (7 multiply-adds per pass and dimension), whereas the
+ * kernel of GaussianConvolutionReal grows linearly with sigma.
+ *
+ * Tolerance compared to the ImgLib1 DifferenceOfGaussianReal1 path:
+ *
+ * - the recursive filter approximates the gaussian with a maximal deviation of ~5% of the kernel
+ *   maximum for sigmas between 1 and 5 (~3% for larger sigmas). The difference of two such
+ *   approximations is amplified by the normalization 1/(k-1), so the DoG values at the peaks
+ *   differ by up to ~25% (e.g. sigma = 1.8, k = 1.4)
+ * - borders are extended by replicating the outermost pixel instead of mirroring, which only
+ *   changes the result within ~2*sigma of the image border
+ * - sigmas smaller than 0.5 are clamped to 0.5 (where the approximation is still valid)
+ *
+ * The detected beads are identical except for peaks whose DoG value is within ~25% of the threshold
+ * and peaks close to the image border, of the same type (bright beads are minima), and after subpixel
+ * localization their positions agree within ~0.05 px. Extrema of the flat ring of opposite sign around
+ * every bead (~13% of its DoG value) are not isolated points, the engines may find them at different
+ * positions. See RecursiveGaussianTest.
+ */
+public class RecursiveGaussian
+{
+	/**
+	 * Computes the difference of gaussian (G(sigma2) - G(sigma1)) * normalization of an array-backed image,
+	 * the same convention as DifferenceOfGaussian.
+	 *
+	 * @param img - the input, an array-backed {@link Image}
+	 * @param sigma1 - the smaller sigma per dimension
+	 * @param sigma2 - the larger sigma per dimension
+	 * @param normalization - the factor to multiply the difference with
+	 * @param numThreads - how many threads to use
+	 * @return the DoG image, leased from {@link ImagePool}, give it back with {@link ImagePool#release(Image)}
+	 */
+	public static Image< FloatType > computeDoG( final Image< FloatType > img, final double[] sigma1, final double[] sigma2, final float normalization, final int numThreads )
+	{
+		final int[] dim = img.getDimensions();
+		final float[] input = FloatImages.getArray( img );
+
+		final float[] gauss1 = input.clone();
+		convolve( gauss1, dim, sigma1, numThreads );
+
+		final Image< FloatType > dogImage = ImagePool.leaseFloat( dim );
+		final float[] dog = FloatImages.getArray( dogImage );
+		System.arraycopy( input, 0, dog, 0, input.length );
+		convolve( dog, dim, sigma2, numThreads );
+
+		for ( int i = 0; i < dog.length; ++i )
+			dog[ i ] = ( dog[ i ] - gauss1[ i ] ) * normalization;
+
+		return dogImage;
+	}
+
+	/**
+	 * Convolves the data in-place with a gaussian, one dimension after the other.
+	 *
+	 * @param data - the pixels in the order x + y*w + z*w*h
+	 * @param dim - the dimensions
+	 * @param sigma - the sigma per dimension (at least dim.length entries), 0 means do not convolve in this dimension
+	 * @param numThreads - how many threads to use
+	 */
+	public static void convolve( final float[] data, final int[] dim, final double[] sigma, final int numThreads )
+	{
+		int stride = 1;
+
+		for ( int d = 0; d < dim.length; ++d )
+		{
+			if ( sigma[ d ] > 0 && dim[ d ] > 1 )
+				convolveDimension( data, dim, d, stride, sigma[ d ], numThreads );
+
+			stride *= dim[ d ];
+		}
+	}
+
+	protected static void convolveDimension( final float[] data, final int[] dim, final int d, final int stride, final double sigma, final int numThreads )
+	{
+		final double[] b = computeCoefficients( sigma );
+
+		final int length = dim[ d ];
+		final int numLines = data.length / length;
+		final int blockSize = stride * length;
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numLines ) ) );
+		final int numChunks = threads.length;
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					final int myNumber = ai.getAndIncrement();
+					final double[] line = new double[ length ];
+
+					final int start = (int)( (long)numLines * myNumber / numChunks );
+					final int end = (int)( (long)numLines * ( myNumber + 1 ) / numChunks );
+
+					for ( int l = start; l < end; ++l )
+					{
+						// first pixel of the line: all lines of one block share the outer index
+						final int offset = ( l / stride ) * blockSize + ( l % stride );
+
+						for ( int i = 0, j = offset; i < length; ++i, j += stride )
+							line[ i ] = data[ j ];
+
+						filterLine( line, length, b[ 0 ], b[ 1 ], b[ 2 ], b[ 3 ] );
+
+						for ( int i = 0, j = offset; i < length; ++i, j += stride )
+							data[ j ] = (float)line[ i ];
+					}
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+	}
+
+	/**
+	 * Runs the causal and anti-causal recursion on one line, the boundary is initialized with the
+	 * steady state of a constant signal (i.e. the first/last value is replicated).
+	 */
+	protected static final void filterLine( final double[] line, final int length, final double B, final double b1, final double b2, final double b3 )
+	{
+		double w1 = line[ 0 ], w2 = w1, w3 = w1;
+
+		for ( int i = 0; i < length; ++i )
+		{
+			final double w = B * line[ i ] + b1 * w1 + b2 * w2 + b3 * w3;
+			line[ i ] = w;
+			w3 = w2;
+			w2 = w1;
+			w1 = w;
+		}
+
+		double y1 = line[ length - 1 ], y2 = y1, y3 = y1;
+
+		for ( int i = length - 1; i >= 0; --i )
+		{
+			final double y = B * line[ i ] + b1 * y1 + b2 * y2 + b3 * y3;
+			line[ i ] = y;
+			y3 = y2;
+			y2 = y1;
+			y1 = y;
+		}
+	}
+
+	/**
+	 * @param sigma - the sigma of the gaussian
+	 * @return { B, b1/b0, b2/b0, b3/b0 } as defined by Young and van Vliet
+	 */
+	public static double[] computeCoefficients( double sigma )
+	{
+		sigma = Math.max( 0.5, sigma );
+
+		final double q;
+
+		if ( sigma >= 2.5 )
+			q = 0.98711 * sigma - 0.96330;
+		else
+			q = 3.97156 - 4.14554 * Math.sqrt( 1.0 - 0.26891 * sigma );
+
+		final double q2 = q * q;
+		final double q3 = q2 * q;
+
+		final double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+		final double b1 = ( 2.44413 * q + 2.85619 * q2 + 1.26661 * q3 ) / b0;
+		final double b2 = -( 1.4281 * q2 + 1.26661 * q3 ) / b0;
+		final double b3 = ( 0.422205 * q3 ) / b0;
+
+		return new double[]{ 1.0 - ( b1 + b2 + b3 ), b1, b2, b3 };
+	}
+
+	/**
+	 * Finds all local minima and maxima in the 3^n neighborhood of an array-backed DoG image (2d or 3d)
+	 * whose absolute value is at least minPeakValue. Pixels at the image border are not considered.
+	 * The peaks are returned ordered by their position (z, y, x).
+	 *
+	 * The criterion is the one of DifferenceOfGaussian.findPeaks: a pixel is a maximum if it is &gt;= all
+	 * neighbors and a minimum if it is &lt;= all neighbors, a constant neighborhood is reported as a minimum.
+	 *
+	 * @param dogImage - the DoG image
+	 * @param minPeakValue - the minimal absolute value
+	 * @param numThreads - how many threads to use
+	 * @return the list of peaks
+	 */
+	public static ArrayList< DifferenceOfGaussianPeak< FloatType > > findPeaks( final Image< FloatType > dogImage, final float minPeakValue, final int numThreads )
+	{
+		final float[] data = FloatImages.getArray( dogImage );
+
+		return findPeaks( new FloatAccess()
+		{
+			@Override
+			public float get( final int index ) { return data[ index ]; }
+		}, dogImage.getDimensions(), minPeakValue, numThreads );
+	}
+
+	/**
+	 * Same as {@link #findPeaks(Image, float, int)} for DoG values stored in any way
+	 *
+	 * @param data - the DoG values
+	 * @param dim - the dimensions (2d or 3d)
+	 */
+	public static ArrayList< DifferenceOfGaussianPeak< FloatType > > findPeaks( final FloatAccess data, final int[] dim, final float minPeakValue, final int numThreads )
+	{
+		final int n = dim.length;
+
+		final int w = dim[ 0 ];
+		final int h = dim[ 1 ];
+		final int depth = n > 2 ? dim[ 2 ] : 1;
+		final int numRows = h * depth;
+
+		// the offsets to all neighbors in the 3^n neighborhood
+		final int[] offsets = new int[ n > 2 ? 26 : 8 ];
+		int k = 0;
+
+		for ( int dz = ( n > 2 ? -1 : 0 ); dz <= ( n > 2 ? 1 : 0 ); ++dz )
+			for ( int dy = -1; dy <= 1; ++dy )
+				for ( int dx = -1; dx <= 1; ++dx )
+					if ( dx != 0 || dy != 0 || dz != 0 )
+						offsets[ k++ ] = dx + dy * w + dz * w * h;
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numRows ) ) );
+		final int numChunks = threads.length;
+
+		final ArrayList< ArrayList< DifferenceOfGaussianPeak< FloatType > > > chunkPeaks = new ArrayList< ArrayList< DifferenceOfGaussianPeak< FloatType > > >();
+		for ( int i = 0; i < numChunks; ++i )
+			chunkPeaks.add( new ArrayList< DifferenceOfGaussianPeak< FloatType > >() );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					final int myNumber = ai.getAndIncrement();
+					final ArrayList< DifferenceOfGaussianPeak< FloatType > > myPeaks = chunkPeaks.get( myNumber );
+
+					final int start = (int)( (long)numRows * myNumber / numChunks );
+					final int end = (int)( (long)numRows * ( myNumber + 1 ) / numChunks );
+
+					for ( int r = start; r < end; ++r )
+					{
+						final int y = r % h;
+						final int z = r / h;
+
+						if ( y == 0 || y == h - 1 || ( n > 2 && ( z == 0 || z == depth - 1 ) ) )
+							continue;
+
+						for ( int x = 1, i = r * w + 1; x < w - 1; ++x, ++i )
+						{
+							final float v = data.get( i );
+
+							if ( Math.abs( v ) < minPeakValue )
+								continue;
+
+							boolean isMax = true;
+							boolean isMin = true;
+
+							for ( final int o : offsets )
+							{
+								final float nv = data.get( i + o );
+
+								if ( nv > v )
+									isMax = false;
+
+								if ( nv < v )
+									isMin = false;
+
+								if ( !isMax && !isMin )
+									break;
+							}
+
+							if ( isMax || isMin )
+							{
+								final int[] position = n > 2 ? new int[]{ x, y, z } : new int[]{ x, y };
+								myPeaks.add( new DifferenceOfGaussianPeak< FloatType >( position, new FloatType( v ), isMin ? SpecialPoint.MIN : SpecialPoint.MAX ) );
+							}
+						}
+					}
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks = new ArrayList< DifferenceOfGaussianPeak< FloatType > >();
+
+		for ( final ArrayList< DifferenceOfGaussianPeak< FloatType > > list : chunkPeaks )
+			peaks.addAll( list );
+
+		return peaks;
+	}
+}
@@ -0,0 +1,362 @@
+package process;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+/**
+ * Difference of gaussian with reduced-precision buffers (DescriptorParameters.dogEngine == 2).
+ *
+ * The two gaussians are computed with the recursive filter of {@link RecursiveGaussian} on scaled unsigned
+ * 16-bit copies of the input (0 == min, 65535 == max of the image), every line is filtered in double and
+ * rounded back. The DoG is computed in float from the two 16-bit buffers and stored as IEEE 754 half
+ * (binary16) in the buffer of the second gaussian. Peak values and the subpixel localization are computed
+ * in float ({@link #get(int)} converts a half back to float, see {@link QuadraticLocalization}).
+ *
+ * Memory: 2 bytes per pixel for each gaussian instead of 4, i.e. 8 bytes per pixel during the DoG
+ * (float input + 2 x 16 bit) instead of 12 for the float recursive gaussian, and the DoG that is kept for
+ * the localization needs 2 bytes per pixel instead of 4.
+ *
+ * Accuracy compared to the float recursive gaussian (dogEngine == 1), for an input normalized to [0,1]
+ * (see Matching.convertToFloat), use {@link #compareToFloat(Image, double[], double[], float, float, int)}
+ * to measure it on a specific image:
+ *
+ * - every rounding to 16 bit adds an error of at most 0.5/65535 = 7.6e-6 of the range, so a gaussian in
+ *   3d (quantization + 3 passes) differs by at most 3.1e-5, in 2d by at most 2.3e-5
+ * - the DoG differs by at most 2 * 3.1e-5 * K with K = 1 / ( sigma2/sigma1 - 1 ), e.g. 1e-4 for
+ *   sigma2/sigma1 = 1.6 (the errors are not correlated, the typical error is ~4x smaller); the default
+ *   thresholds are 0.008 - 0.02, so only peaks within ~1% of the threshold can change
+ * - storing the DoG as half has a relative error of 2^-11 = 4.9e-4 of the DoG value (values below 6.1e-5
+ *   are subnormal with an absolute error of 3e-8); neighboring DoG values of a peak that differ by less than
+ *   that can become equal, so very flat peaks (sigma1 &gt; ~20 px) can be reported at several neighboring pixels
+ * - the quadratic fit moves by about error * sigma1^2 / peak value, e.g. &lt;0.02 px worst case and typically
+ *   &lt;0.005 px for sigma1 = 2 px and a peak value of 0.02
+ */
+public class ReducedPrecisionDoG implements FloatAccess
+{
+	final int[] dim;
+	final short[] dog;
+
+	protected ReducedPrecisionDoG( final int[] dim, final short[] dog )
+	{
+		this.dim = dim;
+		this.dog = dog;
+	}
+
+	public int[] getDimensions() { return dim.clone(); }
+
+	/**
+	 * @return the DoG value at index (x + y*w + z*w*h) in float
+	 */
+	@Override
+	public float get( final int index ) { return halfToFloat( dog[ index ] ); }
+
+	/**
+	 * @return the minima and maxima, see {@link RecursiveGaussian#findPeaks(FloatAccess, int[], float, int)}
+	 */
+	public ArrayList< DifferenceOfGaussianPeak< FloatType > > findPeaks( final float minPeakValue, final int numThreads )
+	{
+		return RecursiveGaussian.findPeaks( this, dim, minPeakValue, numThreads );
+	}
+
+	/**
+	 * Computes the difference of gaussian (G(sigma2) - G(sigma1)) * normalization of an array-backed image,
+	 * the same convention as {@link RecursiveGaussian#computeDoG(Image, double[], double[], float, int)}.
+	 *
+	 * @param img - the input, an array-backed {@link Image}, it is not modified
+	 * @param sigma1 - the smaller sigma per dimension
+	 * @param sigma2 - the larger sigma per dimension
+	 * @param normalization - the factor to multiply the difference with
+	 * @param numThreads - how many threads to use
+	 * @return the DoG stored as half
+	 */
+	public static ReducedPrecisionDoG computeDoG( final Image< FloatType > img, final double[] sigma1, final double[] sigma2, final float normalization, final int numThreads )
+	{
+		final int[] dim = img.getDimensions();
+		final float[] input = FloatImages.getArray( img );
+
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+
+		for ( final float v : input )
+		{
+			min = Math.min( min, v );
+			max = Math.max( max, v );
+		}
+
+		final float range = max > min ? max - min : 1;
+
+		final short[] gauss1 = quantize( input, min, range, numThreads );
+		convolve( gauss1, dim, sigma1, numThreads );
+
+		final short[] gauss2 = quantize( input, min, range, numThreads );
+		convolve( gauss2, dim, sigma2, numThreads );
+
+		// the difference in float, the result replaces the second gaussian
+		final float scale = range / 65535f * normalization;
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, numThreads ) );
+		final int numChunks = threads.length;
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					final int myNumber = ai.getAndIncrement();
+
+					final int start = (int)( (long)gauss2.length * myNumber / numChunks );
+					final int end = (int)( (long)gauss2.length * ( myNumber + 1 ) / numChunks );
+
+					for ( int i = start; i < end; ++i )
+						gauss2[ i ] = floatToHalf( ( ( gauss2[ i ] & 0xffff ) - ( gauss1[ i ] & 0xffff ) ) * scale );
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		return new ReducedPrecisionDoG( dim, gauss2 );
+	}
+
+	/**
+	 * @return the values mapped from [ min, min + range ] to unsigned 16 bit [ 0, 65535 ]
+	 */
+	protected static short[] quantize( final float[] input, final float min, final float range, final int numThreads )
+	{
+		final short[] data = new short[ input.length ];
+		final float scale = 65535f / range;
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, numThreads ) );
+		final int numChunks = threads.length;
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					final int myNumber = ai.getAndIncrement();
+
+					final int start = (int)( (long)input.length * myNumber / numChunks );
+					final int end = (int)( (long)input.length * ( myNumber + 1 ) / numChunks );
+
+					for ( int i = start; i < end; ++i )
+						data[ i ] = toUnsignedShort( ( input[ i ] - min ) * scale );
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		return data;
+	}
+
+	/**
+	 * Convolves unsigned 16-bit data in-place with a gaussian, one dimension after the other. The recursion
+	 * of every line is computed in double, the result is rounded back to 16 bit.
+	 *
+	 * @param data - the pixels in the order x + y*w + z*w*h
+	 * @param dim - the dimensions
+	 * @param sigma - the sigma per dimension, 0 means do not convolve in this dimension
+	 * @param numThreads - how many threads to use
+	 */
+	public static void convolve( final short[] data, final int[] dim, final double[] sigma, final int numThreads )
+	{
+		int stride = 1;
+
+		for ( int d = 0; d < dim.length; ++d )
+		{
+			if ( sigma[ d ] > 0 && dim[ d ] > 1 )
+				convolveDimension( data, dim, d, stride, sigma[ d ], numThreads );
+
+			stride *= dim[ d ];
+		}
+	}
+
+	protected static void convolveDimension( final short[] data, final int[] dim, final int d, final int stride, final double sigma, final int numThreads )
+	{
+		final double[] b = RecursiveGaussian.computeCoefficients( sigma );
+
+		final int length = dim[ d ];
+		final int numLines = data.length / length;
+		final int blockSize = stride * length;
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, numLines ) ) );
+		final int numChunks = threads.length;
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					final int myNumber = ai.getAndIncrement();
+					final double[] line = new double[ length ];
+
+					final int start = (int)( (long)numLines * myNumber / numChunks );
+					final int end = (int)( (long)numLines * ( myNumber + 1 ) / numChunks );
+
+					for ( int l = start; l < end; ++l )
+					{
+						final int offset = ( l / stride ) * blockSize + ( l % stride );
+
+						for ( int i = 0, j = offset; i < length; ++i, j += stride )
+							line[ i ] = data[ j ] & 0xffff;
+
+						RecursiveGaussian.filterLine( line, length, b[ 0 ], b[ 1 ], b[ 2 ], b[ 3 ] );
+
+						for ( int i = 0, j = offset; i < length; ++i, j += stride )
+							data[ j ] = toUnsignedShort( line[ i ] );
+					}
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+	}
+
+	protected static final short toUnsignedShort( final double v )
+	{
+		return (short)Math.max( 0, Math.min( 65535, (int)( v + 0.5 ) ) );
+	}
+
+	/**
+	 * Converts a float to IEEE 754 half precision (binary16), rounding to nearest,
+	 * values above 65504 become infinity, values below 2^-25 become 0
+	 */
+	public static short floatToHalf( final float f )
+	{
+		final int bits = Float.floatToIntBits( f );
+		final int sign = ( bits >>> 16 ) & 0x8000;
+		final int abs = bits & 0x7fffffff;
+
+		// NaN and infinity
+		if ( abs >= 0x7f800000 )
+			return (short)( sign | 0x7c00 | ( abs > 0x7f800000 ? 0x200 : 0 ) );
+
+		// rounds to infinity
+		if ( abs >= 0x477ff000 )
+			return (short)( sign | 0x7c00 );
+
+		// normalized half, the carry of the rounding may increase the exponent which is correct
+		if ( abs >= 0x38800000 )
+			return (short)( sign | ( ( abs - 0x38000000 + 0x1000 ) >>> 13 ) );
+
+		// rounds to zero
+		if ( abs < 0x33000000 )
+			return (short)sign;
+
+		// subnormal half
+		final int shift = 126 - ( abs >>> 23 );
+		final int mantissa = ( abs & 0x7fffff ) | 0x800000;
+
+		return (short)( sign | ( ( mantissa + ( 1 << ( shift - 1 ) ) ) >>> shift ) );
+	}
+
+	/**
+	 * Converts an IEEE 754 half precision value (binary16) to float, this is exact
+	 */
+	public static float halfToFloat( final short half )
+	{
+		final int h = half & 0xffff;
+		final int sign = ( h & 0x8000 ) << 16;
+		final int exponent = ( h >>> 10 ) & 0x1f;
+		final int mantissa = h & 0x3ff;
+
+		if ( exponent == 0x1f )
+			return Float.intBitsToFloat( sign | 0x7f800000 | ( mantissa << 13 ) );
+
+		if ( exponent == 0 )
+		{
+			// 0 or subnormal, mantissa * 2^-24
+			final float v = mantissa * 5.9604645E-8f;
+			return sign == 0 ? v : -v;
+		}
+
+		return Float.intBitsToFloat( sign | ( ( exponent + 112 ) << 23 ) | ( mantissa << 13 ) );
+	}
+
+	/**
+	 * Computes the DoG with float (dogEngine == 1) and reduced-precision buffers and compares the DoG values,
+	 * the detected peaks and their quadratic subpixel localization
+	 *
+	 * @param img - the input, an array-backed {@link Image}
+	 * @param threshold - the minimal absolute DoG value of a peak
+	 * @return a human-readable report
+	 */
+	public static String compareToFloat( final Image< FloatType > img, final double[] sigma1, final double[] sigma2, final float normalization,
+			final float threshold, final int numThreads )
+	{
+		final Image< FloatType > dogFloat = RecursiveGaussian.computeDoG( img, sigma1, sigma2, normalization, numThreads );
+		final float[] f = FloatImages.getArray( dogFloat );
+		final ReducedPrecisionDoG dogHalf = computeDoG( img, sigma1, sigma2, normalization, numThreads );
+
+		double maxError = 0, sumSqError = 0, maxValue = 0;
+
+		for ( int i = 0; i < f.length; ++i )
+		{
+			final double e = Math.abs( f[ i ] - dogHalf.get( i ) );
+			maxError = Math.max( maxError, e );
+			sumSqError += e * e;
+			maxValue = Math.max( maxValue, Math.abs( f[ i ] ) );
+		}
+
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaksFloat = RecursiveGaussian.findPeaks( dogFloat, threshold, numThreads );
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaksHalf = dogHalf.findPeaks( threshold, numThreads );
+
+		final FloatAccess floatAccess = new FloatAccess()
+		{
+			@Override
+			public float get( final int index ) { return f[ index ]; }
+		};
+
+		QuadraticLocalization.localize( floatAccess, img.getDimensions(), peaksFloat, 10, true, numThreads );
+		QuadraticLocalization.localize( dogHalf, dogHalf.dim, peaksHalf, 10, true, numThreads );
+
+		ImagePool.release( dogFloat );
+
+		// match the peaks by their pixel location
+		final HashMap< String, DifferenceOfGaussianPeak< FloatType > > lookup = new HashMap< String, DifferenceOfGaussianPeak< FloatType > >();
+
+		for ( final DifferenceOfGaussianPeak< FloatType > p : peaksFloat )
+			lookup.put( key( p, dogHalf.dim.length ), p );
+
+		int matched = 0;
+		double maxShift = 0, maxValueError = 0;
+
+		for ( final DifferenceOfGaussianPeak< FloatType > p : peaksHalf )
+		{
+			final DifferenceOfGaussianPeak< FloatType > q = lookup.get( key( p, dogHalf.dim.length ) );
+
+			if ( q == null )
+				continue;
+
+			++matched;
+
+			double shift = 0;
+			for ( int d = 0; d < dogHalf.dim.length; ++d )
+				shift += Math.pow( p.getSubPixelPosition( d ) - q.getSubPixelPosition( d ), 2 );
+
+			maxShift = Math.max( maxShift, Math.sqrt( shift ) );
+			maxValueError = Math.max( maxValueError, Math.abs( p.getValue().get() - q.getValue().get() ) );
+		}
+
+		return "DoG max |error| = " + maxError + " (rms " + Math.sqrt( sumSqError / f.length ) + ", max |DoG| = " + maxValue + "), " +
+			"peaks float = " + peaksFloat.size() + ", reduced = " + peaksHalf.size() + ", same pixel = " + matched +
+			", max subpixel shift = " + maxShift + " px, max peak value error = " + maxValueError;
+	}
+
+	protected static String key( final DifferenceOfGaussianPeak< FloatType > p, final int n )
+	{
+		final StringBuilder key = new StringBuilder();
+
+		for ( int d = 0; d < n; ++d )
+			key.append( p.getPosition( d ) ).append( ',' );
+
+		return key.toString();
+	}
+}
@@ -0,0 +1,203 @@
+package process;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import plugin.DescriptorParameters;
+
+/**
+ * Chooses the DoG threshold so that a certain number (or density) of peaks is detected.
+ *
+ * The difference of gaussian is computed only once with a very low threshold
+ * (DescriptorParameters.autoThresholdMinimum). The absolute peak values are collected in a histogram,
+ * and the threshold is the value of the n-th strongest peak. Because the threshold only removes peaks
+ * with a smaller value, detecting again with this threshold gives the same n strongest peaks. That pass
+ * uses the subpixel localization if it is selected, because it changes the peak values. The gaussian
+ * mask fit does not change them, so it is skipped.
+ *
+ * Instead of detecting the timepoint again, the peaks of the estimate can be filtered by the threshold (see
+ * {@link #canReusePeaks(DescriptorParameters)} and {@link #filterPeaks(ArrayList, double)}).
+ */
+public class ThresholdEstimation
+{
+	/**
+	 * the number of bins of the histogram of the peak values
+	 */
+	public static int numBins = 4096;
+
+	/**
+	 * @return if the threshold should be estimated (DescriptorParameters.autoThresholdNumPeaks or autoThresholdDensity is set)
+	 */
+	public static boolean isEnabled()
+	{
+		return DescriptorParameters.autoThresholdNumPeaks > 0 || DescriptorParameters.autoThresholdDensity > 0;
+	}
+
+	/**
+	 * @param imp - the image
+	 * @param params - the parameters
+	 * @return the number of peaks that should be detected
+	 */
+	public static int computeTargetNumPeaks( final ImagePlus imp, final DescriptorParameters params )
+	{
+		if ( DescriptorParameters.autoThresholdNumPeaks > 0 )
+			return DescriptorParameters.autoThresholdNumPeaks;
+
+		final Calibration cal = imp.getCalibration();
+
+		double volume = imp.getWidth() * cal.pixelWidth * imp.getHeight() * cal.pixelHeight;
+
+		if ( params.dimensionality == 3 )
+			volume *= imp.getNSlices() * cal.pixelDepth;
+
+		return (int)Math.max( 1, Math.round( DescriptorParameters.autoThresholdDensity * volume ) );
+	}
+
+	/**
+	 * The peaks of the estimate filtered by the threshold are the peaks a detection with this threshold finds if
+	 * there is no gaussian mask fit (it is skipped by the estimate). With the subpixel localization the detection
+	 * only localizes peaks whose pixel value is at least threshold/4, the estimate localizes all peaks above
+	 * autoThresholdMinimum, so a peak below threshold/4 that reaches the threshold by moving to a brighter pixel
+	 * is only found by the estimate.
+	 *
+	 * @return if the peaks of the estimate can be used for the detection of this timepoint
+	 */
+	public static boolean canReusePeaks( final DescriptorParameters params )
+	{
+		return params.localization != 2;
+	}
+
+	/**
+	 * Removes all peaks whose absolute value is below the threshold, keeping the order
+	 */
+	public static void filterPeaks( final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks, final double threshold )
+	{
+		int j = 0;
+
+		for ( int i = 0; i < peaks.size(); ++i )
+			if ( Math.abs( peaks.get( i ).getValue().get() ) >= threshold )
+				peaks.set( j++, peaks.get( i ) );
+
+		peaks.subList( j, peaks.size() ).clear();
+	}
+
+	public static double estimateThreshold( final ImagePlus imp, final int channel, final int timepoint, final DescriptorParameters params, final float[] minmax, final int numThreads )
+	{
+		return estimateThreshold( imp, channel, timepoint, params, minmax, numThreads, null );
+	}
+
+	/**
+	 * Computes the DoG of one channel/timepoint once and chooses the threshold that yields the target number of peaks
+	 *
+	 * @param imp - the image
+	 * @param channel - the channel (0-based)
+	 * @param timepoint - the timepoint (0-based)
+	 * @param params - the parameters, params.threshold is not changed
+	 * @param minmax - the min/max for normalization or null
+	 * @param numThreads - how many threads to use
+	 * @param peaksOut - if not null, will contain the peaks of the estimate with a value &gt;= the threshold
+	 * (they are only the detection of this timepoint if {@link #canReusePeaks(DescriptorParameters)})
+	 * @return the threshold
+	 */
+	public static double estimateThreshold( final ImagePlus imp, final int channel, final int timepoint, final DescriptorParameters params, final float[] minmax, final int numThreads,
+			final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaksOut )
+	{
+		final float lowThreshold = (float)DescriptorParameters.autoThresholdMinimum;
+		final int localization = params.localization == 1 ? 1 : 0;
+
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks;
+
+		final int blockSize = BlockwiseDetection.getBlockSize( imp, params );
+
+		if ( blockSize > 0 )
+		{
+			peaks = BlockwiseDetection.extractCandidates( imp, channel, timepoint, params, lowThreshold, localization, minmax, blockSize, numThreads );
+		}
+		else
+		{
+			final Image< FloatType > img = Matching.leaseFloat( imp, channel, timepoint, minmax, numThreads );
+			Matching.setCalibration( img, imp, params.dimensionality );
+
+			peaks = Matching.computeDoG( img, (float)params.sigma1, (float)params.sigma2, params.lookForMaxima, params.lookForMinima, lowThreshold,
+					localization, params.iterations, params.sigma, params.region, numThreads );
+
+			ImagePool.release( img );
+		}
+
+		final float[] values = new float[ peaks.size() ];
+		int numValues = 0;
+
+		for ( final DifferenceOfGaussianPeak< FloatType > peak : peaks )
+			if ( peak.isValid() )
+				values[ numValues++ ] = Math.abs( peak.getValue().get() );
+
+		final double threshold = selectThreshold( values, numValues, computeTargetNumPeaks( imp, params ), lowThreshold );
+
+		if ( peaksOut != null )
+		{
+			filterPeaks( peaks, threshold );
+			peaksOut.addAll( peaks );
+		}
+
+		return threshold;
+	}
+
+	/**
+	 * Finds the threshold so that (at least) numPeaks values are &gt;= the threshold using a histogram,
+	 * only the values in the bin that contains the threshold are sorted.
+	 *
+	 * @param values - the absolute peak values
+	 * @param numValues - how many entries of values are used
+	 * @param numPeaks - the target number of peaks
+	 * @param lowThreshold - the smallest possible threshold (all values are &gt;= lowThreshold)
+	 * @return the threshold
+	 */
+	public static double selectThreshold( final float[] values, final int numValues, final int numPeaks, final float lowThreshold )
+	{
+		if ( numValues <= numPeaks || numPeaks <= 0 )
+			return lowThreshold;
+
+		float max = lowThreshold;
+
+		for ( int i = 0; i < numValues; ++i )
+			max = Math.max( max, values[ i ] );
+
+		final double binWidth = Math.max( Float.MIN_VALUE, ( max - lowThreshold ) / numBins );
+		final int[] histogram = new int[ numBins ];
+
+		for ( int i = 0; i < numValues; ++i )
+			++histogram[ getBin( values[ i ], lowThreshold, binWidth ) ];
+
+		// go down from the highest bin until enough peaks are above
+		int numAbove = 0;
+		int bin = numBins - 1;
+
+		while ( bin > 0 && numAbove + histogram[ bin ] < numPeaks )
+			numAbove += histogram[ bin-- ];
+
+		// the exact threshold within the bin
+		final float[] binValues = new float[ histogram[ bin ] ];
+		int j = 0;
+
+		for ( int i = 0; i < numValues; ++i )
+			if ( getBin( values[ i ], lowThreshold, binWidth ) == bin )
+				binValues[ j++ ] = values[ i ];
+
+		Arrays.sort( binValues );
+
+		final int index = binValues.length - ( numPeaks - numAbove );
+
+		return binValues[ Math.max( 0, index ) ];
+	}
+
+	protected static int getBin( final float value, final float lowThreshold, final double binWidth )
+	{
+		return Math.max( 0, Math.min( numBins - 1, (int)( ( value - lowThreshold ) / binWidth ) ) );
+	}
+}
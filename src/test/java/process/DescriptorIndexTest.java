@@ -0,0 +1,220 @@
+package process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the k nearest neighbors of the kd-tree of {@link DescriptorIndex} to a brute-force search, and checks the features
+ */
+public class DescriptorIndexTest
+{
+	@Test
+	public void testExactSearch()
+	{
+		final Random rnd = new Random( 42 );
+
+		// empty, a single leaf, the bucket size and one more, and random sizes
+		final int b = DescriptorIndex.bucketSize;
+		final int[] sizes = new int[]{ 0, 1, b - 1, b, b + 1, 2 * b, 2 * b + 1, 4 * b - 1, 4 * b, 4 * b + 1 };
+
+		for ( int t = 0; t < 300; ++t )
+		{
+			final int n = t < sizes.length * 10 ? sizes[ t % sizes.length ] : rnd.nextInt( 1000 );
+			final int numDimensions = 1 + rnd.nextInt( 12 );
+
+			// few distinct values give duplicate features and equal distances
+			final boolean duplicates = rnd.nextBoolean();
+			final float[][] features = createFeatures( n, numDimensions, duplicates, rnd );
+			final DescriptorIndex index = new DescriptorIndex( features );
+
+			assertSplits( index );
+
+			final int k = 1 + rnd.nextInt( 10 );
+			final DescriptorIndex.Searcher searcher = new DescriptorIndex.Searcher( index, k, 0 );
+
+			// the searcher is reused for all queries
+			for ( int q = 0; q < 20; ++q )
+			{
+				final float[] query = q < 5 && n > 0 ? features[ rnd.nextInt( n ) ] : createFeatures( 1, numDimensions, duplicates, rnd )[ 0 ];
+				assertNearest( features, query, searcher, Math.min( k, n ) );
+			}
+		}
+	}
+
+	@Test
+	public void testApproximateSearch()
+	{
+		final Random rnd = new Random( 42 );
+
+		for ( int t = 0; t < 100; ++t )
+		{
+			final int n = 1 + rnd.nextInt( 1000 );
+			final int numDimensions = 1 + rnd.nextInt( 12 );
+			final float[][] features = createFeatures( n, numDimensions, rnd.nextBoolean(), rnd );
+			final DescriptorIndex index = new DescriptorIndex( features );
+			final int k = 1 + rnd.nextInt( 10 );
+
+			// visiting every leaf is exact
+			final DescriptorIndex.Searcher all = new DescriptorIndex.Searcher( index, k, index.numNodes );
+			final DescriptorIndex.Searcher one = new DescriptorIndex.Searcher( index, k, 1 );
+
+			for ( int q = 0; q < 20; ++q )
+			{
+				final float[] query = createFeatures( 1, numDimensions, false, rnd )[ 0 ];
+				assertNearest( features, query, all, Math.min( k, n ) );
+
+				// one leaf has at least bucketSize / 2 features, they are sorted by distance
+				final int numFound = one.search( query );
+				assertTrue( numFound >= Math.min( k, Math.min( n, DescriptorIndex.bucketSize / 2 ) ) );
+
+				for ( int i = 1; i < numFound; ++i )
+					assertTrue( distance( features, query, one.getNearest( i - 1 ) ) <= distance( features, query, one.getNearest( i ) ) );
+			}
+		}
+	}
+
+	@Test
+	public void testRelativeCoordinatesIgnoreOrder()
+	{
+		final Random rnd = new Random( 42 );
+
+		for ( int t = 0; t < 100; ++t )
+		{
+			final int n = 2 + rnd.nextInt( 2 );
+			final Particle[] neighborList = new Particle[ 2 + rnd.nextInt( 6 ) ];
+
+			for ( int i = 0; i < neighborList.length; ++i )
+			{
+				final double[] location = new double[ n ];
+
+				for ( int d = 0; d < n; ++d )
+					location[ d ] = rnd.nextDouble() * 100;
+
+				neighborList[ i ] = new Particle( i, location, 1 );
+			}
+
+			final float[] feature = DescriptorIndex.relativeCoordinates( neighborList[ 0 ], neighborList );
+			final int numNeighbors = neighborList.length - 1;
+
+			assertEquals( numNeighbors * n, feature.length );
+
+			// the coordinates of every dimension, sorted
+			for ( int d = 0; d < n; ++d )
+			{
+				final float[] expected = new float[ numNeighbors ];
+
+				for ( int i = 1; i < neighborList.length; ++i )
+					expected[ i - 1 ] = (float)( neighborList[ i ].getW()[ d ] - neighborList[ 0 ].getW()[ d ] );
+
+				Arrays.sort( expected );
+				assertArrayEquals( expected, Arrays.copyOfRange( feature, d * numNeighbors, ( d + 1 ) * numNeighbors ), 0 );
+			}
+
+			// two neighbors swap their order (the basis point stays first)
+			if ( numNeighbors >= 2 )
+			{
+				final int i = 1 + rnd.nextInt( numNeighbors );
+				final int j = 1 + ( i + rnd.nextInt( numNeighbors - 1 ) ) % numNeighbors;
+
+				final Particle[] swapped = neighborList.clone();
+				swapped[ i ] = neighborList[ j ];
+				swapped[ j ] = neighborList[ i ];
+
+				assertArrayEquals( feature, DescriptorIndex.relativeCoordinates( swapped[ 0 ], swapped ), 0 );
+			}
+		}
+	}
+
+	/**
+	 * Checks that the searcher finds as many features as expected, sorted by distance, with the same distances as a brute-force
+	 * search (which of several features at the same distance is returned may differ)
+	 */
+	protected static void assertNearest( final float[][] features, final float[] query, final DescriptorIndex.Searcher searcher, final int expectedNumFound )
+	{
+		final double[] all = new double[ features.length ];
+
+		for ( int i = 0; i < features.length; ++i )
+			all[ i ] = distance( features, query, i );
+
+		Arrays.sort( all );
+
+		assertEquals( expectedNumFound, searcher.search( query ) );
+
+		final boolean[] found = new boolean[ features.length ];
+
+		for ( int i = 0; i < expectedNumFound; ++i )
+		{
+			final int nearest = searcher.getNearest( i );
+
+			// every feature once
+			assertTrue( !found[ nearest ] );
+			found[ nearest ] = true;
+
+			assertEquals( all[ i ], distance( features, query, nearest ), 0 );
+		}
+	}
+
+	/**
+	 * Checks for every inner node that the features on the left are not larger and those on the right not smaller than the split value
+	 */
+	protected static void assertSplits( final DescriptorIndex index )
+	{
+		final boolean[] covered = new boolean[ index.size() ];
+
+		for ( int node = 0; node < index.numNodes; ++node )
+		{
+			if ( index.left[ node ] < 0 )
+			{
+				assertTrue( index.end[ node ] - index.start[ node ] >= DescriptorIndex.bucketSize / 2 || index.numNodes == 1 );
+
+				for ( int i = index.start[ node ]; i < index.end[ node ]; ++i )
+				{
+					assertTrue( !covered[ index.index[ i ] ] );
+					covered[ index.index[ i ] ] = true;
+				}
+
+				continue;
+			}
+
+			final int d = index.splitDimension[ node ];
+			final float split = index.splitValue[ node ];
+			final int l = index.left[ node ], r = index.right[ node ];
+
+			assertEquals( index.start[ node ], index.start[ l ] );
+			assertEquals( index.end[ l ], index.start[ r ] );
+			assertEquals( index.end[ node ], index.end[ r ] );
+
+			for ( int i = index.start[ l ]; i < index.end[ l ]; ++i )
+				assertTrue( index.features[ index.index[ i ] ][ d ] <= split );
+
+			for ( int i = index.start[ r ]; i < index.end[ r ]; ++i )
+				assertTrue( index.features[ index.index[ i ] ][ d ] >= split );
+		}
+
+		// every feature is in exactly one leaf
+		for ( final boolean c : covered )
+			assertTrue( c );
+	}
+
+	protected static float[][] createFeatures( final int n, final int numDimensions, final boolean duplicates, final Random rnd )
+	{
+		final float[][] features = new float[ n ][ numDimensions ];
+
+		for ( int i = 0; i < n; ++i )
+			for ( int d = 0; d < numDimensions; ++d )
+				features[ i ][ d ] = duplicates ? rnd.nextInt( 3 ) : (float)rnd.nextGaussian();
+
+		return features;
+	}
+
+	protected static double distance( final float[][] features, final float[] query, final int i )
+	{
+		return DescriptorIndex.Searcher.squareDistance( query, features[ i ] );
+	}
+}
@@ -0,0 +1,175 @@
+package process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.models.PointMatch;
+import mpicbg.pointdescriptor.AbstractPointDescriptor;
+import mpicbg.pointdescriptor.matcher.Matcher;
+import mpicbg.pointdescriptor.matcher.SubsetMatcher;
+import mpicbg.pointdescriptor.similarity.SquareDistance;
+
+import org.junit.Test;
+
+/**
+ * Compares the matching on a {@link DescriptorMatrix} to comparing the SimplePointDescriptors one by one
+ */
+public class DescriptorMatrixTest
+{
+	@Test
+	public void testSameMatches2d()
+	{
+		final Random rnd = new Random( 42 );
+
+		for ( int i = 0; i < 5; ++i )
+			compare( 2, rnd );
+	}
+
+	@Test
+	public void testSameMatches3d()
+	{
+		final Random rnd = new Random( 42 );
+
+		for ( int i = 0; i < 5; ++i )
+			compare( 3, rnd );
+	}
+
+	@Test
+	public void testModelDescriptorsFallBack()
+	{
+		final Random rnd = new Random( 42 );
+		final Matcher matcher = new SubsetMatcher( 3, 4 );
+
+		final ArrayList< Particle > listA = createPoints( 3, 200, rnd, null );
+		final ArrayList< Particle > listB = createPoints( 3, 200, rnd, listA );
+
+		final ArrayList< AbstractPointDescriptor > descriptorsA = Matching.createModelPointDescriptors( listA,
+				Matching.findNeighbors( listA, matcher.getRequiredNumNeighbors(), 2 ), matcher, new SquareDistance(), 3, null, 2 );
+		final ArrayList< AbstractPointDescriptor > descriptorsB = Matching.createModelPointDescriptors( listB,
+				Matching.findNeighbors( listB, matcher.getRequiredNumNeighbors(), 2 ), matcher, new SquareDistance(), 3, null, 2 );
+
+		// the rigid model makes descriptorDistance smaller than the distance of the matrices
+		assertFalse( DescriptorMatrix.agrees( descriptorsA, new DescriptorMatrix( descriptorsA, matcher ), descriptorsB, new DescriptorMatrix( descriptorsB, matcher ) ) );
+
+		assertSameMatches(
+				Matching.findCorrespondingDescriptors( descriptorsA, descriptorsB, 3, 2 ),
+				Matching.findCorrespondingDescriptors( descriptorsA, descriptorsB, matcher, 3, 2 ) );
+	}
+
+	protected static void compare( final int n, final Random rnd )
+	{
+		final int numNeighbors = 3 + rnd.nextInt( 2 );
+		final int redundancy = rnd.nextInt( 2 );
+		final Matcher matcher = new SubsetMatcher( numNeighbors, numNeighbors + redundancy );
+
+		final ArrayList< Particle > listA = createPoints( n, 50 + rnd.nextInt( 150 ), rnd, null );
+		final ArrayList< Particle > listB = createPoints( n, 50 + rnd.nextInt( 150 ), rnd, listA );
+
+		final ArrayList< AbstractPointDescriptor > descriptorsA = createDescriptors( listA, matcher );
+		final ArrayList< AbstractPointDescriptor > descriptorsB = createDescriptors( listB, matcher );
+
+		final DescriptorMatrix matrixA = new DescriptorMatrix( descriptorsA, matcher );
+		final DescriptorMatrix matrixB = new DescriptorMatrix( descriptorsB, matcher );
+
+		assertTrue( DescriptorMatrix.agrees( descriptorsA, matrixA, descriptorsB, matrixB ) );
+		assertEquals( 1.0 / numNeighbors, matrixA.getNormalization(), 0 );
+
+		// combinations that share a subset share a row
+		assertTrue( matrixA.numRows1 < matrixA.numCombinations || redundancy == 0 );
+		assertTrue( matrixA.numRows2 <= matrixA.numCombinations );
+
+		// every distance, and the limit
+		for ( int i = 0; i < descriptorsA.size(); i += 7 )
+		{
+			for ( int j = 0; j < descriptorsB.size(); ++j )
+			{
+				final double reference = descriptorsA.get( i ).descriptorDistance( descriptorsB.get( j ) );
+				final double distance = matrixA.distance( i, matrixB, j, Double.MAX_VALUE );
+
+				assertEquals( reference, distance * matrixA.getNormalization(), 1e-9 * Math.max( reference, 1e-12 ) );
+
+				final double limit = rnd.nextBoolean() ? distance : distance * 2 * rnd.nextDouble();
+
+				if ( distance < limit )
+					assertEquals( distance, matrixA.distance( i, matrixB, j, limit ), 0 );
+				else
+					assertEquals( Double.MAX_VALUE, matrixA.distance( i, matrixB, j, limit ), 0 );
+			}
+		}
+
+		for ( final float nTimesBetter : new float[]{ 1, 1.5f, 3 } )
+		{
+			final int numThreads = 1 + rnd.nextInt( 4 );
+
+			final ArrayList< PointMatch > expected = Matching.findCorrespondingDescriptors( descriptorsA, descriptorsB, nTimesBetter, numThreads );
+			final ArrayList< PointMatch > matches = Matching.findCorrespondingDescriptors( descriptorsA, descriptorsB, matcher, nTimesBetter, numThreads );
+
+			assertTrue( expected.size() > 0 );
+			assertSameMatches( expected, matches );
+		}
+	}
+
+	protected static void assertSameMatches( final ArrayList< PointMatch > expected, final ArrayList< PointMatch > matches )
+	{
+		assertEquals( expected.size(), matches.size() );
+
+		for ( int i = 0; i < expected.size(); ++i )
+		{
+			assertSame( expected.get( i ).getP1(), matches.get( i ).getP1() );
+			assertSame( expected.get( i ).getP2(), matches.get( i ).getP2() );
+		}
+	}
+
+	protected static ArrayList< AbstractPointDescriptor > createDescriptors( final ArrayList< Particle > list, final Matcher matcher )
+	{
+		final Particle[][] neighbors = Matching.findNeighbors( list, matcher.getRequiredNumNeighbors(), 2 );
+
+		return Matching.createSimplePointDescriptors( list, neighbors, matcher, new SquareDistance(), null, 2 );
+	}
+
+	/**
+	 * Random points on a grid of 1/64 px, so that differences of coordinates are exact. If other is not null, most of its
+	 * points are taken with a shift and some noise, and some points are added twice: their descriptors are identical, so
+	 * every descriptor of the other list has a tie of the best and second best match with them.
+	 */
+	protected static ArrayList< Particle > createPoints( final int n, final int numPoints, final Random rnd, final ArrayList< Particle > other )
+	{
+		final ArrayList< Particle > list = new ArrayList< Particle >();
+
+		if ( other != null )
+		{
+			for ( final Particle p : other )
+			{
+				if ( rnd.nextInt( 10 ) < 3 )
+					continue;
+
+				final double[] location = new double[ n ];
+
+				for ( int d = 0; d < n; ++d )
+					location[ d ] = p.getL()[ d ] + 16 + ( rnd.nextInt( 9 ) - 4 ) / 64.0;
+
+				list.add( new Particle( list.size(), location, 1 ) );
+
+				if ( rnd.nextInt( 10 ) == 0 )
+					list.add( new Particle( list.size(), location.clone(), 1 ) );
+			}
+		}
+
+		while ( list.size() < numPoints )
+		{
+			final double[] location = new double[ n ];
+
+			for ( int d = 0; d < n; ++d )
+				location[ d ] = rnd.nextInt( 100 * 64 ) / 64.0;
+
+			list.add( new Particle( list.size(), location, 1 ) );
+		}
+
+		return list;
+	}
+}
@@ -0,0 +1,73 @@
+package process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Compares the peaks of {@link ExtremumFinder} to {@link RecursiveGaussian#findPeaks(FloatAccess, int[], float, int)}
+ * on random data, with and without plateaus
+ */
+public class ExtremumFinderTest
+{
+	@Test
+	public void testSamePeaks2d()
+	{
+		final Random rnd = new Random( 42 );
+
+		for ( int i = 0; i < 50; ++i )
+			compare( new int[]{ 3 + rnd.nextInt( 40 ), 3 + rnd.nextInt( 40 ) }, rnd );
+	}
+
+	@Test
+	public void testSamePeaks3d()
+	{
+		final Random rnd = new Random( 42 );
+
+		for ( int i = 0; i < 50; ++i )
+			compare( new int[]{ 3 + rnd.nextInt( 20 ), 3 + rnd.nextInt( 20 ), 3 + rnd.nextInt( 20 ) }, rnd );
+	}
+
+	protected static void compare( final int[] dim, final Random rnd )
+	{
+		final int numPixels = (int)FloatImages.numPixels( dim );
+		final float[] data = new float[ numPixels ];
+
+		// few distinct values create plateaus and constant neighborhoods
+		final boolean plateaus = rnd.nextBoolean();
+
+		for ( int i = 0; i < numPixels; ++i )
+			data[ i ] = plateaus ? rnd.nextInt( 5 ) - 2 : (float)rnd.nextGaussian();
+
+		final float minPeakValue = plateaus ? rnd.nextInt( 3 ) : rnd.nextFloat();
+		final int numThreads = 1 + rnd.nextInt( 4 );
+
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > expected = RecursiveGaussian.findPeaks( new FloatAccess()
+		{
+			@Override
+			public float get( final int index ) { return data[ index ]; }
+		}, dim, minPeakValue, numThreads );
+
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks = ExtremumFinder.findPeaks( data, dim, minPeakValue, numThreads );
+
+		assertTrue( expected.size() > 0 );
+		assertEquals( expected.size(), peaks.size() );
+
+		// both are ordered by location
+		for ( int i = 0; i < expected.size(); ++i )
+		{
+			for ( int d = 0; d < dim.length; ++d )
+				assertEquals( expected.get( i ).getPosition( d ), peaks.get( i ).getPosition( d ) );
+
+			assertEquals( expected.get( i ).getPeakType(), peaks.get( i ).getPeakType() );
+			assertEquals( expected.get( i ).getValue().get(), peaks.get( i ).getValue().get(), 0 );
+		}
+	}
+}
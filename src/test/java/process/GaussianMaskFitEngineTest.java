@@ -0,0 +1,115 @@
+package process;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.view.Views;
+
+import org.junit.Test;
+
+/**
+ * Compares {@link GaussianMaskFitEngine} to {@link GaussianMaskFit} on synthetic blobs
+ */
+public class GaussianMaskFitEngineTest
+{
+	@Test
+	public void testSameLocation2d()
+	{
+		compare( new int[]{ 32, 32 }, new double[]{ 15.3, 16.7 }, new int[]{ 9, 9 }, new double[]{ 1.5, 1.5 } );
+	}
+
+	@Test
+	public void testSameLocation3d()
+	{
+		compare( new int[]{ 24, 24, 16 }, new double[]{ 11.6, 12.2, 7.4 }, new int[]{ 7, 7, 5 }, new double[]{ 1.5, 1.5, 1.0 } );
+	}
+
+	protected static void compare( final int[] dim, final double[] center, final int[] region, final double[] sigma )
+	{
+		final int n = dim.length;
+		final float[] data = createBlob( dim, center, sigma, new Random( 42 ) );
+
+		final int[] peak = new int[ n ];
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			peak[ d ] = (int)Math.round( center[ d ] );
+			min[ d ] = peak[ d ] - region[ d ] / 2;
+			max[ d ] = peak[ d ] + region[ d ] / 2;
+		}
+
+		for ( final int iterations : new int[]{ 1, 5, 10 } )
+		{
+			// the sequential fit, on a copy because it changes the image
+			final long[] size = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				size[ d ] = dim[ d ];
+
+			final ArrayImg< net.imglib2.type.numeric.real.FloatType, FloatArray > img = ArrayImgs.floats( data.clone(), size );
+			final double[] expected = new double[ n ];
+
+			for ( int d = 0; d < n; ++d )
+				expected[ d ] = peak[ d ];
+
+			GaussianMaskFit.gaussianMaskFit( Views.interval( img, min, max ), expected, sigma, iterations );
+
+			// the engine
+			final GaussianMaskFitEngine engine = new GaussianMaskFitEngine( n, region, sigma, iterations );
+			final double[] location = new double[ n ];
+
+			for ( int d = 0; d < n; ++d )
+				location[ d ] = peak[ d ];
+
+			engine.setPatch( new DifferenceOfGaussianPeak< FloatType >( peak, new FloatType( 1 ), SpecialPoint.MAX ), dim, data, null );
+			engine.fit( location );
+
+			for ( int d = 0; d < n; ++d )
+				assertEquals( "iterations=" + iterations + ", dimension " + d, expected[ d ], location[ d ], 1e-4 );
+		}
+	}
+
+	/**
+	 * A gaussian blob on a constant background with some noise
+	 */
+	protected static float[] createBlob( final int[] dim, final double[] center, final double[] sigma, final Random rnd )
+	{
+		final int n = dim.length;
+
+		int numPixels = 1;
+		for ( int d = 0; d < n; ++d )
+			numPixels *= dim[ d ];
+
+		final float[] data = new float[ numPixels ];
+		final int[] position = new int[ n ];
+
+		for ( int i = 0; i < numPixels; ++i )
+		{
+			for ( int d = 0, j = i; d < n; ++d )
+			{
+				position[ d ] = j % dim[ d ];
+				j /= dim[ d ];
+			}
+
+			double value = 1;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final double x = position[ d ] - center[ d ];
+				value *= Math.exp( -( x * x ) / ( 2 * sigma[ d ] * sigma[ d ] ) );
+			}
+
+			data[ i ] = (float)( 0.2 + value + 0.01 * rnd.nextGaussian() );
+		}
+
+		return data;
+	}
+}
@@ -0,0 +1,611 @@
+package process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
+
+import org.junit.Test;
+
+/**
+ * Checks the filters of {@link PeakTable}
+ */
+public class PeakTableTest
+{
+	@Test
+	public void testCompact()
+	{
+		final Random rnd = new Random( 42 );
+
+		for ( int t = 0; t < 100; ++t )
+		{
+			final int size = rnd.nextInt( 200 );
+			final PeakTable table = createTable( 3, size, rnd );
+
+			// invalid by flag and by type
+			final boolean[] keep = new boolean[ size ];
+
+			for ( int i = 0; i < size; ++i )
+			{
+				keep[ i ] = rnd.nextInt( 3 ) > 0;
+
+				if ( !keep[ i ] )
+				{
+					if ( rnd.nextBoolean() )
+						table.setValid( i, false );
+					else
+						table.type[ i ] = (byte)SpecialPoint.INVALID.ordinal();
+				}
+			}
+
+			final PeakTable original = copy( table );
+			final PeakTable copy = table.copyValid();
+			final int numValid = copy.size();
+
+			assertEquals( size - numValid, table.compact() );
+			assertEquals( numValid, table.size() );
+
+			// the valid peaks in table order, in place and as a copy
+			int j = 0;
+
+			for ( int i = 0; i < size; ++i )
+			{
+				if ( !keep[ i ] )
+					continue;
+
+				assertEquals( i, id( table, j ) );
+				assertEquals( i, id( copy, j ) );
+				assertTrue( table.isValid( j ) );
+				assertTrue( copy.isValid( j ) );
+				assertSamePeak( original, i, table, j );
+				assertSamePeak( original, i, copy, j );
+				++j;
+			}
+
+			assertEquals( numValid, j );
+
+			// nothing left to remove, and the table can grow again
+			assertEquals( 0, table.compact() );
+			add( table, new int[ 3 ], 1 );
+			assertEquals( numValid + 1, table.size() );
+			assertTrue( table.isValid( numValid ) );
+		}
+	}
+
+	@Test
+	public void testReorder()
+	{
+		final Random rnd = new Random( 42 );
+
+		for ( int t = 0; t < 100; ++t )
+		{
+			final int size = rnd.nextInt( 200 );
+			final PeakTable table = createTable( 2, size, rnd );
+
+			for ( int i = 0; i < size; ++i )
+				table.setValid( i, rnd.nextBoolean() );
+
+			final PeakTable original = copy( table );
+
+			// a random subset in random order
+			final int[] order = new int[ size == 0 ? 0 : rnd.nextInt( size + 1 ) ];
+			final int[] permutation = permutation( size, rnd );
+
+			for ( int k = 0; k < order.length; ++k )
+				order[ k ] = permutation[ k ];
+
+			table.reorder( order );
+			assertEquals( order.length, table.size() );
+
+			for ( int k = 0; k < order.length; ++k )
+			{
+				assertEquals( order[ k ], id( table, k ) );
+				assertEquals( original.isValid( order[ k ] ), table.isValid( k ) );
+				assertSamePeak( original, order[ k ], table, k );
+			}
+		}
+	}
+
+	@Test
+	public void testKeepBrightest()
+	{
+		final Random rnd = new Random( 42 );
+
+		for ( int t = 0; t < 200; ++t )
+		{
+			final int size = rnd.nextInt( 300 );
+
+			// few values for many ties, minima and maxima
+			final int numValues = 1 + rnd.nextInt( 20 );
+			final PeakTable table = new PeakTable( 2, 0 );
+			final float[] values = new float[ size ];
+
+			for ( int i = 0; i < size; ++i )
+			{
+				values[ i ] = ( rnd.nextBoolean() ? 1 : -1 ) * rnd.nextInt( numValues ) / 4f;
+				add( table, new int[]{ rnd.nextInt( 100 ), rnd.nextInt( 100 ) }, values[ i ] );
+			}
+
+			// the full sort: brightest first, equal values in reverse table order
+			final Integer[] sorted = new Integer[ size ];
+			for ( int i = 0; i < size; ++i )
+				sorted[ i ] = i;
+
+			Arrays.sort( sorted, new Comparator< Integer >()
+			{
+				@Override
+				public int compare( final Integer o1, final Integer o2 )
+				{
+					final int c = Float.compare( Math.abs( values[ o2 ] ), Math.abs( values[ o1 ] ) );
+					return c != 0 ? c : o2 - o1;
+				}
+			});
+
+			final int numPeaks = rnd.nextInt( size + 10 ) - 5;
+			table.keepBrightest( numPeaks );
+
+			assertEquals( Math.max( 0, Math.min( numPeaks, size ) ), table.size() );
+
+			for ( int k = 0; k < table.size(); ++k )
+			{
+				assertEquals( sorted[ k ].intValue(), id( table, k ) );
+				assertEquals( values[ sorted[ k ] ], table.getValue( k ), 0 );
+			}
+		}
+	}
+
+	@Test
+	public void testSortByLocation()
+	{
+		final Random rnd = new Random( 42 );
+
+		for ( int t = 0; t < 100; ++t )
+		{
+			final int n = 2 + rnd.nextInt( 2 );
+			final int size = rnd.nextInt( 300 );
+
+			// small coordinates for peaks at the same location
+			final PeakTable table = new PeakTable( n, 0 );
+
+			for ( int i = 0; i < size; ++i )
+			{
+				final int[] position = new int[ n ];
+				for ( int d = 0; d < n; ++d )
+					position[ d ] = rnd.nextInt( 6 ) - 2;
+
+				add( table, position, rnd.nextFloat() );
+			}
+
+			table.sortByLocation();
+			assertEquals( size, table.size() );
+
+			final boolean[] seen = new boolean[ size ];
+
+			for ( int k = 0; k < size; ++k )
+			{
+				seen[ id( table, k ) ] = true;
+
+				if ( k == 0 )
+					continue;
+
+				// ordered by z, then y, then x, peaks at the same location keep their order
+				int c = 0;
+
+				for ( int d = n - 1; d >= 0 && c == 0; --d )
+					c = Integer.compare( table.getPosition( k - 1, d ), table.getPosition( k, d ) );
+
+				assertTrue( c < 0 || ( c == 0 && id( table, k - 1 ) < id( table, k ) ) );
+			}
+
+			for ( final boolean s : seen )
+				assertTrue( s );
+		}
+	}
+
+	@Test
+	public void testSuppressNonMaxima()
+	{
+		final Random rnd = new Random( 42 );
+
+		for ( int t = 0; t < 300; ++t )
+		{
+			final int n = 2 + rnd.nextInt( 2 );
+			final int size = rnd.nextInt( 300 );
+
+			// integer and arbitrary radii, so that distances hit the radius and the cell borders exactly
+			final double radius = rnd.nextBoolean() ? 1 + rnd.nextInt( 4 ) + 0.5 * rnd.nextInt( 2 ) : 0.5 + 4 * rnd.nextDouble();
+
+			// isotropic, anisotropic (z-stretching) or none
+			final double[] scale;
+
+			if ( rnd.nextInt( 3 ) == 0 )
+			{
+				scale = null;
+			}
+			else
+			{
+				scale = new double[ n ];
+
+				for ( int d = 0; d < n; ++d )
+					scale[ d ] = rnd.nextBoolean() ? 1 : 0.5 + 0.25 * rnd.nextInt( 12 );
+			}
+
+			// a small volume around the origin with negative coordinates and subpixel offsets of 1/4 px,
+			// few values for many ties
+			final PeakTable table = new PeakTable( n, 0 );
+			final int extent = 2 + rnd.nextInt( 20 );
+			final int numValues = 1 + rnd.nextInt( 10 );
+
+			for ( int i = 0; i < size; ++i )
+			{
+				final int[] position = new int[ n ];
+				final float[] offset = new float[ n ];
+
+				for ( int d = 0; d < n; ++d )
+				{
+					position[ d ] = rnd.nextInt( 2 * extent + 1 ) - extent;
+					offset[ d ] = ( rnd.nextInt( 4 ) - 2 ) / 4f;
+				}
+
+				final float value = ( rnd.nextBoolean() ? 1 : -1 ) * ( 1 + rnd.nextInt( numValues ) );
+				table.add( position, offset, value < 0 ? SpecialPoint.MIN : SpecialPoint.MAX, value );
+			}
+
+			final PeakTable original = copy( table );
+			final boolean[] suppressed = suppressNonMaxima( original, radius, scale );
+
+			int numSuppressed = 0;
+			for ( final boolean s : suppressed )
+				if ( s )
+					++numSuppressed;
+
+			assertEquals( size < 2 ? 0 : numSuppressed, table.suppressNonMaxima( radius, scale ) );
+			assertEquals( size < 2 ? size : size - numSuppressed, table.size() );
+
+			// the surviving peaks in table order
+			for ( int i = 0, j = 0; i < size && size >= 2; ++i )
+			{
+				if ( suppressed[ i ] )
+					continue;
+
+				assertTrue( table.isValid( j ) );
+				assertSamePeak( original, i, table, j++ );
+			}
+
+			// nothing left to suppress
+			assertEquals( 0, table.suppressNonMaxima( radius, scale ) );
+		}
+
+		// no radius
+		final PeakTable table = new PeakTable( 2, 0 );
+		add( table, new int[]{ 0, 0 }, 1 );
+		add( table, new int[]{ 0, 0 }, 2 );
+
+		assertEquals( 0, table.suppressNonMaxima( 0, null ) );
+		assertEquals( 2, table.size() );
+		assertEquals( 1, table.suppressNonMaxima( 0.1, null ) );
+		assertEquals( 1, id( table, 0 ) );
+	}
+
+	@Test
+	public void testUniformKeepsSparseCells()
+	{
+		// a dense bright cluster in one corner and a few dim peaks everywhere else
+		final Random rnd = new Random( 42 );
+		final PeakTable table = new PeakTable( 2, 0 );
+
+		for ( int i = 0; i < 1000; ++i )
+			table.add( new int[]{ rnd.nextInt( 20 ), rnd.nextInt( 20 ) }, new float[ 2 ], SpecialPoint.MAX, 100 + i );
+
+		for ( int y = 0; y < 4; ++y )
+			for ( int x = 0; x < 4; ++x )
+				if ( x + y > 0 )
+					table.add( new int[]{ x * 25 + 12, y * 25 + 12 }, new float[ 2 ], SpecialPoint.MAX, 1 + x + 4 * y );
+
+		// 16^2 cells, more than the budget
+		table.keepBrightestUniform( 50, 16 );
+		assertEquals( 50, table.size() );
+
+		// all 15 sparse peaks are kept, the rest of the budget goes to the cluster
+		int numSparse = 0;
+
+		for ( int i = 0; i < table.size(); ++i )
+			if ( table.getValue( i ) < 100 )
+				++numSparse;
+
+		assertEquals( 15, numSparse );
+	}
+
+	@Test
+	public void testUniformMoreCellsThanBudget()
+	{
+		// more cells than the budget, which used to give every cell a quota of 0
+		final Random rnd = new Random( 42 );
+		final int[][] pos = new int[ 2000 ][];
+		final float[] values = new float[ 2000 ];
+		final PeakTable table = new PeakTable( 3, 0 );
+
+		for ( int i = 0; i < pos.length; ++i )
+		{
+			pos[ i ] = new int[]{ rnd.nextInt( 100 ), rnd.nextInt( 100 ), rnd.nextInt( 100 ) };
+			values[ i ] = rnd.nextFloat();
+			add( table, pos[ i ], values[ i ] );
+		}
+
+		table.keepBrightestUniform( 1000, 20 );
+		assertEquals( 1000, table.size() );
+
+		// the cells are reduced to 12^3 <= 2000 peaks
+		check( pos, values, table, 12, 1000 );
+	}
+
+	@Test
+	public void testUniformRandom()
+	{
+		final Random rnd = new Random( 42 );
+
+		for ( int t = 0; t < 200; ++t )
+		{
+			final int n = 2 + rnd.nextInt( 2 );
+			final int size = 1 + rnd.nextInt( 500 );
+			final int[][] pos = new int[ size ][ n ];
+			final float[] values = new float[ size ];
+			final PeakTable table = new PeakTable( n, 0 );
+
+			// clustered positions so that the cells differ a lot in the number of peaks, few values for ties
+			for ( int i = 0; i < size; ++i )
+			{
+				for ( int d = 0; d < n; ++d )
+					pos[ i ][ d ] = rnd.nextBoolean() ? rnd.nextInt( 10 ) : rnd.nextInt( 100 );
+
+				values[ i ] = ( rnd.nextBoolean() ? 1 : -1 ) * rnd.nextInt( 20 );
+				add( table, pos[ i ], values[ i ] );
+			}
+
+			final int numPeaks = rnd.nextInt( size + 10 );
+			int cells = 1 + rnd.nextInt( 6 );
+
+			table.keepBrightestUniform( numPeaks, cells );
+
+			while ( Math.pow( cells, n ) > size )
+				--cells;
+
+			if ( numPeaks >= size )
+				assertEquals( size, table.size() );
+			else
+				check( pos, values, table, cells, numPeaks );
+		}
+	}
+
+	@Test
+	public void testUniformHugeNumberOfCells()
+	{
+		final PeakTable table = new PeakTable( 3, 0 );
+
+		for ( int i = 0; i < 100; ++i )
+			table.add( new int[]{ i, 2 * i, 3 * i }, new float[ 3 ], SpecialPoint.MAX, i );
+
+		table.keepBrightestUniform( 10, Integer.MAX_VALUE );
+		assertEquals( 10, table.size() );
+	}
+
+	/**
+	 * Checks that the kept peaks are the brightest of their cells, in table order, and that the budget is
+	 * shared as evenly as possible: a cell that did not keep all its peaks keeps at least as many as every other
+	 * cell minus one, and if it keeps one less its brightest peak is not brighter than theirs
+	 */
+	protected static void check( final int[][] pos, final float[] values, final PeakTable table, final int cells, final int numPeaks )
+	{
+		final int size = pos.length;
+		final int n = pos[ 0 ].length;
+
+		assertEquals( numPeaks, table.size() );
+
+		// the offset tells the index in the original list, the kept peaks are in table order
+		final boolean[] kept = new boolean[ size ];
+		int last = -1;
+
+		for ( int j = 0; j < table.size(); ++j )
+		{
+			final int i = id( table, j );
+
+			assertTrue( i > last );
+			kept[ i ] = true;
+			last = i;
+		}
+
+		// the cells
+		final int[] min = new int[ n ];
+		final int[] max = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = Integer.MAX_VALUE;
+			max[ d ] = Integer.MIN_VALUE;
+
+			for ( int i = 0; i < size; ++i )
+			{
+				min[ d ] = Math.min( min[ d ], pos[ i ][ d ] );
+				max[ d ] = Math.max( max[ d ], pos[ i ][ d ] );
+			}
+		}
+
+		final int numCells = (int)Math.pow( cells, n );
+		final int[] count = new int[ numCells ];
+		final int[] numKept = new int[ numCells ];
+		final float[] brightest = new float[ numCells ];
+		final float[] darkestKept = new float[ numCells ];
+		final float[] brightestDropped = new float[ numCells ];
+
+		for ( int c = 0; c < numCells; ++c )
+		{
+			brightest[ c ] = brightestDropped[ c ] = -1;
+			darkestKept[ c ] = Float.MAX_VALUE;
+		}
+
+		for ( int i = 0; i < size; ++i )
+		{
+			int c = 0;
+
+			for ( int d = n - 1; d >= 0; --d )
+				c = c * cells + (int)( (long)( pos[ i ][ d ] - min[ d ] ) * cells / ( max[ d ] - min[ d ] + 1 ) );
+
+			++count[ c ];
+
+			final float v = Math.abs( values[ i ] );
+			brightest[ c ] = Math.max( brightest[ c ], v );
+
+			if ( kept[ i ] )
+			{
+				++numKept[ c ];
+				darkestKept[ c ] = Math.min( darkestKept[ c ], v );
+			}
+			else
+			{
+				brightestDropped[ c ] = Math.max( brightestDropped[ c ], v );
+			}
+		}
+
+		for ( int a = 0; a < numCells; ++a )
+		{
+			// the brightest of the cell
+			assertTrue( brightestDropped[ a ] <= darkestKept[ a ] );
+
+			if ( numKept[ a ] == count[ a ] )
+				continue;
+
+			for ( int b = 0; b < numCells; ++b )
+			{
+				assertTrue( numKept[ a ] >= numKept[ b ] - 1 );
+
+				if ( numKept[ a ] == numKept[ b ] - 1 )
+					assertTrue( brightest[ a ] <= brightest[ b ] );
+			}
+		}
+	}
+
+	/**
+	 * O(n^2) reference of {@link PeakTable#suppressNonMaxima(double, double[])}: a peak is suppressed if another peak
+	 * within the radius has a higher |value|, or the same |value| and a lower index
+	 */
+	protected static boolean[] suppressNonMaxima( final PeakTable table, final double radius, final double[] scale )
+	{
+		final int n = table.getNumDimensions();
+		final boolean[] suppressed = new boolean[ table.size() ];
+
+		for ( int i = 0; i < table.size(); ++i )
+		{
+			final float vi = Math.abs( table.getValue( i ) );
+
+			for ( int j = 0; j < table.size() && !suppressed[ i ]; ++j )
+			{
+				final float vj = Math.abs( table.getValue( j ) );
+
+				if ( j == i || vj < vi || ( vj == vi && j > i ) )
+					continue;
+
+				double dist = 0;
+
+				for ( int d = 0; d < n; ++d )
+				{
+					final double s = scale == null ? 1 : scale[ d ];
+					final double diff = table.getSubPixelPosition( i, d ) * s - table.getSubPixelPosition( j, d ) * s;
+					dist += diff * diff;
+				}
+
+				suppressed[ i ] = dist <= radius * radius;
+			}
+		}
+
+		return suppressed;
+	}
+
+	/**
+	 * A table of random peaks that remember their index, see {@link #add(PeakTable, int[], float)}
+	 */
+	protected static PeakTable createTable( final int n, final int size, final Random rnd )
+	{
+		final PeakTable table = new PeakTable( n, 0 );
+
+		for ( int i = 0; i < size; ++i )
+		{
+			final int[] position = new int[ n ];
+			for ( int d = 0; d < n; ++d )
+				position[ d ] = rnd.nextInt( 1000 );
+
+			add( table, position, (float)rnd.nextGaussian() );
+		}
+
+		return table;
+	}
+
+	/**
+	 * @return a copy of all peaks, including the invalid ones
+	 */
+	protected static PeakTable copy( final PeakTable table )
+	{
+		final PeakTable copy = new PeakTable( table.getNumDimensions(), table.size() );
+		final int[] position = new int[ table.getNumDimensions() ];
+		final float[] offset = new float[ table.getNumDimensions() ];
+
+		for ( int i = 0; i < table.size(); ++i )
+		{
+			for ( int d = 0; d < position.length; ++d )
+			{
+				position[ d ] = table.getPosition( i, d );
+				offset[ d ] = table.getSubPixelPositionOffset( i, d );
+			}
+
+			copy.add( position, offset, table.getPeakType( i ), table.getValue( i ) );
+			copy.setValid( i, table.valid.get( i ) );
+		}
+
+		return copy;
+	}
+
+	protected static void assertSamePeak( final PeakTable expected, final int i, final PeakTable table, final int j )
+	{
+		for ( int d = 0; d < table.getNumDimensions(); ++d )
+		{
+			assertEquals( expected.getPosition( i, d ), table.getPosition( j, d ) );
+			assertEquals( expected.getSubPixelPositionOffset( i, d ), table.getSubPixelPositionOffset( j, d ), 0 );
+		}
+
+		assertEquals( expected.getValue( i ), table.getValue( j ), 0 );
+		assertEquals( expected.getPeakType( i ), table.getPeakType( j ) );
+	}
+
+	protected static int[] permutation( final int size, final Random rnd )
+	{
+		final int[] permutation = new int[ size ];
+
+		for ( int i = 0; i < size; ++i )
+		{
+			final int j = rnd.nextInt( i + 1 );
+			permutation[ i ] = permutation[ j ];
+			permutation[ j ] = i;
+		}
+
+		return permutation;
+	}
+
+	/**
+	 * Adds a peak that remembers its index in the offset of the first dimension
+	 */
+	protected static void add( final PeakTable table, final int[] position, final float value )
+	{
+		final float[] offset = new float[ position.length ];
+		offset[ 0 ] = table.size() / 4096f;
+
+		table.add( position, offset, value < 0 ? SpecialPoint.MIN : SpecialPoint.MAX, value );
+	}
+
+	protected static int id( final PeakTable table, final int i )
+	{
+		return Math.round( table.getSubPixelPositionOffset( i, 0 ) * 4096 );
+	}
+}
@@ -0,0 +1,114 @@
+package process;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.algorithm.scalespace.SubpixelLocalization;
+import mpicbg.imglib.container.array.ArrayContainerFactory;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+/**
+ * Runtime of {@link QuadraticLocalization} compared to SubpixelLocalization, not a unit test
+ */
+public class QuadraticLocalizationBenchmark
+{
+	/**
+	 * Compares the runtime and the results to SubpixelLocalization on a synthetic 3d DoG of random blobs
+	 *
+	 * usage: QuadraticLocalizationBenchmark [size] [numBlobs] [numThreads] [repetitions]
+	 */
+	public static void main( final String[] args )
+	{
+		final int size = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 256;
+		final int numBlobs = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 20000;
+		final int numThreads = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : Runtime.getRuntime().availableProcessors();
+		final int repetitions = args.length > 3 ? Integer.parseInt( args[ 3 ] ) : 10;
+
+		final int[] dim = new int[]{ size, size, size / 4 };
+		final Image< FloatType > dogImage = new ImageFactory< FloatType >( new FloatType(), new ArrayContainerFactory() ).createImage( dim );
+		final float[] data = FloatImages.getArray( dogImage );
+
+		// negative gaussian blobs (DoG minima) at random subpixel locations
+		final Random rnd = new Random( 1 );
+		final int r = 4;
+
+		for ( int b = 0; b < numBlobs; ++b )
+		{
+			final double cx = r + rnd.nextDouble() * ( dim[ 0 ] - 2 * r );
+			final double cy = r + rnd.nextDouble() * ( dim[ 1 ] - 2 * r );
+			final double cz = r + rnd.nextDouble() * ( dim[ 2 ] - 2 * r );
+
+			for ( int z = (int)cz - r; z <= (int)cz + r; ++z )
+				for ( int y = (int)cy - r; y <= (int)cy + r; ++y )
+					for ( int x = (int)cx - r; x <= (int)cx + r; ++x )
+					{
+						final double d2 = ( x - cx ) * ( x - cx ) + ( y - cy ) * ( y - cy ) + ( z - cz ) * ( z - cz );
+						data[ x + y * dim[ 0 ] + z * dim[ 0 ] * dim[ 1 ] ] -= (float)Math.exp( -d2 / 4 );
+					}
+		}
+
+		final FloatAccess dog = new FloatAccess()
+		{
+			@Override
+			public float get( final int index ) { return data[ index ]; }
+		};
+
+		final PeakTable detections = PeakTable.fromPeaks( RecursiveGaussian.findPeaks( dogImage, 0.1f, numThreads ), 3 );
+		System.out.println( "DoG " + dim[ 0 ] + "x" + dim[ 1 ] + "x" + dim[ 2 ] + ", " + detections.size() + " peaks, " + numThreads + " threads" );
+
+		long timeSubpixel = Long.MAX_VALUE, timeQuadratic = Long.MAX_VALUE;
+		ArrayList< DifferenceOfGaussianPeak< FloatType > > subpixel = null;
+		PeakTable quadratic = null;
+
+		// the first repetitions warm up the JIT, the minimum is reported
+		for ( int rep = 0; rep < repetitions; ++rep )
+		{
+			subpixel = detections.toPeaks();
+
+			long t = System.nanoTime();
+			final SubpixelLocalization< FloatType > spl = new SubpixelLocalization< FloatType >( dogImage, subpixel );
+			spl.setAllowMaximaTolerance( true );
+			spl.setMaxNumMoves( 10 );
+			spl.setNumThreads( numThreads );
+			spl.process();
+			timeSubpixel = Math.min( timeSubpixel, System.nanoTime() - t );
+
+			quadratic = detections.copyValid();
+
+			t = System.nanoTime();
+			QuadraticLocalization.localize( dog, dim, quadratic, 10, true, numThreads );
+			timeQuadratic = Math.min( timeQuadratic, System.nanoTime() - t );
+		}
+
+		double maxOffsetError = 0, maxValueError = 0;
+		int differentValidity = 0;
+
+		for ( int i = 0; i < quadratic.size(); ++i )
+		{
+			final DifferenceOfGaussianPeak< FloatType > p = subpixel.get( i );
+
+			if ( p.isValid() != quadratic.isValid( i ) )
+			{
+				++differentValidity;
+				continue;
+			}
+
+			if ( !p.isValid() )
+				continue;
+
+			for ( int d = 0; d < 3; ++d )
+				maxOffsetError = Math.max( maxOffsetError, Math.abs( p.getSubPixelPosition( d ) - quadratic.getSubPixelPosition( i, d ) ) );
+
+			maxValueError = Math.max( maxValueError, Math.abs( p.getValue().get() - quadratic.getValue( i ) ) );
+		}
+
+		System.out.println( "SubpixelLocalization:  " + ( timeSubpixel / 1000000.0 ) + " ms" );
+		System.out.println( "QuadraticLocalization: " + ( timeQuadratic / 1000000.0 ) + " ms (" + ( (double)timeSubpixel / timeQuadratic ) + "x)" );
+		System.out.println( "max location difference: " + maxOffsetError + " px, max value difference: " + maxValueError + ", different validity: " + differentValidity );
+
+		dogImage.close();
+	}
+}
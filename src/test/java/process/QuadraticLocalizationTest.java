@@ -0,0 +1,128 @@
+package process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.algorithm.scalespace.SubpixelLocalization;
+import mpicbg.imglib.container.array.ArrayContainerFactory;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Compares the 2d and 3d fits of {@link QuadraticLocalization} to SubpixelLocalization on synthetic DoG peaks
+ */
+public class QuadraticLocalizationTest
+{
+	@Test
+	public void testSameAsSubpixelLocalization2d()
+	{
+		compare( new int[]{ 128, 96 }, 60 );
+	}
+
+	@Test
+	public void testSameAsSubpixelLocalization3d()
+	{
+		compare( new int[]{ 64, 48, 32 }, 60 );
+	}
+
+	protected static void compare( final int[] dim, final int numBlobs )
+	{
+		final int n = dim.length;
+		final Image< FloatType > dogImage = createBlobs( dim, numBlobs, new Random( 42 ) );
+		final float[] data = FloatImages.getArray( dogImage );
+
+		final FloatAccess dog = new FloatAccess()
+		{
+			@Override
+			public float get( final int index ) { return data[ index ]; }
+		};
+
+		final PeakTable detections = PeakTable.fromPeaks( RecursiveGaussian.findPeaks( dogImage, 0.1f, 1 ), n );
+		assertTrue( detections.size() > numBlobs / 2 );
+
+		for ( final boolean allowMaximaTolerance : new boolean[]{ false, true } )
+		{
+			final ArrayList< DifferenceOfGaussianPeak< FloatType > > expected = detections.toPeaks();
+			final SubpixelLocalization< FloatType > spl = new SubpixelLocalization< FloatType >( dogImage, expected );
+			spl.setAllowMaximaTolerance( allowMaximaTolerance );
+			spl.setMaxNumMoves( 10 );
+			spl.setNumThreads( 1 );
+			assertTrue( spl.process() );
+
+			final PeakTable quadratic = detections.copyValid();
+			QuadraticLocalization.localize( dog, dim, quadratic, 10, allowMaximaTolerance, 2 );
+
+			assertEquals( expected.size(), quadratic.size() );
+
+			for ( int i = 0; i < quadratic.size(); ++i )
+			{
+				final DifferenceOfGaussianPeak< FloatType > p = expected.get( i );
+
+				assertEquals( "peak " + i, p.isValid(), quadratic.isValid( i ) );
+
+				if ( !p.isValid() )
+					continue;
+
+				for ( int d = 0; d < n; ++d )
+					assertEquals( "peak " + i, p.getSubPixelPosition( d ), quadratic.getSubPixelPosition( i, d ), 1e-4 );
+
+				assertEquals( "peak " + i, p.getValue().get(), quadratic.getValue( i ), 1e-5 );
+			}
+		}
+
+		dogImage.close();
+	}
+
+	/**
+	 * Positive and negative gaussian blobs at random subpixel locations away from the border
+	 */
+	protected static Image< FloatType > createBlobs( final int[] dim, final int numBlobs, final Random rnd )
+	{
+		final int n = dim.length;
+		final Image< FloatType > img = new ImageFactory< FloatType >( new FloatType(), new ArrayContainerFactory() ).createImage( dim );
+		final float[] data = FloatImages.getArray( img );
+
+		final int r = 4;
+		final int margin = r + 2;
+		final double[] center = new double[ n ];
+		final int[] position = new int[ n ];
+
+		for ( int b = 0; b < numBlobs; ++b )
+		{
+			for ( int d = 0; d < n; ++d )
+				center[ d ] = margin + rnd.nextDouble() * ( dim[ d ] - 2 * margin );
+
+			final float sign = rnd.nextBoolean() ? 1 : -1;
+
+			// all pixels of the (2r+1)^n box around the center
+			final int boxSize = (int)Math.pow( 2 * r + 1, n );
+
+			for ( int k = 0; k < boxSize; ++k )
+			{
+				double d2 = 0;
+				int index = 0;
+
+				for ( int d = 0, j = k, stride = 1; d < n; ++d )
+				{
+					position[ d ] = (int)center[ d ] - r + j % ( 2 * r + 1 );
+					j /= 2 * r + 1;
+
+					d2 += ( position[ d ] - center[ d ] ) * ( position[ d ] - center[ d ] );
+					index += position[ d ] * stride;
+					stride *= dim[ d ];
+				}
+
+				data[ index ] += sign * (float)Math.exp( -d2 / 4 );
+			}
+		}
+
+		return img;
+	}
+}
@@ -0,0 +1,257 @@
+package process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianReal1;
+import mpicbg.imglib.algorithm.scalespace.SubpixelLocalization;
+import mpicbg.imglib.container.array.ArrayContainerFactory;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.outofbounds.OutOfBoundsStrategyMirrorFactory;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Compares the peaks of the recursive gaussian DoG (dogEngine == 1) to DifferenceOfGaussianReal1 (dogEngine == 0)
+ * on synthetic beads, within the tolerance documented in {@link RecursiveGaussian}
+ */
+public class RecursiveGaussianTest
+{
+	@Test
+	public void testSamePeaksAsDifferenceOfGaussian2d()
+	{
+		compare( new int[]{ 160, 128 }, 1.8, 1.4 );
+	}
+
+	@Test
+	public void testSamePeaksAsDifferenceOfGaussian3d()
+	{
+		compare( new int[]{ 64, 56, 48 }, 1.8, 1.4 );
+	}
+
+	protected static void compare( final int[] dim, final double sigma, final double k )
+	{
+		final int n = dim.length;
+		final double[] sigma1 = new double[ n ];
+		final double[] sigma2 = new double[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			sigma1[ d ] = sigma;
+			sigma2[ d ] = sigma * k;
+		}
+
+		// beads away from the border, far enough apart not to influence each others peak
+		final int margin = (int)Math.ceil( 3 * sigma * k );
+		final ArrayList< double[] > bright = new ArrayList< double[] >();
+		final ArrayList< double[] > dark = new ArrayList< double[] >();
+		final Image< FloatType > img = createBeads( dim, margin, 5 * sigma * k, bright, dark, new Random( 42 ) );
+
+		final float K = (float)( 1.0 / ( k - 1.0 ) );
+		// above the rings of opposite sign around the beads (~13% of the bead peak), see RecursiveGaussian
+		final float threshold = 0.05f;
+
+		// dogEngine == 0
+		final DifferenceOfGaussianReal1< FloatType > dog = new DifferenceOfGaussianReal1< FloatType >(
+				img, new OutOfBoundsStrategyMirrorFactory< FloatType >(), sigma1, sigma2, threshold, K );
+		dog.setKeepDoGImage( true );
+		dog.setNumThreads( 2 );
+		assertTrue( dog.checkInput() && dog.process() );
+
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > expected = localize( dog.getDoGImage(), dog.getPeaks() );
+
+		// dogEngine == 1
+		final Image< FloatType > dogImage = RecursiveGaussian.computeDoG( img, sigma1, sigma2, K, 2 );
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks = localize( dogImage, RecursiveGaussian.findPeaks( dogImage, threshold, 2 ) );
+
+		// (G(sigma2) - G(sigma1)) * K: bright beads are minima, dark beads are maxima in both
+		for ( final double[] center : bright )
+		{
+			assertEquals( SpecialPoint.MIN, closest( expected, center, 0.5 ).getPeakType() );
+			assertEquals( SpecialPoint.MIN, closest( peaks, center, 0.5 ).getPeakType() );
+		}
+
+		for ( final double[] center : dark )
+		{
+			assertEquals( SpecialPoint.MAX, closest( expected, center, 0.5 ).getPeakType() );
+			assertEquals( SpecialPoint.MAX, closest( peaks, center, 0.5 ).getPeakType() );
+		}
+
+		// the same peaks away from the border and the threshold, of the same type, within 0.05 px
+		final int numSame = assertContained( expected, peaks, dim, margin, threshold );
+		assertEquals( numSame, assertContained( peaks, expected, dim, margin, threshold ) );
+		assertEquals( bright.size() + dark.size(), numSame );
+
+		ImagePool.release( dogImage );
+		dog.getDoGImage().close();
+		img.close();
+	}
+
+	/**
+	 * Subpixel localization as in DetectionSegmentation (localization == 1), the invalid peaks are removed
+	 */
+	protected static ArrayList< DifferenceOfGaussianPeak< FloatType > > localize( final Image< FloatType > dogImage, final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks )
+	{
+		final SubpixelLocalization< FloatType > spl = new SubpixelLocalization< FloatType >( dogImage, peaks );
+		spl.setAllowMaximaTolerance( true );
+		spl.setMaxNumMoves( 10 );
+		spl.setNumThreads( 1 );
+		assertTrue( spl.checkInput() && spl.process() );
+
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > valid = new ArrayList< DifferenceOfGaussianPeak< FloatType > >();
+
+		for ( final DifferenceOfGaussianPeak< FloatType > peak : peaks )
+			if ( peak.isValid() )
+				valid.add( peak );
+
+		return valid;
+	}
+
+	/**
+	 * Asserts that every peak of a that is away from the border and not within 25% of the threshold has a peak
+	 * of the same type in b within 0.05 px, with a DoG value within 25%
+	 *
+	 * @return how many peaks were compared
+	 */
+	protected static int assertContained( final ArrayList< DifferenceOfGaussianPeak< FloatType > > a, final ArrayList< DifferenceOfGaussianPeak< FloatType > > b,
+			final int[] dim, final int margin, final float threshold )
+	{
+		int numCompared = 0;
+
+		for ( final DifferenceOfGaussianPeak< FloatType > peak : a )
+		{
+			if ( Math.abs( peak.getValue().get() ) < 1.34f * threshold )
+				continue;
+
+			final double[] p = new double[ dim.length ];
+			boolean inside = true;
+
+			for ( int d = 0; d < dim.length; ++d )
+			{
+				p[ d ] = peak.getSubPixelPosition( d );
+				inside &= p[ d ] >= margin && p[ d ] < dim[ d ] - margin;
+			}
+
+			if ( !inside )
+				continue;
+
+			final DifferenceOfGaussianPeak< FloatType > other = closest( b, p, 0.05 );
+			assertEquals( peak.getPeakType(), other.getPeakType() );
+
+			final double ratio = other.getValue().get() / peak.getValue().get();
+			assertTrue( "DoG value ratio " + ratio, ratio >= 0.75 && ratio <= 1 / 0.75 );
+			++numCompared;
+		}
+
+		return numCompared;
+	}
+
+	/**
+	 * @return the peak closest to the location, asserts that it is within maxDistance
+	 */
+	protected static DifferenceOfGaussianPeak< FloatType > closest( final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks, final double[] location, final double maxDistance )
+	{
+		DifferenceOfGaussianPeak< FloatType > best = null;
+		double bestDistance = Double.MAX_VALUE;
+
+		for ( final DifferenceOfGaussianPeak< FloatType > peak : peaks )
+		{
+			double distance = 0;
+
+			for ( int d = 0; d < location.length; ++d )
+				distance += ( peak.getSubPixelPosition( d ) - location[ d ] ) * ( peak.getSubPixelPosition( d ) - location[ d ] );
+
+			if ( distance < bestDistance )
+			{
+				bestDistance = distance;
+				best = peak;
+			}
+		}
+
+		assertTrue( "no peak within " + maxDistance + " px, closest " + Math.sqrt( bestDistance ), Math.sqrt( bestDistance ) <= maxDistance );
+
+		return best;
+	}
+
+	/**
+	 * Bright and dark gaussian beads at random subpixel locations on a slightly noisy background
+	 */
+	protected static Image< FloatType > createBeads( final int[] dim, final int margin, final double minDistance,
+			final ArrayList< double[] > bright, final ArrayList< double[] > dark, final Random rnd )
+	{
+		final int n = dim.length;
+		final Image< FloatType > img = new ImageFactory< FloatType >( new FloatType(), new ArrayContainerFactory() ).createImage( dim );
+		final float[] data = FloatImages.getArray( img );
+
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = 0.5f + 0.002f * rnd.nextFloat();
+
+		final ArrayList< double[] > centers = new ArrayList< double[] >();
+
+		for ( int attempt = 0; attempt < 1000 && centers.size() < 20; ++attempt )
+		{
+			final double[] center = new double[ n ];
+
+			for ( int d = 0; d < n; ++d )
+				center[ d ] = margin + rnd.nextDouble() * ( dim[ d ] - 2 * margin - 1 );
+
+			boolean isolated = true;
+
+			for ( final double[] other : centers )
+			{
+				double distance = 0;
+
+				for ( int d = 0; d < n; ++d )
+					distance += ( center[ d ] - other[ d ] ) * ( center[ d ] - other[ d ] );
+
+				isolated &= Math.sqrt( distance ) >= minDistance;
+			}
+
+			if ( isolated )
+				centers.add( center );
+		}
+
+		final int[] position = new int[ n ];
+
+		for ( final double[] center : centers )
+		{
+			final double beadSigma = 1.2 + rnd.nextDouble() * 0.6;
+			final double amplitude;
+
+			if ( rnd.nextInt( 4 ) == 0 )
+			{
+				amplitude = -0.3 - 0.15 * rnd.nextDouble();
+				dark.add( center );
+			}
+			else
+			{
+				amplitude = 0.3 + 0.5 * rnd.nextDouble();
+				bright.add( center );
+			}
+
+			for ( int i = 0; i < data.length; ++i )
+			{
+				double dist2 = 0;
+
+				for ( int d = 0, j = i; d < n; ++d )
+				{
+					position[ d ] = j % dim[ d ];
+					j /= dim[ d ];
+
+					dist2 += ( position[ d ] - center[ d ] ) * ( position[ d ] - center[ d ] );
+				}
+
+				data[ i ] += (float)( amplitude * Math.exp( -dist2 / ( 2 * beadSigma * beadSigma ) ) );
+			}
+		}
+
+		return img;
+	}
+}
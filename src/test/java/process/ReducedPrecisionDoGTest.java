@@ -0,0 +1,182 @@
+package process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import mpicbg.imglib.container.array.ArrayContainerFactory;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Checks the half conversion of {@link ReducedPrecisionDoG} and compares its DoG to the float recursive gaussian
+ * within the bounds documented in the class
+ */
+public class ReducedPrecisionDoGTest
+{
+	@Test
+	public void testRoundTripAllHalves()
+	{
+		for ( int h = 0; h < 65536; ++h )
+		{
+			final short half = (short)h;
+			final float f = ReducedPrecisionDoG.halfToFloat( half );
+
+			final int exponent = ( h >>> 10 ) & 0x1f;
+			final int mantissa = h & 0x3ff;
+
+			if ( exponent == 0x1f && mantissa != 0 )
+			{
+				// NaN stays NaN, the payload is not kept
+				assertTrue( Float.isNaN( f ) );
+				assertTrue( Float.isNaN( ReducedPrecisionDoG.halfToFloat( ReducedPrecisionDoG.floatToHalf( f ) ) ) );
+				continue;
+			}
+
+			// the exact value of the half
+			final double sign = ( h & 0x8000 ) == 0 ? 1 : -1;
+			final double expected;
+
+			if ( exponent == 0x1f )
+				expected = sign * Double.POSITIVE_INFINITY;
+			else if ( exponent == 0 )
+				expected = sign * Math.scalb( (double)mantissa, -24 );
+			else
+				expected = sign * Math.scalb( 1.0 + mantissa / 1024.0, exponent - 15 );
+
+			assertEquals( "half " + h, expected, f, 0 );
+			assertEquals( "half " + h, half, ReducedPrecisionDoG.floatToHalf( f ) );
+		}
+	}
+
+	@Test
+	public void testRoundToNearest()
+	{
+		final Random rnd = new Random( 42 );
+
+		for ( int i = 0; i < 100000; ++i )
+		{
+			// uniform in the exponent, covers subnormal and normalized halves
+			final float f = (float)( ( rnd.nextBoolean() ? 1 : -1 ) * Math.scalb( 1 + rnd.nextDouble(), rnd.nextInt( 41 ) - 26 ) );
+			final short half = ReducedPrecisionDoG.floatToHalf( f );
+			final float error = Math.abs( ReducedPrecisionDoG.halfToFloat( half ) - f );
+
+			// no neighboring half is closer
+			for ( final int neighbor : new int[]{ -1, 1 } )
+			{
+				final short other = (short)( half + neighbor );
+
+				if ( ( other & 0x7c00 ) != 0x7c00 && ( other & 0x8000 ) == ( half & 0x8000 ) )
+					assertTrue( "float " + f, error <= Math.abs( ReducedPrecisionDoG.halfToFloat( other ) - f ) );
+			}
+		}
+	}
+
+	@Test
+	public void testCompareToFloat2d()
+	{
+		compare( new int[]{ 96, 80 }, 2.0, 1.6 );
+	}
+
+	@Test
+	public void testCompareToFloat3d()
+	{
+		compare( new int[]{ 48, 40, 24 }, 2.0, 1.6 );
+	}
+
+	protected static void compare( final int[] dim, final double sigma, final double k )
+	{
+		final int n = dim.length;
+		final Image< FloatType > img = createSpots( dim, new Random( 42 ) );
+
+		final double[] sigma1 = new double[ n ];
+		final double[] sigma2 = new double[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			sigma1[ d ] = sigma;
+			sigma2[ d ] = sigma * k;
+		}
+
+		final float K = (float)( 1.0 / ( k - 1.0 ) );
+
+		final Image< FloatType > dogFloat = RecursiveGaussian.computeDoG( img, sigma1, sigma2, K, 2 );
+		final float[] f = FloatImages.getArray( dogFloat );
+		final ReducedPrecisionDoG dogHalf = ReducedPrecisionDoG.computeDoG( img, sigma1, sigma2, K, 2 );
+
+		// 16 bit buffers (2d: 2.3e-5, 3d: 3.1e-5 per gaussian), plus storing the DoG as half
+		final double gaussianError = n == 2 ? 2.3e-5 : 3.1e-5;
+		double maxValue = 0;
+
+		for ( int i = 0; i < f.length; ++i )
+		{
+			final double bound = 2 * gaussianError * K + Math.abs( f[ i ] ) * 4.9e-4 + 3e-8 + 1e-6;
+			assertEquals( "pixel " + i, f[ i ], dogHalf.get( i ), bound );
+			maxValue = Math.max( maxValue, Math.abs( f[ i ] ) );
+		}
+
+		// the image has spots, the comparison is not only on a flat DoG
+		assertTrue( maxValue > 0.05 );
+
+		ImagePool.release( dogFloat );
+		img.close();
+	}
+
+	/**
+	 * Gaussian spots of different size and sign on a noisy background, normalized to [0,1]
+	 */
+	protected static Image< FloatType > createSpots( final int[] dim, final Random rnd )
+	{
+		final Image< FloatType > img = new ImageFactory< FloatType >( new FloatType(), new ArrayContainerFactory() ).createImage( dim );
+		final float[] data = FloatImages.getArray( img );
+		final int n = dim.length;
+
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = 0.1f * rnd.nextFloat();
+
+		final int[] position = new int[ n ];
+
+		for ( int s = 0; s < 20; ++s )
+		{
+			final double[] center = new double[ n ];
+			for ( int d = 0; d < n; ++d )
+				center[ d ] = rnd.nextDouble() * dim[ d ];
+
+			final double spotSigma = 1.5 + rnd.nextDouble() * 2;
+			final double amplitude = rnd.nextBoolean() ? 0.9 : -0.1;
+
+			for ( int i = 0; i < data.length; ++i )
+			{
+				double dist2 = 0;
+
+				for ( int d = 0, j = i; d < n; ++d )
+				{
+					position[ d ] = j % dim[ d ];
+					j /= dim[ d ];
+
+					final double diff = position[ d ] - center[ d ];
+					dist2 += diff * diff;
+				}
+
+				data[ i ] += (float)( amplitude * Math.exp( -dist2 / ( 2 * spotSigma * spotSigma ) ) );
+			}
+		}
+
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+
+		for ( final float v : data )
+		{
+			min = Math.min( min, v );
+			max = Math.max( max, v );
+		}
+
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ( data[ i ] - min ) / ( max - min );
+
+		return img;
+	}
+}